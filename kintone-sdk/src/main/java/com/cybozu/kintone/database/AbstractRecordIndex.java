@@ -0,0 +1,177 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A base class of the record indexes. This class extracts the keys of the
+ * indexed field and normalizes them according to the field type, so that
+ * "10" and "10.0" of a number field or date times in different time zones
+ * have the same key. Values which cannot be parsed as the field type are not
+ * indexed.
+ * <p>
+ * The keys added for each record are remembered and removed as they were, so
+ * a record changed in place can be put again. The indexes are synchronized,
+ * and the lookups return copies of the id sets.
+ */
+abstract class AbstractRecordIndex implements RecordIndex {
+
+    private String field;
+    private volatile FieldType fieldType = null;
+    private Map<Long, List<Object>> keysById = new HashMap<Long, List<Object>>();
+
+    /**
+     * Constructor
+     * @param field
+     *            the field code of the indexed field
+     */
+    AbstractRecordIndex(String field) {
+        this.field = field;
+    }
+
+    @Override
+    public String getField() {
+        return field;
+    }
+
+    @Override
+    public synchronized void add(Record record) {
+        removeKeys(record.getId());
+        List<Object> keys = keysOf(record);
+        if (!keys.isEmpty()) {
+            keysById.put(record.getId(), keys);
+        }
+        for (Object key : keys) {
+            addKey(key, record.getId());
+        }
+    }
+
+    @Override
+    public synchronized void remove(Record record) {
+        removeKeys(record.getId());
+    }
+
+    @Override
+    public synchronized void clear() {
+        keysById.clear();
+        clearKeys();
+    }
+
+    /**
+     * Removes the keys which were added for the record. The keys are not
+     * computed from the record again, because the record may have been
+     * changed in place since it was added.
+     * @param id
+     *            record id
+     */
+    private void removeKeys(long id) {
+        List<Object> keys = keysById.remove(id);
+        if (keys == null)
+            return;
+        for (Object key : keys) {
+            removeKey(key, id);
+        }
+    }
+
+    /**
+     * Adds the key of the record.
+     * @param key
+     *            normalized key
+     * @param id
+     *            record id
+     */
+    protected abstract void addKey(Object key, long id);
+
+    /**
+     * Removes the key of the record.
+     * @param key
+     *            normalized key
+     * @param id
+     *            record id
+     */
+    protected abstract void removeKey(Object key, long id);
+
+    /**
+     * Removes all keys.
+     */
+    protected abstract void clearKeys();
+
+    /**
+     * Gets the keys of the record. A field which has multiple values, such
+     * as a check box, has a key for each value.
+     * @param record
+     *            the record object
+     * @return the list of the keys
+     */
+    protected List<Object> keysOf(Record record) {
+        Field f = record.getField(field);
+        if (f == null || f.isEmpty())
+            return Collections.emptyList();
+
+        fieldType = f.getFieldType();
+        List<Object> keys = new ArrayList<Object>();
+        Object value = f.getValue();
+        if (value instanceof List) {
+            for (Object elem : (List<?>) value) {
+                Object key = toKey(QueryParser.toText(elem));
+                if (key != null) {
+                    keys.add(key);
+                }
+            }
+        } else {
+            Object key = toKey(QueryParser.toText(value));
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Normalizes the value to the key.
+     * @param value
+     *            a string value of the field
+     * @return the key, or null if the value is empty or cannot be parsed as
+     *         the type of the field
+     */
+    protected Object toKey(String value) {
+        if (value == null || value.length() == 0)
+            return null;
+
+        FieldType type = fieldType;
+        if (type != null) {
+            if (QueryParser.isNumeric(type)) {
+                try {
+                    return new BigDecimal(value).stripTrailingZeros();
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else if (QueryParser.isDateTime(type)) {
+                try {
+                    return Long.valueOf(QueryParser.parseDateTime(value));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return value;
+    }
+}
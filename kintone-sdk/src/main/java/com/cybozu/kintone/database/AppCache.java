@@ -0,0 +1,291 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import com.cybozu.kintone.database.exception.DBException;
+import com.cybozu.kintone.database.exception.DBNotFoundException;
+
+/**
+ * A cache of the application information.
+ * <p>
+ * Lookups of many ids or codes are batched into as few apps.json requests
+ * as possible, each of which retrieves up to 100 applications. A cached
+ * application expires after the time to live, and is refreshed in
+ * background once it gets older than the refresh time, so that lookups of
+ * frequently used applications never wait for a request.
+ */
+public class AppCache {
+    public static final int MAX_APPS = 100;
+
+    private Connection connection;
+    private long ttl;
+    private long refreshAfter;
+    private Map<Long, Entry> apps = new ConcurrentHashMap<Long, Entry>();
+    private Map<String, Long> codes = new ConcurrentHashMap<String, Long>();
+    private Set<Long> refreshing = Collections
+            .newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private ExecutorService refresher;
+
+    /**
+     * A cached application.
+     */
+    private static class Entry {
+        AppDto app;
+        long loadedAt;
+
+        Entry(AppDto app, long loadedAt) {
+            this.app = app;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param connection
+     *            the connection object
+     * @param ttl
+     *            the time to live of the cached application in milliseconds
+     */
+    public AppCache(Connection connection, long ttl) {
+        this.connection = connection;
+        this.ttl = ttl;
+        this.refreshAfter = ttl * 3 / 4;
+        this.refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "kintone-app-cache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Gets the application information.
+     * 
+     * @param id
+     *            app id
+     * @return app object
+     * @throws DBException
+     */
+    public AppDto getApp(long id) throws DBException {
+        AppDto app = getApps(Collections.singletonList(id)).get(id);
+        if (app == null) {
+            throw new DBNotFoundException("app not found: " + id);
+        }
+        return app;
+    }
+
+    /**
+     * Gets the application information by the app code.
+     * 
+     * @param code
+     *            app code
+     * @return app object
+     * @throws DBException
+     */
+    public AppDto getAppByCode(String code) throws DBException {
+        AppDto app = getAppsByCodes(Collections.singletonList(code)).get(code);
+        if (app == null) {
+            throw new DBNotFoundException("app not found: " + code);
+        }
+        return app;
+    }
+
+    /**
+     * Gets the information of the applications. The applications which are
+     * not cached are retrieved together.
+     * 
+     * @param ids
+     *            app ids
+     * @return the map of the app id and the app object. Applications which
+     *         are not found are not contained.
+     * @throws DBException
+     */
+    public Map<Long, AppDto> getApps(Collection<Long> ids) throws DBException {
+        Map<Long, AppDto> result = new LinkedHashMap<Long, AppDto>();
+        List<Long> missing = new ArrayList<Long>();
+        List<Long> stale = new ArrayList<Long>();
+        long now = System.currentTimeMillis();
+
+        for (Long id : ids) {
+            Entry entry = apps.get(id);
+            if (entry == null || now - entry.loadedAt >= ttl) {
+                missing.add(id);
+                continue;
+            }
+            if (now - entry.loadedAt >= refreshAfter) {
+                stale.add(id);
+            }
+            result.put(id, entry.app);
+        }
+        for (AppDto app : fetchByIds(missing)) {
+            result.put(app.getAppId(), app);
+        }
+        refreshInBackground(stale);
+
+        return result;
+    }
+
+    /**
+     * Gets the information of the applications by the app codes.
+     * 
+     * @param codes
+     *            app codes
+     * @return the map of the app code and the app object. Applications
+     *         which are not found are not contained.
+     * @throws DBException
+     */
+    public Map<String, AppDto> getAppsByCodes(Collection<String> codes)
+            throws DBException {
+        Map<String, AppDto> result = new LinkedHashMap<String, AppDto>();
+        List<Long> ids = new ArrayList<Long>();
+        List<String> missing = new ArrayList<String>();
+
+        for (String code : codes) {
+            Long id = this.codes.get(code);
+            if (id == null) {
+                missing.add(code);
+            } else {
+                ids.add(id);
+            }
+        }
+        for (AppDto app : getApps(ids).values()) {
+            result.put(app.getCode(), app);
+        }
+        for (int i = 0; i < missing.size(); i += MAX_APPS) {
+            List<String> chunk = missing.subList(i,
+                    Math.min(i + MAX_APPS, missing.size()));
+            for (AppDto app : store(connection.getApps(null, chunk, null,
+                    null, MAX_APPS, 0))) {
+                result.put(app.getCode(), app);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the application from the cache.
+     * 
+     * @param id
+     *            app id
+     */
+    public void invalidate(long id) {
+        apps.remove(id);
+    }
+
+    /**
+     * Removes all applications from the cache.
+     */
+    public void clear() {
+        apps.clear();
+        codes.clear();
+    }
+
+    /**
+     * Stops the background refresh.
+     */
+    public void close() {
+        refresher.shutdownNow();
+        clear();
+    }
+
+    /**
+     * Retrieves the applications by the ids, up to 100 in a request.
+     * 
+     * @param ids
+     *            app ids
+     * @return the list of the app objects
+     * @throws DBException
+     */
+    private List<AppDto> fetchByIds(List<Long> ids) throws DBException {
+        List<AppDto> list = new ArrayList<AppDto>();
+        for (int i = 0; i < ids.size(); i += MAX_APPS) {
+            List<Long> chunk = ids.subList(i, Math.min(i + MAX_APPS, ids.size()));
+            list.addAll(store(connection.getApps(chunk, null, null, null,
+                    MAX_APPS, 0)));
+        }
+        return list;
+    }
+
+    /**
+     * Stores the applications to the cache.
+     * 
+     * @param list
+     *            the list of the app objects
+     * @return the same list
+     */
+    private List<AppDto> store(List<AppDto> list) {
+        if (list == null)
+            return Collections.emptyList();
+        long now = System.currentTimeMillis();
+        for (AppDto app : list) {
+            apps.put(app.getAppId(), new Entry(app, now));
+            if (app.getCode() != null && app.getCode().length() > 0) {
+                codes.put(app.getCode(), app.getAppId());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Refreshes the applications in background.
+     * 
+     * @param ids
+     *            app ids
+     */
+    private void refreshInBackground(List<Long> ids) {
+        final List<Long> targets = new ArrayList<Long>();
+        for (Long id : ids) {
+            if (refreshing.add(id)) {
+                targets.add(id);
+            }
+        }
+        if (targets.isEmpty())
+            return;
+
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetchByIds(targets);
+                    } catch (DBException e) {
+                        // the entries are retrieved again when they expire
+                    } finally {
+                        refreshing.removeAll(targets);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the cache was closed
+            refreshing.removeAll(targets);
+        }
+    }
+}
@@ -0,0 +1,340 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.File;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * A local replica of a kintone application.
+ * <p>
+ * The mirror is populated by {@link #fullSync()}, which exports the
+ * application with several cursors in parallel, and kept current by
+ * {@link #incrementalSync()}, which retrieves the records updated since the
+ * last sync, and {@link #reconcile()}, which detects deleted records by
+ * comparing the record ids. The records are stored in a
+ * {@link LocalRecordStore} and reads are served from it without any request
+ * to kintone.
+ */
+public class AppMirror {
+    private static final String WATERMARK_FILE = "watermark.properties";
+
+    private Connection connection;
+    private long app;
+    private LocalRecordStore store;
+    private WatermarkStore watermarks;
+    private RecordChangePoller poller;
+    private int parallelism = 4;
+    private ScheduledExecutorService scheduler = null;
+    private volatile DBException lastError = null;
+
+    /**
+     * Constructor
+     * 
+     * @param connection
+     *            the connection object
+     * @param app
+     *            application id
+     * @param dir
+     *            the directory where the replica is stored
+     * @param updatedTimeField
+     *            the field code of the updated time field
+     * @throws DBException
+     */
+    public AppMirror(Connection connection, long app, File dir,
+            String updatedTimeField) throws DBException {
+        this.connection = connection;
+        this.app = app;
+        this.store = new LocalRecordStore(dir);
+        this.watermarks = new FileWatermarkStore(new File(dir, WATERMARK_FILE));
+        this.poller = new RecordChangePoller(connection, updatedTimeField,
+                watermarks, new RecordChangeListener() {
+                    @Override
+                    public void onUpsert(long app, List<Record> records)
+                            throws DBException {
+                        store.putAll(records);
+                        store.flush();
+                    }
+                });
+    }
+
+    /**
+     * Sets the number of cursors used by the full sync.
+     * 
+     * @param parallelism
+     *            the number of concurrent requests
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("invalid parallelism: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Gets the local store.
+     * 
+     * @return the store object
+     */
+    public LocalRecordStore getStore() {
+        return store;
+    }
+
+    /**
+     * Gets the exception of the last background sync which failed. The
+     * background sync keeps running at the next interval after a failure.
+     * 
+     * @return the exception, or null if no background sync failed
+     */
+    public DBException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Gets the record from the replica.
+     * 
+     * @param id
+     *            record id
+     * @return the record object or null if not found
+     */
+    public Record getRecord(long id) {
+        return store.get(id);
+    }
+
+    /**
+     * Selects all records from the replica.
+     * 
+     * @return ResultSet object
+     */
+    public ResultSet select() {
+        ResultSet rs = new ResultSet(connection);
+        for (Record record : store.getAll()) {
+            rs.add(record);
+        }
+        return rs;
+    }
+
+    /**
+     * Selects the records from the replica using a query string. The query
+     * is evaluated locally by {@link Query}.
+     * 
+     * @param query
+     *            query string
+     * @return ResultSet object
+     */
+    public ResultSet select(String query) {
+        ResultSet rs = new ResultSet(connection);
+        for (Record record : Query.compile(query).apply(store.getAll())) {
+            rs.add(record);
+        }
+        return rs;
+    }
+
+    /**
+     * Replaces the replica with all records of the application. The id range
+     * is split into as many slices as the parallelism and each slice is
+     * exported by its own cursor. The replica is replaced only when the
+     * export succeeded, so it is left as it was if the export failed.
+     * 
+     * @return the number of the records
+     * @throws DBException
+     */
+    public synchronized int fullSync() throws DBException {
+        // changes made while exporting are captured by the next incremental sync
+        Watermark watermark = new Watermark(getStartTime(), 0);
+
+        final List<Record> exported = Collections.synchronizedList(new ArrayList<Record>());
+        long maxId = getMaxId();
+        if (maxId > 0) {
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                long step = maxId / parallelism + 1;
+                for (long from = 0; from < maxId; from += step) {
+                    final RecordCursor cursor = new RecordCursor(connection, app,
+                            null, null);
+                    cursor.setIdRange(from, Math.min(from + step, maxId));
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws DBException {
+                            while (cursor.hasNext()) {
+                                exported.addAll(cursor.next());
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    waitFor(future);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        store.replaceAll(exported);
+        watermarks.save(app, watermark);
+
+        return store.size();
+    }
+
+    /**
+     * Retrieves the records created or updated since the last sync.
+     * 
+     * @return the number of the changed records
+     * @throws DBException
+     */
+    public synchronized int incrementalSync() throws DBException {
+        return poller.poll(app);
+    }
+
+    /**
+     * Removes the records which were deleted from the application. Only the
+     * record ids are retrieved.
+     * 
+     * @return the number of the removed records
+     * @throws DBException
+     */
+    public synchronized int reconcile() throws DBException {
+        // records stored before the scan must be seen by the scan if they still exist
+        Set<Long> candidates = store.getIds();
+        Set<Long> existing = new HashSet<Long>();
+
+        String[] columns = { "$id" };
+        RecordCursor cursor = new RecordCursor(connection, app, null, columns);
+        while (cursor.hasNext()) {
+            for (Record record : cursor.next()) {
+                existing.add(record.getId());
+            }
+        }
+        candidates.removeAll(existing);
+        store.removeAll(candidates);
+        store.flush();
+
+        return candidates.size();
+    }
+
+    /**
+     * Starts the periodic incremental sync and reconciliation in background.
+     * 
+     * @param syncInterval
+     *            the interval of the incremental sync in milliseconds
+     * @param reconcileInterval
+     *            the interval of the reconciliation in milliseconds
+     */
+    public synchronized void start(long syncInterval, long reconcileInterval) {
+        if (scheduler != null)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    incrementalSync();
+                } catch (DBException e) {
+                    lastError = e;
+                }
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reconcile();
+                    store.compact();
+                } catch (DBException e) {
+                    lastError = e;
+                }
+            }
+        }, reconcileInterval, reconcileInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background sync and closes the store.
+     * 
+     * @throws DBException
+     */
+    public synchronized void close() throws DBException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        store.close();
+    }
+
+    /**
+     * Gets the largest record id of the application.
+     * 
+     * @return the record id, or 0 if the application has no record
+     * @throws DBException
+     */
+    private long getMaxId() throws DBException {
+        String[] columns = { "$id" };
+        ResultSet rs = connection.select(app, "order by $id desc limit 1", columns);
+        if (!rs.next())
+            return 0;
+        return rs.getId();
+    }
+
+    /**
+     * Gets the time a minute before now, truncated to the minute.
+     * 
+     * @return the datetime string
+     */
+    private String getStartTime() {
+        long time = System.currentTimeMillis() - 60 * 1000;
+        time -= time % (60 * 1000);
+        DateFormat df = new SimpleDateFormat(Record.DATETIME_PATTERN);
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df.format(new Date(time));
+    }
+
+    /**
+     * Waits for the task and rethrows its exception.
+     * 
+     * @param future
+     *            the future of the task
+     * @throws DBException
+     */
+    private void waitFor(Future<Void> future) throws DBException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException(e, "interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DBException) {
+                throw (DBException) e.getCause();
+            }
+            throw new DBException(e.getCause());
+        }
+    }
+}
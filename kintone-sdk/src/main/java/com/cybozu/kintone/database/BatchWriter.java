@@ -0,0 +1,521 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * A thread-safe writer which buffers the single-record writes and sends them
+ * in batches. The writes are grouped by the application and the operation,
+ * and a batch is sent when it gets MAX_WRITE_RECORDS records or when it gets
+ * older than the linger time. The batches are sent one by one in the order
+ * they were started, and a write of an application with another operation
+ * than its buffered batch sends that batch first, so the writes of an
+ * application are applied in the order they were made. Each write returns a
+ * future which gets the id of the record, or the error of its batch.
+ * <p>
+ * The buffered writes of the same record are coalesced. The updates of the
+ * same record are merged field by field, the later value winning, and a
+ * delete replaces the buffered updates of the record. An insert followed by
+ * the delete of the same record object cancel out and nothing is sent; their
+ * futures get null.
+ */
+public class BatchWriter {
+
+    public static final long DEFAULT_LINGER = 100;
+
+    /**
+     * The operation of a batch.
+     */
+    enum Operation {
+        INSERT, UPDATE, DELETE
+    }
+
+    /**
+     * The key of a batch.
+     */
+    static class BatchKey {
+        long app;
+        Operation operation;
+
+        BatchKey(long app, Operation operation) {
+            this.app = app;
+            this.operation = operation;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BatchKey))
+                return false;
+            BatchKey key = (BatchKey) obj;
+            return app == key.app && operation == key.operation;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (app ^ (app >>> 32)) * 31 + operation.hashCode();
+        }
+    }
+
+    /**
+     * A buffered write.
+     */
+    static class Pending {
+        Record record;
+        List<WriteFuture> futures = new ArrayList<WriteFuture>();
+
+        Pending(Record record) {
+            this.record = record;
+        }
+
+        /**
+         * Completes the futures with the id of the record.
+         * 
+         * @param id
+         *            the id of the record
+         */
+        void set(Long id) {
+            for (WriteFuture future : futures) {
+                future.set(id);
+            }
+        }
+
+        /**
+         * Completes the futures with the exception.
+         * 
+         * @param error
+         *            the cause of the failure
+         */
+        void setException(Throwable error) {
+            for (WriteFuture future : futures) {
+                future.setException(error);
+            }
+        }
+    }
+
+    /**
+     * The writes buffered for the same application and operation.
+     */
+    static class Batch {
+        BatchKey key;
+        long startedAt;
+        List<Pending> entries = new ArrayList<Pending>();
+        Map<Long, Pending> byId = new HashMap<Long, Pending>();
+        Map<Record, Pending> byRecord = new IdentityHashMap<Record, Pending>();
+
+        Batch(BatchKey key, long startedAt) {
+            this.key = key;
+            this.startedAt = startedAt;
+        }
+
+        /**
+         * Adds a write to the batch.
+         * 
+         * @param pending
+         *            the buffered write
+         */
+        void add(Pending pending) {
+            entries.add(pending);
+            if (key.operation == Operation.INSERT) {
+                byRecord.put(pending.record, pending);
+            } else {
+                byId.put(pending.record.getId(), pending);
+            }
+        }
+
+        /**
+         * Removes a write from the batch.
+         * 
+         * @param pending
+         *            the buffered write
+         */
+        void remove(Pending pending) {
+            entries.remove(pending);
+            byRecord.remove(pending.record);
+            byId.remove(pending.record.getId());
+        }
+    }
+
+    private Connection connection;
+    private int batchSize;
+    private long linger;
+    private Map<BatchKey, Batch> batches = new LinkedHashMap<BatchKey, Batch>();
+    private ScheduledExecutorService timer;
+    private ExecutorService sender;
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     * 
+     * @param connection
+     *            the connection object
+     */
+    public BatchWriter(Connection connection) {
+        this(connection, Connection.MAX_WRITE_RECORDS, DEFAULT_LINGER);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param connection
+     *            the connection object
+     * @param batchSize
+     *            the maximum number of the records in a batch
+     * @param linger
+     *            the maximum time in milliseconds to keep a write in the
+     *            buffer
+     */
+    public BatchWriter(Connection connection, int batchSize, long linger) {
+        if (batchSize < 1 || batchSize > Connection.MAX_WRITE_RECORDS) {
+            throw new IllegalArgumentException("invalid batch size: " + batchSize);
+        }
+        this.connection = connection;
+        this.batchSize = batchSize;
+        this.linger = linger;
+        this.sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "kintone-batch-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "kintone-batch-writer-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1, linger / 2);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sendExpired();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Inserts a record.
+     * 
+     * @param app
+     *            application id
+     * @param record
+     *            The Record object to be inserted
+     * @return the future of the id of the inserted record
+     */
+    public Future<Long> insert(long app, Record record) {
+        return add(new BatchKey(app, Operation.INSERT), record);
+    }
+
+    /**
+     * Updates a record.
+     * 
+     * @param app
+     *            application id
+     * @param record
+     *            updated record object which has the id
+     * @return the future of the id of the updated record
+     */
+    public Future<Long> updateByRecord(long app, Record record) {
+        if (record.getId() < 0) {
+            throw new IllegalArgumentException("record has no id");
+        }
+        return add(new BatchKey(app, Operation.UPDATE), record);
+    }
+
+    /**
+     * Deletes a record.
+     * 
+     * @param app
+     *            application id
+     * @param id
+     *            record number to be deleted
+     * @return the future of the id of the deleted record
+     */
+    public Future<Long> delete(long app, long id) {
+        Record record = new Record();
+        record.setId(id);
+        return add(new BatchKey(app, Operation.DELETE), record);
+    }
+
+    /**
+     * Deletes a record. If the record object is buffered to be inserted,
+     * both of the insert and the delete are cancelled.
+     * 
+     * @param app
+     *            application id
+     * @param record
+     *            a record object to be deleted
+     * @return the future of the id of the deleted record
+     */
+    public Future<Long> deleteByRecord(long app, Record record) {
+        synchronized (this) {
+            Batch inserts = batches.get(new BatchKey(app, Operation.INSERT));
+            Pending pending = inserts == null ? null : inserts.byRecord.get(record);
+            if (pending != null) {
+                remove(inserts, pending);
+                pending.set(null);
+                WriteFuture future = new WriteFuture();
+                future.set(null);
+                return future;
+            }
+        }
+        if (record.getId() < 0) {
+            throw new IllegalArgumentException("record has no id");
+        }
+        return delete(app, record.getId());
+    }
+
+    /**
+     * Sends all buffered writes and waits for them.
+     * 
+     * @throws DBException
+     */
+    public void flush() throws DBException {
+        Future<?> marker;
+        synchronized (this) {
+            if (sender.isShutdown())
+                return;
+            sendBefore(null);
+            marker = sender.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+        try {
+            marker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException(e, "interrupted");
+        } catch (ExecutionException e) {
+            throw new DBException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends all buffered writes and stops the writer.
+     * 
+     * @throws DBException
+     */
+    public void close() throws DBException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        timer.shutdownNow();
+        try {
+            flush();
+        } finally {
+            sender.shutdown();
+        }
+    }
+
+    /**
+     * Adds a write to the buffer.
+     * 
+     * @param key
+     *            the key of the batch
+     * @param record
+     *            the record to be written
+     * @return the future of the id of the record
+     */
+    private synchronized Future<Long> add(BatchKey key, Record record) {
+        if (closed) {
+            throw new IllegalStateException("writer is closed");
+        }
+        WriteFuture future = new WriteFuture();
+        List<WriteFuture> superseded = new ArrayList<WriteFuture>();
+        if (key.operation == Operation.DELETE) {
+            // the delete supersedes the buffered updates of the record
+            Batch updates = batches.get(new BatchKey(key.app, Operation.UPDATE));
+            Pending update = updates == null ? null : updates.byId.get(record.getId());
+            if (update != null) {
+                remove(updates, update);
+                superseded = update.futures;
+            }
+        }
+        for (Operation operation : Operation.values()) {
+            BatchKey other = new BatchKey(key.app, operation);
+            if (operation != key.operation && batches.containsKey(other)) {
+                // the earlier writes of the application are sent first
+                sendBefore(other);
+            }
+        }
+        Batch batch = batches.get(key);
+        if (batch == null) {
+            batch = new Batch(key, System.currentTimeMillis());
+            batches.put(key, batch);
+        }
+        Pending pending = null;
+        if (key.operation != Operation.INSERT) {
+            pending = batch.byId.get(record.getId());
+        }
+        if (pending != null) {
+            if (key.operation == Operation.UPDATE) {
+                pending.record = merge(pending.record, record);
+            }
+        } else {
+            pending = new Pending(record);
+            batch.add(pending);
+        }
+        pending.futures.addAll(superseded);
+        pending.futures.add(future);
+        if (batch.entries.size() >= batchSize) {
+            sendBefore(key);
+        }
+        return future;
+    }
+
+    /**
+     * Merges the updates of the same record. Only the changed fields of the
+     * records retrieved by select are merged.
+     * 
+     * @param current
+     *            the buffered update
+     * @param update
+     *            the new update
+     * @return the merged record
+     */
+    private Record merge(Record current, Record update) {
+        Record merged = new Record(current.getId(),
+                current.hasRevision() ? current.getRevision() : update.getRevision());
+        for (String name : current.getChangedFieldNames()) {
+            merged.addField(name, current.getField(name));
+        }
+        for (String name : update.getChangedFieldNames()) {
+            merged.addField(name, update.getField(name));
+        }
+        return merged;
+    }
+
+    /**
+     * Removes a write from the batch, and the batch if it gets empty.
+     * 
+     * @param batch
+     *            the batch of the write
+     * @param pending
+     *            the buffered write
+     */
+    private void remove(Batch batch, Pending pending) {
+        batch.remove(pending);
+        if (batch.entries.isEmpty()) {
+            batches.remove(batch.key);
+        }
+    }
+
+    /**
+     * Sends the batches older than the linger time.
+     */
+    private synchronized void sendExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Batch> it = batches.values().iterator();
+        while (it.hasNext()) {
+            Batch batch = it.next();
+            if (now - batch.startedAt < linger)
+                break;
+            it.remove();
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends the batches started until the batch of the key, to keep the
+     * order of the writes.
+     * 
+     * @param key
+     *            the key of the last batch to be sent, or null to send all
+     *            batches
+     */
+    private void sendBefore(BatchKey key) {
+        Iterator<Batch> it = batches.values().iterator();
+        while (it.hasNext()) {
+            Batch batch = it.next();
+            it.remove();
+            send(batch);
+            if (batch.key.equals(key))
+                break;
+        }
+    }
+
+    /**
+     * Queues the batch to the sender.
+     * 
+     * @param batch
+     *            the batch to be sent
+     */
+    private void send(final Batch batch) {
+        sender.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(batch);
+            }
+        });
+    }
+
+    /**
+     * Writes the batch and completes the futures.
+     * 
+     * @param batch
+     *            the batch to be written
+     */
+    private void write(Batch batch) {
+        List<Record> records = new ArrayList<Record>();
+        for (Pending pending : batch.entries) {
+            records.add(pending.record);
+        }
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            switch (batch.key.operation) {
+            case INSERT:
+                ids = connection.insert(batch.key.app, records);
+                break;
+            case UPDATE:
+                connection.updateByRecords(batch.key.app, records);
+                break;
+            case DELETE:
+                connection.deleteByRecords(batch.key.app, records);
+                break;
+            }
+            for (int i = 0; i < batch.entries.size(); i++) {
+                Long id = i < ids.size() ? ids.get(i) : records.get(i).getId();
+                batch.entries.get(i).set(id);
+            }
+        } catch (Throwable e) {
+            for (Pending pending : batch.entries) {
+                pending.setException(e);
+            }
+        }
+    }
+}
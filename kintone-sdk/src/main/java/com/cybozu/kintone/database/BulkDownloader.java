@@ -0,0 +1,386 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * Downloads many files in parallel. The files with the same file key are
+ * downloaded only once in a run. The counters of the progress can be read
+ * while the files are downloaded.
+ */
+public class BulkDownloader {
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    private Connection connection;
+    private int concurrency;
+    private DownloadListener listener = null;
+
+    private AtomicInteger total = new AtomicInteger();
+    private AtomicInteger downloaded = new AtomicInteger();
+    private AtomicInteger failed = new AtomicInteger();
+    private AtomicLong bytes = new AtomicLong();
+    private volatile long startedAt = 0;
+    private volatile long finishedAt = 0;
+
+    /**
+     * A stream which counts the read bytes.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param connection
+     *            the connection object
+     */
+    public BulkDownloader(Connection connection) {
+        this(connection, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param connection
+     *            the connection object
+     * @param concurrency
+     *            the maximum number of the files downloaded at the same time
+     */
+    public BulkDownloader(Connection connection, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        this.connection = connection;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the listener of the progress.
+     * 
+     * @param listener
+     *            the listener
+     */
+    public void setListener(DownloadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Downloads the files attached to the records.
+     * 
+     * @param app
+     *            application id
+     * @param condition
+     *            query condition without "order by", "limit" and "offset",
+     *            or null to retrieve all records
+     * @param fields
+     *            the names of the file fields
+     * @param directory
+     *            the directory to save the files
+     * @return the failures keyed by the file key
+     * @throws DBException
+     */
+    public Map<String, DBException> download(long app, String condition,
+            String[] fields, File directory) throws DBException {
+        return download(app, condition, fields, directorySink(directory));
+    }
+
+    /**
+     * Downloads the files attached to the records.
+     * 
+     * @param app
+     *            application id
+     * @param condition
+     *            query condition without "order by", "limit" and "offset",
+     *            or null to retrieve all records
+     * @param fields
+     *            the names of the file fields
+     * @param sink
+     *            the destination of the files
+     * @return the failures keyed by the file key
+     * @throws DBException
+     */
+    public Map<String, DBException> download(long app, String condition,
+            String[] fields, DownloadSink sink) throws DBException {
+        List<FileDto> files = new ArrayList<FileDto>();
+        RecordCursor cursor = new RecordCursor(connection, app, condition, fields);
+        while (cursor.hasNext()) {
+            for (Record record : cursor.next()) {
+                for (String field : fields) {
+                    List<FileDto> list = record.getFiles(field);
+                    if (list != null) {
+                        files.addAll(list);
+                    }
+                }
+            }
+        }
+        return download(files, sink);
+    }
+
+    /**
+     * Downloads the files into the directory. Each file is saved as
+     * "{file key}_{file name}", and it appears atomically when it is
+     * completed.
+     * 
+     * @param files
+     *            the files to be downloaded
+     * @param directory
+     *            the directory to save the files
+     * @return the failures keyed by the file key
+     * @throws DBException
+     */
+    public Map<String, DBException> download(Collection<FileDto> files,
+            File directory) throws DBException {
+        return download(files, directorySink(directory));
+    }
+
+    /**
+     * Downloads the files into the sink.
+     * 
+     * @param files
+     *            the files to be downloaded
+     * @param sink
+     *            the destination of the files
+     * @return the failures keyed by the file key
+     * @throws DBException
+     */
+    public Map<String, DBException> download(Collection<FileDto> files,
+            final DownloadSink sink) throws DBException {
+        Map<String, FileDto> unique = new LinkedHashMap<String, FileDto>();
+        for (FileDto file : files) {
+            if (!unique.containsKey(file.getFileKey())) {
+                unique.put(file.getFileKey(), file);
+            }
+        }
+
+        total.set(unique.size());
+        downloaded.set(0);
+        failed.set(0);
+        bytes.set(0);
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+
+        Map<String, DBException> failures = new LinkedHashMap<String, DBException>();
+        if (unique.isEmpty()) {
+            finishedAt = System.currentTimeMillis();
+            return failures;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                concurrency, unique.size()));
+        try {
+            Map<FileDto, Future<Void>> futures = new LinkedHashMap<FileDto, Future<Void>>();
+            for (final FileDto file : unique.values()) {
+                futures.put(file, executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws DBException {
+                        downloadFile(file, sink);
+                        return null;
+                    }
+                }));
+            }
+            for (Map.Entry<FileDto, Future<Void>> entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DBException(e, "interrupted");
+                } catch (ExecutionException e) {
+                    DBException cause = e.getCause() instanceof DBException
+                            ? (DBException) e.getCause()
+                            : new DBException(e.getCause());
+                    failures.put(entry.getKey().getFileKey(), cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            finishedAt = System.currentTimeMillis();
+        }
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return the number of the files to be downloaded in the current run
+     */
+    public int getTotalCount() {
+        return total.get();
+    }
+
+    /**
+     * @return the number of the downloaded files
+     */
+    public int getDownloadedCount() {
+        return downloaded.get();
+    }
+
+    /**
+     * @return the number of the failed files
+     */
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of the downloaded bytes
+     */
+    public long getDownloadedBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Gets the throughput of the current or last run.
+     * 
+     * @return the downloaded bytes per second
+     */
+    public double getThroughput() {
+        if (startedAt == 0)
+            return 0;
+        long end = finishedAt != 0 ? finishedAt : System.currentTimeMillis();
+        long elapsed = Math.max(1, end - startedAt);
+        return bytes.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Downloads a file into the sink and updates the progress.
+     * 
+     * @param file
+     *            the file to be downloaded
+     * @param sink
+     *            the destination of the file
+     * @throws DBException
+     */
+    private void downloadFile(final FileDto file, final DownloadSink sink)
+            throws DBException {
+        final long[] count = new long[1];
+        try {
+            connection.downloadFile(file.getFileKey(), new DownloadCallback() {
+                @Override
+                public void onReceive(InputStream input, long contentLength)
+                        throws IOException {
+                    CountingInputStream counter = new CountingInputStream(input);
+                    try {
+                        sink.receive(file, counter, contentLength);
+                    } finally {
+                        count[0] = counter.count;
+                        bytes.addAndGet(counter.count);
+                    }
+                }
+            });
+        } catch (DBException e) {
+            failed.incrementAndGet();
+            if (listener != null) {
+                listener.onFailed(file, e);
+            }
+            throw e;
+        }
+        downloaded.incrementAndGet();
+        if (listener != null) {
+            listener.onDownloaded(file, count[0]);
+        }
+    }
+
+    /**
+     * Creates the sink which saves the files into the directory.
+     * 
+     * @param directory
+     *            the directory to save the files
+     * @return the sink
+     * @throws DBException
+     */
+    static DownloadSink directorySink(final File directory) throws DBException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new DBException("cannot create directory: " + directory);
+        }
+        return new DownloadSink() {
+            @Override
+            public void receive(FileDto file, InputStream input,
+                    long contentLength) throws IOException {
+                String name = file.getName() == null ? "" : file.getName();
+                File target = new File(directory, file.getFileKey() + "_"
+                        + name.replaceAll("[/\\\\:]", "_"));
+                File temp = File.createTempFile(".download", null, directory);
+                try {
+                    OutputStream os = new FileOutputStream(temp);
+                    try {
+                        byte[] buffer = new byte[8192];
+                        int n;
+                        while ((n = input.read(buffer)) != -1) {
+                            os.write(buffer, 0, n);
+                        }
+                    } finally {
+                        os.close();
+                    }
+                    Files.move(temp.toPath(), target.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    temp.delete();
+                }
+            }
+        };
+    }
+}
@@ -25,13 +25,39 @@ import com.cybozu.kintone.database.exception.ParseException;
  */
 public class BulkRequest {
 
+    public static final int MAX_REQUESTS = 20;
+
     List<BulkRequestData> requests = new ArrayList<BulkRequestData>();
+    private boolean parallel = false;
     
     /**
      * Constructor
      */
     public BulkRequest() {
     }
+
+    /**
+     * Returns if the batches are sent in parallel.
+     * 
+     * @return true if the batches are sent in parallel
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Sets to send the batches in parallel. The requests are sent in
+     * batches of MAX_REQUESTS requests, and each batch is atomic. By default
+     * the batches are sent one by one and the rest of them are not sent
+     * after a batch failed. If true, the batches are sent in parallel and
+     * all of them are sent regardless of the failures.
+     * 
+     * @param parallel
+     *            true to send the batches in parallel
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
     
 
     /**
@@ -59,15 +85,18 @@ public class BulkRequest {
     public void insert(long app, List<Record> records) {
         
         JsonParser parser = new JsonParser();
-        String json;
-        try {
-            json = parser.recordsToJsonForInsert(app, records);
-        } catch (IOException e) {
-            throw new ParseException("failed to encode to json");
-        }
+        for (List<Record> chunk : ChunkExecutor.split(records,
+                Connection.MAX_WRITE_RECORDS)) {
+            String json;
+            try {
+                json = parser.recordsToJsonForInsert(app, chunk);
+            } catch (IOException e) {
+                throw new ParseException("failed to encode to json");
+            }
 
-        BulkRequestData request = new BulkRequestData("POST", "/k/v1/records.json", json);
-        requests.add(request);
+            BulkRequestData request = new BulkRequestData("POST", "/k/v1/records.json", json);
+            requests.add(request);
+        }
     }
 
     /**
@@ -113,15 +142,18 @@ public class BulkRequest {
     public void update(long app, List<Long> ids, Record record) {
         
         JsonParser parser = new JsonParser();
-        String json;
-        try {
-            json = parser.recordsToJsonForUpdate(app, ids, record);
-        } catch (IOException e) {
-            throw new ParseException("failed to encode to json");
-        }
+        for (List<Long> chunk : ChunkExecutor.split(ids,
+                Connection.MAX_WRITE_RECORDS)) {
+            String json;
+            try {
+                json = parser.recordsToJsonForUpdate(app, chunk, record);
+            } catch (IOException e) {
+                throw new ParseException("failed to encode to json");
+            }
 
-        BulkRequestData request = new BulkRequestData("PUT", "/k/v1/records.json", json);
-        requests.add(request);
+            BulkRequestData request = new BulkRequestData("PUT", "/k/v1/records.json", json);
+            requests.add(request);
+        }
     }
 
     /**
@@ -135,15 +167,18 @@ public class BulkRequest {
     public void updateByRecords(long app, List<Record> records) {
         
         JsonParser parser = new JsonParser();
-        String json;
-        try {
-            json = parser.recordsToJsonForUpdate(app, records);
-        } catch (IOException e) {
-            throw new ParseException("failed to encode to json");
-        }
+        for (List<Record> chunk : ChunkExecutor.split(records,
+                Connection.MAX_WRITE_RECORDS)) {
+            String json;
+            try {
+                json = parser.recordsToJsonForUpdate(app, chunk);
+            } catch (IOException e) {
+                throw new ParseException("failed to encode to json");
+            }
 
-        BulkRequestData request = new BulkRequestData("PUT", "/k/v1/records.json", json);
-        requests.add(request);
+            BulkRequestData request = new BulkRequestData("PUT", "/k/v1/records.json", json);
+            requests.add(request);
+        }
     }
 
     /**
@@ -185,15 +220,18 @@ public class BulkRequest {
     public void deleteByRecords(long app, List<Record> records) {
         
         JsonParser parser = new JsonParser();
-        String json;
-        try {
-            json = parser.recordsToJsonForDelete(app, records);
-        } catch (IOException e) {
-            throw new ParseException("failed to encode to json");
+        for (List<Record> chunk : ChunkExecutor.split(records,
+                Connection.MAX_WRITE_RECORDS)) {
+            String json;
+            try {
+                json = parser.recordsToJsonForDelete(app, chunk);
+            } catch (IOException e) {
+                throw new ParseException("failed to encode to json");
+            }
+            
+            BulkRequestData request = new BulkRequestData("DELETE", "/k/v1/records.json", json);
+            requests.add(request);
         }
-        
-        BulkRequestData request = new BulkRequestData("DELETE", "/k/v1/records.json", json);
-        requests.add(request);
     }
 
     /**
@@ -213,7 +251,32 @@ public class BulkRequest {
         deleteByRecords(app, records);
     }
 
+    /**
+     * Gets the number of the requests.
+     * 
+     * @return the number of the requests
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    /**
+     * Gets the json of all requests.
+     * 
+     * @return the json string
+     */
     public String getJson() {
+        return getJson(requests);
+    }
+
+    /**
+     * Gets the json of the requests.
+     * 
+     * @param requests
+     *            the list of the requests
+     * @return the json string
+     */
+    static String getJson(List<BulkRequestData> requests) {
         StringBuilder sb = new StringBuilder();
         sb.append("{\"requests\":[");
         
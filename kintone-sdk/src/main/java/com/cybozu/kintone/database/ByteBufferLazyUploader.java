@@ -0,0 +1,42 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.nio.ByteBuffer;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * Implemented class of lazy file uploader for using ByteBuffer.
+ *
+ */
+public class ByteBufferLazyUploader implements LazyUploader {
+
+    private ByteBuffer data;
+    private String fileName;
+    private String contentType;
+    
+    ByteBufferLazyUploader(ByteBuffer data, String fileName, String contentType) {
+        this.data = data;
+        this.fileName = fileName;
+        this.contentType = contentType;
+    }
+    
+    @Override
+    public String upload(Connection conn) throws DBException {
+       return conn.uploadFile(contentType, data, fileName);
+    }
+
+}
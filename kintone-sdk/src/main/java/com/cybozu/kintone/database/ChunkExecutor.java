@@ -0,0 +1,202 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.cybozu.kintone.database.exception.BulkWriteException;
+import com.cybozu.kintone.database.exception.BulkWriteException.ChunkFailure;
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * Splits a bulk write into chunks and runs them with bounded parallelism.
+ * All chunks are executed even if some of them failed. A task which wrote a
+ * part of its chunk throws BulkWriteException, whose failures are reported
+ * at their offsets in the input.
+ */
+class ChunkExecutor<T> {
+
+    /**
+     * A write of a chunk.
+     */
+    interface Task<T> {
+        /**
+         * Writes the chunk.
+         * 
+         * @param chunk
+         *            the items of the chunk
+         * @return the ids of the written records in the chunk order
+         * @throws DBException
+         */
+        List<Long> execute(List<T> chunk) throws DBException;
+    }
+
+    private int chunkSize;
+    private int concurrency;
+    private boolean stopOnFailure = false;
+
+    /**
+     * Constructor
+     * 
+     * @param chunkSize
+     *            the maximum number of the items in a chunk
+     * @param concurrency
+     *            the maximum number of the chunks written at the same time
+     */
+    ChunkExecutor(int chunkSize, int concurrency) {
+        if (chunkSize < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("chunk size and concurrency must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets to skip the chunks not started yet after a chunk failed. The
+     * skipped chunks are reported as the failures.
+     * 
+     * @param stopOnFailure
+     *            true to skip the rest of the chunks
+     */
+    void setStopOnFailure(boolean stopOnFailure) {
+        this.stopOnFailure = stopOnFailure;
+    }
+
+    /**
+     * Splits the list into the chunks.
+     * 
+     * @param list
+     *            the list to be split
+     * @param size
+     *            the maximum size of a chunk
+     * @return the list of the chunks
+     */
+    static <T> List<List<T>> split(List<T> list, int size) {
+        List<List<T>> chunks = new ArrayList<List<T>>();
+        for (int i = 0; i < list.size(); i += size) {
+            chunks.add(list.subList(i, Math.min(i + size, list.size())));
+        }
+        return chunks;
+    }
+
+    /**
+     * Executes the task for each chunk.
+     * 
+     * @param items
+     *            the items to be written
+     * @param task
+     *            the write of a chunk
+     * @return the ids of the written records in the input order
+     * @throws DBException
+     *             BulkWriteException if any of the chunks failed
+     */
+    List<Long> execute(List<T> items, final Task<T> task) throws DBException {
+        List<List<T>> chunks = split(items, chunkSize);
+        if (chunks.isEmpty()) {
+            return new ArrayList<Long>();
+        }
+        if (chunks.size() == 1) {
+            return task.execute(chunks.get(0));
+        }
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        List<Long> ids = new ArrayList<Long>(items.size());
+        List<ChunkFailure> failures = new ArrayList<ChunkFailure>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                concurrency, chunks.size()));
+        try {
+            List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>();
+            for (final List<T> chunk : chunks) {
+                futures.add(executor.submit(new Callable<List<Long>>() {
+                    @Override
+                    public List<Long> call() throws DBException {
+                        if (stopOnFailure && failed.get()) {
+                            throw new DBException("skipped after a chunk failed");
+                        }
+                        try {
+                            return task.execute(chunk);
+                        } catch (DBException e) {
+                            failed.set(true);
+                            throw e;
+                        } catch (RuntimeException e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                    }
+                }));
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                int size = chunks.get(i).size();
+                try {
+                    ids.addAll(waitFor(futures.get(i), size));
+                } catch (BulkWriteException e) {
+                    for (ChunkFailure failure : e.getFailures()) {
+                        failures.add(new ChunkFailure(i, i * chunkSize
+                                + failure.getOffset(), failure.getSize(),
+                                failure.getCause()));
+                    }
+                    ids.addAll(e.getIds());
+                } catch (DBException e) {
+                    failures.add(new ChunkFailure(i, i * chunkSize, size, e));
+                    ids.addAll(Collections.<Long> nCopies(size, null));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failures.isEmpty()) {
+            throw new BulkWriteException(failures, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Waits for the chunk and rethrows its exception.
+     * 
+     * @param future
+     *            the future of the chunk
+     * @param size
+     *            the number of the items in the chunk
+     * @return the ids of the chunk
+     * @throws DBException
+     */
+    private List<Long> waitFor(Future<List<Long>> future, int size)
+            throws DBException {
+        List<Long> ids;
+        try {
+            ids = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException(e, "interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DBException) {
+                throw (DBException) e.getCause();
+            }
+            throw new DBException(e.getCause());
+        }
+        if (ids == null || ids.size() != size) {
+            throw new DBException("unexpected number of ids in the response");
+        }
+        return ids;
+    }
+}
@@ -26,6 +26,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.Authenticator;
+import java.math.BigDecimal;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
@@ -33,18 +34,37 @@ import java.net.PasswordAuthentication;
 import java.net.Proxy;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -57,9 +77,12 @@ import javax.net.ssl.X509TrustManager;
 
 import sun.misc.BASE64Encoder;
 
+import com.cybozu.kintone.database.exception.BulkWriteException;
+import com.cybozu.kintone.database.exception.BulkWriteException.ChunkFailure;
 import com.cybozu.kintone.database.exception.DBException;
 import com.cybozu.kintone.database.exception.DBNotFoundException;
 import com.cybozu.kintone.database.exception.ParseException;
+import com.cybozu.kintone.database.exception.UploadException;
 
 /**
  * kintone data access class.
@@ -67,6 +90,11 @@ import com.cybozu.kintone.database.exception.ParseException;
  */
 public class Connection {
     public static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    public static final int MAX_SELECT_RECORDS = 500;
+    public static final long DEFAULT_SCHEMA_TTL = 60 * 1000;
+    public static final int MAX_WRITE_RECORDS = 100;
+    public static final int DEFAULT_WRITE_CONCURRENCY = 4;
+    public static final int DEFAULT_UPLOAD_CONCURRENCY = 4;
     
     private final String AUTH_HEADER = "X-Cybozu-Authorization";
     private final String API_TOKEN = "X-Cybozu-API-Token";
@@ -75,6 +103,7 @@ public class Connection {
     private final String GUEST_API_PREFIX = "/k/guest/%d/v1/";
     
     private final String BOUNDARY = "boundary_aj8gksdnsdfakj342fs3dt3stk8g6j32";
+    private static final int UPLOAD_CHUNK_SIZE = 8192;
     private final String USER_AGENT_KEY = "User-Agent";
     private final String USER_AGENT_VALUE = "kintone-SDK 1.0";
     
@@ -85,11 +114,21 @@ public class Connection {
     private String auth;
     private String apiToken;
     private Proxy proxy;
+    private String basicAuth = null;
+    private String proxyAuth = null;
     private String userAgent = USER_AGENT_VALUE;
     private boolean trustAllHosts; // for debug
     private boolean useClientCert;
     private long guestSpaceId = -1;
     private HashMap<String, String> headers = new HashMap<String, String>();
+    private AppCache appCache = null;
+    private UploadCache uploadCache = null;
+    private FileCache fileCache = null;
+    private FormSchemaCache schemaCache = new FormSchemaCache(this, DEFAULT_SCHEMA_TTL);
+    private boolean useFormSchema = false;
+    private boolean snapshotOnSelect = false;
+    private int writeConcurrency = DEFAULT_WRITE_CONCURRENCY;
+    private int uploadConcurrency = DEFAULT_UPLOAD_CONCURRENCY;
 
     /**
      * Constructor
@@ -106,8 +145,7 @@ public class Connection {
         this.trustAllHosts = false;
         this.useClientCert = false;
         this.domain = domain;
-        this.auth = (new BASE64Encoder()).encode((login + ":" + password)
-                .getBytes());
+        this.auth = encodeCredentials(login, password);
         this.apiToken = null;
     }
     
@@ -164,8 +202,15 @@ public class Connection {
     public void close() {
         auth = null;
         proxy = null;
+        basicAuth = null;
+        proxyAuth = null;
         apiToken = null;
         headers.clear();
+        if (appCache != null) {
+            appCache.close();
+            appCache = null;
+        }
+        schemaCache.clear();
         this.trustAllHosts = false;
         this.useClientCert = false;
         Authenticator.setDefault(null);
@@ -196,6 +241,7 @@ public class Connection {
      * @param password
      */
     public void setBasicAuth(final String username, final String password) {
+        this.basicAuth = encodeCredentials(username, password);
         Authenticator.setDefault(new Authenticator() {
             protected PasswordAuthentication getPasswordAuthentication() {
                 return new PasswordAuthentication(username, password
@@ -219,6 +265,172 @@ public class Connection {
 		this.guestSpaceId = guestSpaceId;
 	}
 
+	/**
+	 * Enables the cache of the application information. Once enabled,
+	 * {@link #getApp(long)} is served from the cache.
+	 * 
+	 * @param ttl
+	 *            the time to live of the cached application in milliseconds
+	 */
+	public void enableAppCache(long ttl) {
+		if (appCache != null) {
+			appCache.close();
+		}
+		appCache = new AppCache(this, ttl);
+	}
+
+	/**
+	 * @return the cache of the application information, or null if the
+	 *         cache is not enabled
+	 */
+	public AppCache getAppCache() {
+		return appCache;
+	}
+
+	/**
+	 * Enables the cache of the uploaded files. Once enabled, a file with the
+	 * same content, name and content type as a file uploaded within the time
+	 * to live is not uploaded again and the cached file key is returned.
+	 * An input stream is always uploaded, since it is hashed while it is
+	 * read, but its file key is reused by the later uploads of the content.
+	 * 
+	 * @param ttl
+	 *            the time to live of the file keys in milliseconds
+	 */
+	public void enableUploadCache(long ttl) {
+		uploadCache = new UploadCache(ttl);
+	}
+
+	/**
+	 * @return the cache of the uploaded files, or null if the cache is not
+	 *         enabled
+	 */
+	public UploadCache getUploadCache() {
+		return uploadCache;
+	}
+
+	/**
+	 * Enables the disk cache of the downloaded files. Once enabled,
+	 * {@link #downloadFile(String)} returns a copy of the cached file. The
+	 * cached file itself can be read through {@link FileCache#get(String)}
+	 * without the copy, but should not be modified or deleted.
+	 * 
+	 * @param directory
+	 *            the directory of the cache
+	 * @param maxBytes
+	 *            the maximum total size of the cached files
+	 * @throws DBException
+	 */
+	public void enableFileCache(File directory, long maxBytes) throws DBException {
+		fileCache = new FileCache(this, directory, maxBytes);
+	}
+
+	/**
+	 * @return the disk cache of the downloaded files, or null if the cache
+	 *         is not enabled
+	 */
+	public FileCache getFileCache() {
+		return fileCache;
+	}
+
+	/**
+	 * Returns if this connection uses the form schemas.
+	 * 
+	 * @return true if the form schemas are used
+	 */
+	public boolean isUseFormSchema() {
+		return useFormSchema;
+	}
+
+	/**
+	 * Sets to use the form schemas. If true, the records are decoded and
+	 * encoded by the field types of the form, and validated before they are
+	 * inserted or updated.
+	 * 
+	 * @param useFormSchema
+	 *            true to use the form schemas
+	 */
+	public void setUseFormSchema(boolean useFormSchema) {
+		this.useFormSchema = useFormSchema;
+	}
+
+	/**
+	 * Returns if the selected records take the snapshots.
+	 * 
+	 * @return true if the snapshots are taken
+	 */
+	public boolean isSnapshotOnSelect() {
+		return snapshotOnSelect;
+	}
+
+	/**
+	 * Sets whether the selected records take the snapshots of the values, so
+	 * that the changes made in place, such as the rows of a subtable added
+	 * to the list, are found by comparing the values when they are updated.
+	 * 
+	 * @param snapshotOnSelect
+	 *            true to take the snapshots
+	 */
+	public void setSnapshotOnSelect(boolean snapshotOnSelect) {
+		this.snapshotOnSelect = snapshotOnSelect;
+	}
+
+	/**
+	 * Gets the maximum number of the chunks written at the same time.
+	 * 
+	 * @return the write concurrency
+	 */
+	public int getWriteConcurrency() {
+		return writeConcurrency;
+	}
+
+	/**
+	 * Sets the maximum number of the chunks written at the same time when
+	 * the records more than MAX_WRITE_RECORDS are written.
+	 * 
+	 * @param writeConcurrency
+	 *            the write concurrency
+	 */
+	public void setWriteConcurrency(int writeConcurrency) {
+		if (writeConcurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive");
+		}
+		this.writeConcurrency = writeConcurrency;
+	}
+
+	/**
+	 * Gets the maximum number of the files uploaded at the same time.
+	 * 
+	 * @return the upload concurrency
+	 */
+	public int getUploadConcurrency() {
+		return uploadConcurrency;
+	}
+
+	/**
+	 * Sets the maximum number of the files uploaded at the same time when
+	 * the records with the files are written.
+	 * 
+	 * @param uploadConcurrency
+	 *            the upload concurrency
+	 */
+	public void setUploadConcurrency(int uploadConcurrency) {
+		if (uploadConcurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive");
+		}
+		this.uploadConcurrency = uploadConcurrency;
+	}
+
+	/**
+	 * Sets the interval of the change check of the cached form schemas.
+	 * 
+	 * @param ttl
+	 *            the interval in milliseconds
+	 */
+	public void setFormSchemaTtl(long ttl) {
+		this.schemaCache = new FormSchemaCache(this, ttl);
+	}
+
 	/**
      * Adds a user customized header.
      * 
@@ -236,7 +448,9 @@ public class Connection {
     }
 
     /**
-     * Sets the proxy host.
+     * Sets the proxy host. Use {@link #setProxy(String, int, String, String)}
+     * if the proxy requires the authentication, because the uploads are
+     * streamed and cannot answer the challenge of the proxy.
      * 
      * @param host
      *            proxy host
@@ -246,6 +460,43 @@ public class Connection {
     public void setProxy(String host, int port) {
         this.proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(host,
                 port));
+        this.proxyAuth = null;
+    }
+
+    /**
+     * Sets the proxy which requires the basic authentication.
+     * 
+     * @param host
+     *            proxy host
+     * @param port
+     *            proxy port
+     * @param username
+     *            proxy user name
+     * @param password
+     *            proxy password
+     */
+    public void setProxy(String host, int port, String username, String password) {
+        setProxy(host, port);
+        this.proxyAuth = encodeCredentials(username, password);
+    }
+
+    /**
+     * Encodes the credentials for the password authentication of kintone and
+     * the basic authentication.
+     * 
+     * @param username
+     *            user name
+     * @param password
+     *            password
+     * @return base64 encoded credentials
+     */
+    private static String encodeCredentials(String username, String password) {
+        try {
+            return (new BASE64Encoder()).encode((username + ":" + password)
+                    .getBytes("UTF-8")).replaceAll("\\s", "");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
@@ -374,6 +625,24 @@ public class Connection {
         return request(method, api, body, null);
     }
 
+    /**
+     * Copies the stream.
+     * 
+     * @param input
+     *            the source stream
+     * @param output
+     *            the destination stream
+     * @throws IOException
+     */
+    private static void copy(InputStream input, OutputStream output)
+            throws IOException {
+        byte[] buffer = new byte[8192];
+        int n = 0;
+        while (-1 != (n = input.read(buffer))) {
+            output.write(buffer, 0, n);
+        }
+    }
+
     /**
      * Sets user defined HTTP headers.
      * @param conn connection object
@@ -404,8 +673,41 @@ public class Connection {
      * @return response string
      * @throws DBException
      */
-    public String request(String method, String api, String body, File outFile)
+    public String request(String method, String api, String body, final File outFile)
             throws DBException {
+        if (outFile == null) {
+            return requestStream(method, api, body, null);
+        }
+        return requestStream(method, api, body, new DownloadCallback() {
+            @Override
+            public void onReceive(InputStream input, long contentLength)
+                    throws IOException {
+                OutputStream os = new FileOutputStream(outFile);
+                try {
+                    copy(input, os);
+                } finally {
+                    os.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a request to kintone.
+     * 
+     * @param method
+     *            GET, POST, PUT or DELETE
+     * @param api
+     *            api file path and query string
+     * @param body
+     *            request data body
+     * @param callback
+     *            the receiver of the response body, or null to return it
+     * @return response string, or null if the callback received it
+     * @throws DBException
+     */
+    private String requestStream(String method, String api, String body,
+            DownloadCallback callback) throws DBException {
         HttpsURLConnection conn = null;
         String response = null;
 
@@ -435,7 +737,7 @@ public class Connection {
 
             conn.setRequestMethod(method);
         } catch (IOException e) {
-            throw new DBException("can not open connection");
+            throw new DBException(e, "can not open connection");
         }
         boolean post = false;
         if (method.equals("PUT") || method.equals("POST") || method.equals("DELETE")) {
@@ -449,7 +751,7 @@ public class Connection {
         try {
             conn.connect();
         } catch (IOException e) {
-            throw new DBException("cannot connect to host");
+            throw new DBException(e, "cannot connect to host");
         }
 
         if (post) {
@@ -458,14 +760,14 @@ public class Connection {
             try {
                 os = conn.getOutputStream();
             } catch (IOException e) {
-                throw new DBException("an error occurred while sending data");
+                throw new DBException(e, "an error occurred while sending data");
             }
             try {
 	            OutputStreamWriter writer = new OutputStreamWriter(os, "UTF-8");
 	            writer.write(body);
 	            writer.close();
             } catch(IOException e) {
-            	throw new DBException("socket error");
+            	throw new DBException(e, "socket error");
             }
             
         }
@@ -475,17 +777,8 @@ public class Connection {
             checkStatus(conn);
             InputStream is = conn.getInputStream();
             try {
-                if (outFile != null) {
-                    OutputStream os = new FileOutputStream(outFile);
-                    try {
-                        byte[] buffer = new byte[8192];
-                        int n = 0;
-                        while (-1 != (n = is.read(buffer))) {
-                            os.write(buffer, 0, n);
-                        }
-                    } finally {
-                        os.close();
-                    }
+                if (callback != null) {
+                    callback.onReceive(is, conn.getContentLengthLong());
                 } else {
                     response = streamToString(is);
                 }
@@ -493,7 +786,7 @@ public class Connection {
                 is.close();
             }
         } catch (IOException e) {
-            throw new DBException("an error occurred while receiving data");
+            throw new DBException(e, "an error occurred while receiving data");
         }
 
         // System.out.println(response);
@@ -519,7 +812,7 @@ public class Connection {
         if (statusCode != 200) {
             ErrorResponse response = getErrorResponse(conn);
             if (response == null) {
-                throw new DBException("http status error(" + statusCode + ")");
+                throw new DBException(statusCode, "http status error(" + statusCode + ")");
             } else {
                 throw new DBException(statusCode, response);
             }
@@ -556,7 +849,18 @@ public class Connection {
      * @throws DBException
      */
     private String upload(File file, String contentType) throws DBException {
-        InputStream isFile;
+        UploadCache cache = uploadCache;
+        String hash = null;
+        if (cache != null) {
+            hash = hashFile(file);
+            String fileKey = cache.get(hash, file.getName(), contentType);
+            if (fileKey != null) {
+                return fileKey;
+            }
+        }
+
+        long size = file.length();
+        FileInputStream isFile;
 
         try {
             isFile = new FileInputStream(file.getAbsolutePath());
@@ -565,7 +869,12 @@ public class Connection {
         }
         
         try {
-            return upload(isFile, file.getName(), contentType);
+            String fileKey = upload(new ChannelBody(isFile.getChannel(), size),
+                    file.getName(), contentType);
+            if (cache != null) {
+                cache.put(hash, file.getName(), contentType, fileKey);
+            }
+            return fileKey;
         } finally {
             try {
                 isFile.close();
@@ -574,12 +883,150 @@ public class Connection {
         }
         
     }
+
+    /**
+     * Computes the hash of the content of the file.
+     * 
+     * @param file
+     *            the local file
+     * @return the hex string of the hash
+     * @throws DBException
+     */
+    private static String hashFile(File file) throws DBException {
+        MessageDigest digest = UploadCache.newDigest();
+        try {
+            InputStream is = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                }
+            } finally {
+                is.close();
+            }
+        } catch (FileNotFoundException e) {
+            throw new DBNotFoundException("cannot open file");
+        } catch (IOException e) {
+            throw new DBException(e, "cannot read file");
+        }
+        return UploadCache.toHex(digest.digest());
+    }
     
+    /**
+     * The content of an uploaded file.
+     */
+    private interface UploadBody {
+        /**
+         * @return the length of the content, or -1 if unknown
+         */
+        long length();
+
+        /**
+         * Writes the content to the request body.
+         * 
+         * @param os
+         *            the stream of the request body
+         * @throws IOException
+         */
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    /**
+     * The content read from an input stream.
+     */
+    private static class StreamBody implements UploadBody {
+        private InputStream input;
+        private long length;
+
+        StreamBody(InputStream input, long length) {
+            this.input = input;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            byte[] buffer = new byte[UPLOAD_CHUNK_SIZE];
+            int n = 0;
+            while (-1 != (n = input.read(buffer))) {
+                os.write(buffer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * The content transferred from a file channel without the copy through
+     * a byte array.
+     */
+    private static class ChannelBody implements UploadBody {
+        private FileChannel channel;
+        private long length;
+
+        ChannelBody(FileChannel channel, long length) {
+            this.channel = channel;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            WritableByteChannel target = Channels.newChannel(os);
+            long position = 0;
+            while (position < length) {
+                long n = channel.transferTo(position, length - position, target);
+                if (n <= 0)
+                    break;
+                position += n;
+            }
+        }
+    }
+
+    /**
+     * The content in a buffer.
+     */
+    private static class BufferBody implements UploadBody {
+        private ByteBuffer buffer;
+
+        BufferBody(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        @Override
+        public long length() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            if (buffer.hasArray()) {
+                os.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+            } else {
+                WritableByteChannel target = Channels.newChannel(os);
+                ByteBuffer src = buffer.duplicate();
+                while (src.hasRemaining()) {
+                    target.write(src);
+                }
+            }
+        }
+    }
+
     /**
      * Uploads a file from input stream.
      * 
      * @param input
      *            the file stream to be uploaded
+     * @param length
+     *            the length of the file, or -1 if unknown
      * @param fileName
      *            file name
      * @param contentType
@@ -587,7 +1034,25 @@ public class Connection {
      * @return file key of the uploaded file
      * @throws DBException
      */
-    private String upload(InputStream input, String fileName, String contentType) throws DBException {
+    private String upload(InputStream input, long length, String fileName, String contentType) throws DBException {
+        return upload(new StreamBody(input, length), fileName, contentType);
+    }
+
+    /**
+     * Uploads a file. The body is streamed with the fixed length if the
+     * length is known, or with the chunked encoding otherwise, so the file
+     * is not buffered in memory.
+     * 
+     * @param body
+     *            the content of the file
+     * @param fileName
+     *            file name
+     * @param contentType
+     *            content type
+     * @return file key of the uploaded file
+     * @throws DBException
+     */
+    private String upload(UploadBody body, String fileName, String contentType) throws DBException {
         HttpsURLConnection conn;
         String response = null;
 
@@ -616,37 +1081,53 @@ public class Connection {
             throw new DBException("invalid url");
         }
 
+        byte[] head;
+        byte[] tail;
+        try {
+            head = ("--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"file\"; filename=\""
+                    + fileName + "\"\r\n"
+                    + "Content-Type: " + contentType + "\r\n\r\n").getBytes("UTF-8");
+            tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new DBException(e);
+        }
+
         conn.setDoOutput(true);
         conn.setRequestProperty("Content-Type",
                 "multipart/form-data; boundary=" + BOUNDARY);
+        // a streamed body cannot be sent again for the authentication
+        // challenges, so the credentials are sent in advance
+        if (basicAuth != null) {
+            conn.setRequestProperty("Authorization", "Basic " + basicAuth);
+        }
+        if (proxyAuth != null) {
+            conn.setRequestProperty("Proxy-Authorization", "Basic " + proxyAuth);
+        }
+        long length = body.length();
+        if (length >= 0) {
+            conn.setFixedLengthStreamingMode(head.length + length + tail.length);
+        } else {
+            conn.setChunkedStreamingMode(UPLOAD_CHUNK_SIZE);
+        }
 
         try {
             conn.connect();
         } catch (IOException e) {
-            throw new DBException("cannot connect to host");
+            throw new DBException(e, "cannot connect to host");
         }
 
         OutputStream os;
 
         try {
                 os = conn.getOutputStream();
-                OutputStreamWriter writer = new OutputStreamWriter(os, "UTF-8");
-                writer.write("--" + BOUNDARY + "\r\n");
-                writer.write("Content-Disposition: form-data; name=\"file\"; filename=\""
-                        + fileName + "\"\r\n");
-                writer.write("Content-Type: " + contentType + "\r\n\r\n");
-                writer.flush();
-                byte[] buffer = new byte[8192];
-                int n = 0;
-                while (-1 != (n = input.read(buffer))) {
-                    os.write(buffer, 0, n);
-                }
-                os.flush();
-                writer.write("\r\n--" + BOUNDARY + "--\r\n");
+                os.write(head);
+                body.writeTo(os);
+                os.write(tail);
                 os.flush();
-                writer.close();
+                os.close();
         } catch (IOException e) {
-            throw new DBException("an error occurred while sending data");
+            throw new DBException(e, "an error occurred while sending data");
         }
     
         // receive response
@@ -659,7 +1140,7 @@ public class Connection {
                 is.close();
             }
         } catch (IOException e) {
-            throw new DBException("an error occurred while receiving data");
+            throw new DBException(e, "an error occurred while receiving data");
         }
 
         JsonParser parser = new JsonParser();
@@ -746,7 +1227,7 @@ public class Connection {
         }
         String api = new String(sb);
         String response = request("GET", "records.json?" + api, null);
-        JsonParser parser = new JsonParser();
+        JsonParser parser = getParser(app);
         ResultSet rs = null;
         
         try {
@@ -754,6 +1235,11 @@ public class Connection {
         } catch (IOException e) {
             throw new ParseException("failed to parse json to resultset");
         }
+        if (snapshotOnSelect) {
+            for (Record record : rs.getRecords()) {
+                record.snapshot();
+            }
+        }
 
         return rs;
     }
@@ -797,26 +1283,121 @@ public class Connection {
     }
     
     /**
-     * Inserts new records.
+     * Uploads the files binded with the fields of the records. The files are
+     * uploaded in parallel up to the upload concurrency.
      * 
-     * @param app
-     *            application id
      * @param records
-     *            The array of Record objects to be inserted
-     * @return The list of inserted id number
+     *            the records to be written
      * @throws DBException
+     *             UploadException which has the record and the field of the
+     *             first failed file
      */
-    public List<Long> insert(long app, List<Record> records) throws DBException {
-
+    private void lazyUpload(List<Record> records) throws DBException {
+        final List<Record> owners = new ArrayList<Record>();
+        final List<String> names = new ArrayList<String>();
+        final List<Field> fields = new ArrayList<Field>();
+        Set<Field> seen = Collections.newSetFromMap(new IdentityHashMap<Field, Boolean>());
         for (Record record: records) {
             Set<Map.Entry<String,Field>> set = record.getEntrySet();
             for (Map.Entry<String,Field> entry: set) {
                 Field field = entry.getValue();
-                lazyUpload(field); // force lazy upload
+                if (field.isLazyUpload() && seen.add(field)) {
+                    owners.add(record);
+                    names.add(entry.getKey());
+                    fields.add(field);
+                }
+            }
+        }
+        if (fields.isEmpty())
+            return;
+        if (fields.size() == 1 || uploadConcurrency == 1) {
+            for (int i = 0; i < fields.size(); i++) {
+                try {
+                    lazyUpload(fields.get(i)); // force lazy upload
+                } catch (DBException e) {
+                    throw new UploadException(owners.get(i), names.get(i), e);
+                }
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                uploadConcurrency, fields.size()));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final Field field : fields) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws DBException {
+                        lazyUpload(field); // force lazy upload
+                        return null;
+                    }
+                }));
+            }
+            UploadException error = null;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DBException(e, "interrupted");
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        DBException cause = e.getCause() instanceof DBException
+                                ? (DBException) e.getCause()
+                                : new DBException(e.getCause());
+                        error = new UploadException(owners.get(i), names.get(i), cause);
+                    }
+                }
             }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            executor.shutdownNow();
         }
+    }
+
+    /**
+     * Inserts new records. The records are split into the chunks of
+     * MAX_WRITE_RECORDS records, which are sent in parallel up to the write
+     * concurrency.
+     * 
+     * @param app
+     *            application id
+     * @param records
+     *            The array of Record objects to be inserted
+     * @return The list of inserted id number in the input order
+     * @throws DBException
+     *             BulkWriteException if some of the chunks failed
+     */
+    public List<Long> insert(final long app, List<Record> records) throws DBException {
+        validate(app, records);
+        ChunkExecutor<Record> executor = new ChunkExecutor<Record>(
+                MAX_WRITE_RECORDS, writeConcurrency);
+        return executor.execute(records, new ChunkExecutor.Task<Record>() {
+            @Override
+            public List<Long> execute(List<Record> chunk) throws DBException {
+                return insertChunk(app, chunk);
+            }
+        });
+    }
+
+    /**
+     * Inserts new records with a request.
+     * 
+     * @param app
+     *            application id
+     * @param records
+     *            The array of Record objects to be inserted
+     * @return The list of inserted id number
+     * @throws DBException
+     */
+    private List<Long> insertChunk(long app, List<Record> records) throws DBException {
+
+        lazyUpload(records);
         
-        JsonParser parser = new JsonParser();
+        JsonParser parser = getParser(app);
         String json;
         try {
             json = parser.recordsToJsonForInsert(app, records);
@@ -824,7 +1405,13 @@ public class Connection {
             throw new ParseException("failed to encode to json");
         }
 
-        String response = request("POST", "records.json", json);
+        String response;
+        try {
+            response = request("POST", "records.json", json);
+        } catch (DBException e) {
+            evictUploads(records);
+            throw e;
+        }
 
         try {
             return parser.jsonToIDs(response);
@@ -866,7 +1453,9 @@ public class Connection {
     }
 
     /**
-     * Updates records.
+     * Updates records. The ids are split into the chunks of
+     * MAX_WRITE_RECORDS records, which are sent in parallel up to the write
+     * concurrency.
      * 
      * @param app
      *            application id
@@ -875,47 +1464,76 @@ public class Connection {
      * @param record
      *            updated record object
      * @throws DBException
+     *             BulkWriteException if some of the chunks failed
      */
-    public void update(long app, List<Long> ids, Record record)
+    public void update(final long app, List<Long> ids, final Record record)
             throws DBException {
-        
-        Set<Map.Entry<String,Field>> set = record.getEntrySet();
-        for (Map.Entry<String,Field> entry: set) {
-            Field field = entry.getValue();
-            lazyUpload(field); // force lazy upload
-        }
+        validate(app, Collections.singletonList(record));
+        lazyUpload(Collections.singletonList(record));
     
-        JsonParser parser = new JsonParser();
-        String json;
-        try {
-            json = parser.recordsToJsonForUpdate(app, ids, record);
-        } catch (IOException e) {
-            throw new ParseException("failed to encode to json");
-        }
+        final JsonParser parser = getParser(app);
+        ChunkExecutor<Long> executor = new ChunkExecutor<Long>(
+                MAX_WRITE_RECORDS, writeConcurrency);
+        executor.execute(ids, new ChunkExecutor.Task<Long>() {
+            @Override
+            public List<Long> execute(List<Long> chunk) throws DBException {
+                String json;
+                try {
+                    json = parser.recordsToJsonForUpdate(app, chunk, record);
+                } catch (IOException e) {
+                    throw new ParseException("failed to encode to json");
+                }
 
-        request("PUT", "records.json", json);
+                try {
+                    request("PUT", "records.json", json);
+                } catch (DBException e) {
+                    evictUploads(Collections.singletonList(record));
+                    throw e;
+                }
+                return chunk;
+            }
+        });
     }
 
     /**
-     * Updates records.
+     * Updates records. The records are split into the chunks of
+     * MAX_WRITE_RECORDS records, which are sent in parallel up to the write
+     * concurrency.
      * 
      * @param app
      *            application id
      * @param records
      *            an array of the updated record object
      * @throws DBException
+     *             BulkWriteException if some of the chunks failed
      */
-    public void updateByRecords(long app, List<Record> records) throws DBException {
-        // upload files
-        for (Record record: records) {
-            Set<Map.Entry<String,Field>> set = record.getEntrySet();
-            for (Map.Entry<String,Field> entry: set) {
-                Field field = entry.getValue();
-                lazyUpload(field); // force lazy upload
+    public void updateByRecords(final long app, List<Record> records) throws DBException {
+        validate(app, records);
+        ChunkExecutor<Record> executor = new ChunkExecutor<Record>(
+                MAX_WRITE_RECORDS, writeConcurrency);
+        executor.execute(records, new ChunkExecutor.Task<Record>() {
+            @Override
+            public List<Long> execute(List<Record> chunk) throws DBException {
+                updateChunk(app, chunk);
+                return idsOf(chunk);
             }
-        }
+        });
+    }
+
+    /**
+     * Updates records with a request.
+     * 
+     * @param app
+     *            application id
+     * @param records
+     *            an array of the updated record object
+     * @throws DBException
+     */
+    private void updateChunk(long app, List<Record> records) throws DBException {
+        // upload files
+        lazyUpload(records);
     
-        JsonParser parser = new JsonParser();
+        JsonParser parser = getParser(app);
         String json;
         try {
             json = parser.recordsToJsonForUpdate(app, records);
@@ -923,11 +1541,191 @@ public class Connection {
             throw new ParseException("failed to encode to json");
         }
 
-        request("PUT", "records.json", json);
+        try {
+            request("PUT", "records.json", json);
+        } catch (DBException e) {
+            evictUploads(records);
+            throw e;
+        }
+        for (Record record : records) {
+            if (record.isTracking()) {
+                record.clearChanges();
+            }
+        }
     }
     
     /**
-     * Updates records.
+     * Inserts or updates records by the key field. The records are split
+     * into the chunks of MAX_WRITE_RECORDS records. For each chunk the
+     * existing keys are looked up with a query, and then the records with
+     * the existing keys are updated by the update key and the others are
+     * inserted. The chunks are processed in parallel up to the write
+     * concurrency. The key field should prohibit duplicate values, so that
+     * a record inserted by another client after the lookup makes the insert
+     * fail instead of creating a duplicate.
+     * 
+     * @param app
+     *            application id
+     * @param keyField
+     *            the name of the field to identify the records
+     * @param records
+     *            the records which have the key field
+     * @return the list of the ids of the inserted or updated records in the
+     *         input order
+     * @throws DBException
+     *             BulkWriteException if some of the chunks failed
+     */
+    public List<Long> upsert(final long app, final String keyField,
+            List<Record> records) throws DBException {
+        Set<String> keys = new HashSet<String>();
+        for (Record record : records) {
+            String key = record.getString(keyField);
+            if (key == null || key.length() == 0) {
+                throw new DBException("record has no value of " + keyField);
+            }
+            if (!keys.add(toUpsertKey(record.getFieldType(keyField), key))) {
+                throw new DBException("duplicate value of " + keyField + ": " + key);
+            }
+        }
+        validate(app, records);
+        ChunkExecutor<Record> executor = new ChunkExecutor<Record>(
+                MAX_WRITE_RECORDS, writeConcurrency);
+        return executor.execute(records, new ChunkExecutor.Task<Record>() {
+            @Override
+            public List<Long> execute(List<Record> chunk) throws DBException {
+                return upsertChunk(app, keyField, chunk);
+            }
+        });
+    }
+
+    /**
+     * Inserts or updates records by the key field with a lookup and up to
+     * two requests.
+     * 
+     * @param app
+     *            application id
+     * @param keyField
+     *            the name of the field to identify the records
+     * @param records
+     *            the records which have the key field
+     * @return the list of the ids of the records
+     * @throws DBException
+     *             BulkWriteException if the updates succeeded but the inserts
+     *             failed
+     */
+    private List<Long> upsertChunk(long app, String keyField,
+            List<Record> records) throws DBException {
+        StringBuilder query = new StringBuilder();
+        query.append(keyField).append(" in (");
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                query.append(",");
+            }
+            query.append(RecordChangePoller.quote(records.get(i).getString(keyField)));
+        }
+        query.append(") limit ").append(records.size());
+
+        ResultSet rs = select(app, query.toString(), new String[] { "$id", keyField });
+        Map<String, Long> existing = new HashMap<String, Long>();
+        while (rs.next()) {
+            existing.put(toUpsertKey(rs.getFieldType(keyField),
+                    rs.getString(keyField)), rs.getId());
+        }
+
+        List<Record> inserts = new ArrayList<Record>();
+        List<Record> updates = new ArrayList<Record>();
+        for (Record record : records) {
+            if (existing.containsKey(toUpsertKey(record.getFieldType(keyField),
+                    record.getString(keyField)))) {
+                updates.add(record);
+            } else {
+                inserts.add(record);
+            }
+        }
+
+        if (!updates.isEmpty()) {
+            lazyUpload(updates);
+            JsonParser parser = getParser(app);
+            String json;
+            try {
+                json = parser.recordsToJsonForUpdateByKey(app, keyField, updates);
+            } catch (IOException e) {
+                throw new ParseException("failed to encode to json");
+            }
+            try {
+                request("PUT", "records.json", json);
+            } catch (DBException e) {
+                evictUploads(updates);
+                throw e;
+            }
+        }
+        Iterator<Long> insertedIds = null;
+        DBException insertError = null;
+        if (!inserts.isEmpty()) {
+            try {
+                insertedIds = insertChunk(app, inserts).iterator();
+            } catch (DBException e) {
+                if (updates.isEmpty()) {
+                    throw e;
+                }
+                // the updates are written, so only the inserts are failed
+                insertError = e;
+            }
+        }
+
+        List<Long> ids = new ArrayList<Long>(records.size());
+        for (Record record : records) {
+            Long id = existing.get(toUpsertKey(record.getFieldType(keyField),
+                    record.getString(keyField)));
+            ids.add(id != null ? id : insertedIds != null ? insertedIds.next() : null);
+        }
+        if (insertError != null) {
+            List<ChunkFailure> failures = new ArrayList<ChunkFailure>();
+            int start = -1;
+            for (int i = 0; i <= ids.size(); i++) {
+                boolean failed = i < ids.size() && ids.get(i) == null;
+                if (failed && start < 0) {
+                    start = i;
+                } else if (!failed && start >= 0) {
+                    failures.add(new ChunkFailure(0, start, i - start, insertError));
+                    start = -1;
+                }
+            }
+            throw new BulkWriteException(failures, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Normalizes the value of the key field of the upsert, so a number is
+     * matched by its value regardless of the scale, e.g. "1.50" and "1.5".
+     * 
+     * @param type
+     *            the type of the key field
+     * @param value
+     *            the value of the key field
+     * @return the normalized value
+     */
+    static String toUpsertKey(FieldType type, String value) {
+        if (type == FieldType.NUMBER && value != null) {
+            try {
+                BigDecimal number = new BigDecimal(value);
+                if (number.signum() == 0) {
+                    // "0.00" keeps its scale on Java 7
+                    return "0";
+                }
+                return number.stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Updates records. All records matching the query are retrieved by the
+     * pages of the record ids, unless the query has "limit" or "offset", and
+     * updated in the chunks of MAX_WRITE_RECORDS records in parallel up to
+     * the write concurrency.
      * 
      * @param app
      *            application id
@@ -935,23 +1733,54 @@ public class Connection {
      *            query string to determine the updated records
      * @param record
      *            updated record object
+     * @return the number of the updated records
      * @throws DBException
+     *             BulkWriteException if some of the chunks failed
      */
-    public void updateByQuery(long app, String query, Record record)
+    public int updateByQuery(long app, String query, Record record)
             throws DBException {
-        String[] fields = {};
-        ResultSet rs = select(app, query, fields);
-        List<Long> ids = new ArrayList<Long>();
-
-        if (rs.size() == 0)
-            return;
+        List<Long> ids = selectIds(app, query);
 
-        while (rs.next()) {
-            ids.add(rs.getId());
-        }
+        if (ids.size() == 0)
+            return 0;
 
         update(app, ids, record);
+        return ids.size();
+    }
+
+    /**
+     * Retrieves the ids of the records matching the query. If the query has
+     * no "limit" and "offset", all pages of the condition are retrieved in
+     * the order of the record id, whatever the "order by" clause is.
+     * Otherwise the query is sent as is.
+     * 
+     * @param app
+     *            application id
+     * @param query
+     *            query string
+     * @return the list of the record ids
+     * @throws DBException
+     */
+    private List<Long> selectIds(long app, String query) throws DBException {
+        String[] fields = { RecordCursor.ID_FIELD };
+        List<Long> ids = new ArrayList<Long>();
+        String[] parts = RecordCursor.splitQuery(query);
+        String clauses = parts[1].toLowerCase();
+        if (clauses.matches("(?s).*\\b(limit|offset)\\s+[0-9].*")) {
+            ResultSet rs = select(app, query, fields);
+            while (rs.next()) {
+                ids.add(rs.getId());
+            }
+            return ids;
+        }
 
+        RecordCursor cursor = new RecordCursor(this, app, parts[0], fields);
+        while (cursor.hasNext()) {
+            for (Record found : cursor.next()) {
+                ids.add(found.getId());
+            }
+        }
+        return ids;
     }
 
     /**
@@ -985,25 +1814,75 @@ public class Connection {
     }
     
     /**
-     * Deletes records.
+     * Deletes records. The records are split into the chunks of
+     * MAX_WRITE_RECORDS records, which are sent in parallel up to the write
+     * concurrency.
      * 
      * @param app
      *            application id
      * @param records
      *            a list of the record object to be deleted
      * @throws DBException
+     *             BulkWriteException if some of the chunks failed
      */
-    public void deleteByRecords(long app, List<Record> records) throws DBException {
-        
-        JsonParser parser = new JsonParser();
-        String json;
-        try {
-            json = parser.recordsToJsonForDelete(app, records);
-        } catch (IOException e) {
-            throw new ParseException("failed to encode to json");
+    public void deleteByRecords(final long app, List<Record> records) throws DBException {
+        final JsonParser parser = new JsonParser();
+        ChunkExecutor<Record> executor = new ChunkExecutor<Record>(
+                MAX_WRITE_RECORDS, writeConcurrency);
+        executor.execute(records, new ChunkExecutor.Task<Record>() {
+            @Override
+            public List<Long> execute(List<Record> chunk) throws DBException {
+                String json;
+                try {
+                    json = parser.recordsToJsonForDelete(app, chunk);
+                } catch (IOException e) {
+                    throw new ParseException("failed to encode to json");
+                }
+
+                request("DELETE", "records.json", json);
+                return idsOf(chunk);
+            }
+        });
+    }
+
+    /**
+     * Removes the file keys of the records from the upload cache after a
+     * write failed, so a file key rejected by kintone is not reused.
+     * 
+     * @param records
+     *            the records of the failed write
+     */
+    private void evictUploads(List<Record> records) {
+        UploadCache cache = uploadCache;
+        if (cache == null)
+            return;
+        for (Record record : records) {
+            for (Map.Entry<String, Field> entry : record.getEntrySet()) {
+                Field field = entry.getValue();
+                if (field.getFieldType() != FieldType.FILE || field.isEmpty())
+                    continue;
+                for (FileDto file : field.getAsFileList()) {
+                    if (file.getFileKey() != null) {
+                        cache.remove(file.getFileKey());
+                    }
+                }
+            }
         }
-        
-        request("DELETE", "records.json", json);
+    }
+
+    /**
+     * Gets the ids of the records.
+     * 
+     * @param records
+     *            a list of the record object
+     * @return the list of the ids
+     */
+    private static List<Long> idsOf(List<Record> records) {
+        List<Long> ids = new ArrayList<Long>(records.size());
+        for (Record record : records) {
+            ids.add(record.getId());
+        }
+        return ids;
     }
 
     /**
@@ -1025,27 +1904,29 @@ public class Connection {
     }
 
     /**
-     * Deletes records.
+     * Deletes records. Only the ids of all records matching the query are
+     * retrieved by the pages of the record ids, unless the query has "limit"
+     * or "offset", and the records are deleted in the chunks of
+     * MAX_WRITE_RECORDS records in parallel up to the write concurrency.
+     * The condition is sent to kintone without being parsed locally, so
+     * every page is retrieved for any query which kintone accepts.
      * 
      * @param app
      *            application id
      * @param query
      *            query string to determine the deleted records
+     * @return the number of the deleted records
      * @throws DBException
+     *             BulkWriteException if some of the chunks failed
      */
-    public void deleteByQuery(long app, String query) throws DBException {
-        ResultSet rs = select(app, query);
-        List<Record> records = new ArrayList<Record>();
+    public int deleteByQuery(long app, String query) throws DBException {
+        List<Long> ids = selectIds(app, query);
 
-        if (rs.size() == 0)
-            return;
+        if (ids.size() == 0)
+            return 0;
 
-        while (rs.next()) {
-            Record record = new Record();
-            record.setId(rs.getId());
-            records.add(record);
-        }
-        deleteByRecords(app, records);
+        delete(app, ids);
+        return ids.size();
     }
 
     /**
@@ -1094,11 +1975,72 @@ public class Connection {
         if (contentType == null) {
             contentType = DEFAULT_CONTENT_TYPE;
         }
-        return upload(file, fileName, contentType);
+        UploadCache cache = uploadCache;
+        if (cache == null) {
+            return upload(file, -1, fileName, contentType);
+        }
+
+        // the stream can be read only once, so the hash is computed while
+        // uploading and the file key is reused by the later uploads
+        DigestInputStream digest = new DigestInputStream(file,
+                UploadCache.newDigest());
+        String fileKey = upload(digest, -1, fileName, contentType);
+        String hash = UploadCache.toHex(digest.getMessageDigest().digest());
+        cache.put(hash, fileName, contentType, fileKey);
+        return fileKey;
+    }
+
+    /**
+     * Uploads a file from the byte array without copying it.
+     * 
+     * @param contentType
+     *            content type
+     * @param data
+     *            the content of the file
+     * @param fileName
+     *            upload file name
+     * @return file key
+     * @throws DBException
+     */
+    public String uploadFile(String contentType, byte[] data, String fileName) throws DBException {
+        return uploadFile(contentType, ByteBuffer.wrap(data), fileName);
+    }
+
+    /**
+     * Uploads a file from the remaining bytes of the buffer without copying
+     * it. The position of the buffer is not changed.
+     * 
+     * @param contentType
+     *            content type
+     * @param data
+     *            the content of the file
+     * @param fileName
+     *            upload file name
+     * @return file key
+     * @throws DBException
+     */
+    public String uploadFile(String contentType, ByteBuffer data, String fileName) throws DBException {
+        if (contentType == null) {
+            contentType = DEFAULT_CONTENT_TYPE;
+        }
+        UploadCache cache = uploadCache;
+        if (cache == null) {
+            return upload(new BufferBody(data), fileName, contentType);
+        }
+        MessageDigest digest = UploadCache.newDigest();
+        digest.update(data.duplicate());
+        String hash = UploadCache.toHex(digest.digest());
+        String fileKey = cache.get(hash, fileName, contentType);
+        if (fileKey == null) {
+            fileKey = upload(new BufferBody(data), fileName, contentType);
+            cache.put(hash, fileName, contentType, fileKey);
+        }
+        return fileKey;
     }
 
     /**
-     * Downloads a file.
+     * Downloads a file to a temporary file. If the file cache is enabled,
+     * the temporary file is copied from the cached file.
      * 
      * @param fileKey
      *            file key
@@ -1108,23 +2050,107 @@ public class Connection {
      */
     public File downloadFile(String fileKey) throws IOException, DBException {
         File tempFile = File.createTempFile(fileKey, null);
+        if (fileCache != null) {
+            // the cached file belongs to the cache, so the caller gets a
+            // copy which it can delete
+            try {
+                Files.copy(fileCache.get(fileKey).toPath(), tempFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                return tempFile;
+            } catch (NoSuchFileException e) {
+                // evicted before it was copied
+            }
+        }
 
         request("GET", "file.json?fileKey=" + fileKey, null, tempFile);
         return tempFile;
     }
+
+    /**
+     * Downloads a file into the stream. The stream is not closed.
+     * 
+     * @param fileKey
+     *            file key
+     * @param output
+     *            the destination stream
+     * @throws DBException
+     */
+    public void downloadFile(String fileKey, final OutputStream output) throws DBException {
+        downloadFile(fileKey, new DownloadCallback() {
+            @Override
+            public void onReceive(InputStream input, long contentLength)
+                    throws IOException {
+                copy(input, output);
+            }
+        });
+    }
+
+    /**
+     * Downloads a file into the channel. The channel is not closed.
+     * 
+     * @param fileKey
+     *            file key
+     * @param output
+     *            the destination channel
+     * @throws DBException
+     */
+    public void downloadFile(String fileKey, final WritableByteChannel output) throws DBException {
+        downloadFile(fileKey, new DownloadCallback() {
+            @Override
+            public void onReceive(InputStream input, long contentLength)
+                    throws IOException {
+                ReadableByteChannel source = Channels.newChannel(input);
+                ByteBuffer buffer = ByteBuffer.allocate(8192);
+                while (source.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        output.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Downloads a file and passes the stream to the callback.
+     * 
+     * @param fileKey
+     *            file key
+     * @param callback
+     *            the receiver of the file
+     * @throws DBException
+     */
+    public void downloadFile(String fileKey, DownloadCallback callback) throws DBException {
+        requestStream("GET", "file.json?fileKey=" + fileKey, null, callback);
+    }
     
     /**
-     * Build update.
+     * Build update. The requests are sent in batches of
+     * BulkRequest.MAX_REQUESTS requests, one by one unless the bulk request
+     * is set to be sent in parallel.
      * 
      * @param bulk
      *            an instance of bulk request
      * @throws DBException
+     *             BulkWriteException if some of the batches failed, whose
+     *             chunks are the batches of the requests
      */
     public void bulkRequest(BulkRequest bulk) throws DBException {
         
-        String json = bulk.getJson();
-        
-        request("POST", "bulkRequest.json", json);
+        ChunkExecutor<BulkRequestData> executor = new ChunkExecutor<BulkRequestData>(
+                BulkRequest.MAX_REQUESTS, bulk.isParallel() ? writeConcurrency : 1);
+        executor.setStopOnFailure(!bulk.isParallel());
+        executor.execute(bulk.requests, new ChunkExecutor.Task<BulkRequestData>() {
+            @Override
+            public List<Long> execute(List<BulkRequestData> chunk)
+                    throws DBException {
+                String json = BulkRequest.getJson(chunk);
+                
+                request("POST", "bulkRequest.json", json);
+                return Collections.<Long> nCopies(chunk.size(), null);
+            }
+        });
     }
     
     /**
@@ -1136,6 +2162,9 @@ public class Connection {
      */
     public AppDto getApp(long id) throws DBException
     {
+        if (appCache != null) {
+            return appCache.getApp(id);
+        }
         StringBuilder sb = new StringBuilder();
         sb.append("id=");
         sb.append(id);
@@ -1250,4 +2279,87 @@ public class Connection {
         
     	return apps;
     }
+
+    /**
+     * Gets the form schema of the application. The schema is cached and
+     * retrieved again only if the application settings were changed.
+     * 
+     * @param app
+     *            application id
+     * @return the form schema
+     * @throws DBException
+     */
+    public FormSchema getFormSchema(long app) throws DBException {
+        return schemaCache.get(app);
+    }
+
+    /**
+     * Retrieves the form schema of the application without the cache.
+     * 
+     * @param app
+     *            application id
+     * @return the form schema
+     * @throws DBException
+     */
+    FormSchema fetchFormSchema(long app) throws DBException {
+        String response = request("GET", "app/form/fields.json?app=" + app, null);
+        JsonParser parser = new JsonParser();
+        try {
+            return parser.jsonToFormSchema(app, response);
+        } catch (IOException e) {
+            throw new ParseException("failed to parse json to form schema");
+        }
+    }
+
+    /**
+     * Retrieves the revision of the application settings.
+     * 
+     * @param app
+     *            application id
+     * @return the revision
+     * @throws DBException
+     */
+    long getAppRevision(long app) throws DBException {
+        String response = request("GET", "app/settings.json?app=" + app, null);
+        JsonParser parser = new JsonParser();
+        try {
+            return parser.jsonToRevision(response);
+        } catch (IOException e) {
+            throw new ParseException("failed to parse json to revision");
+        }
+    }
+
+    /**
+     * Gets the json parser for the application.
+     * 
+     * @param app
+     *            application id
+     * @return the json parser bound to the form schema if the form schemas
+     *         are used
+     * @throws DBException
+     */
+    private JsonParser getParser(long app) throws DBException {
+        if (!useFormSchema) {
+            return new JsonParser();
+        }
+        return getFormSchema(app).getParser();
+    }
+
+    /**
+     * Validates the records by the form schema if the form schemas are used.
+     * 
+     * @param app
+     *            application id
+     * @param records
+     *            the records to be written
+     * @throws DBException
+     */
+    private void validate(long app, List<Record> records) throws DBException {
+        if (!useFormSchema)
+            return;
+        FormSchema schema = getFormSchema(app);
+        for (Record record : records) {
+            schema.validate(record);
+        }
+    }
 }
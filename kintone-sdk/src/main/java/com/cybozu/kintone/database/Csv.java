@@ -0,0 +1,120 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the rows of RFC 4180 CSV. The values may contain the
+ * commas, the double quotes and the line breaks if they are quoted.
+ */
+class Csv {
+
+    private Csv() {
+    }
+
+    /**
+     * Reads a row.
+     * 
+     * @param reader
+     *            the reader positioned at the beginning of a row
+     * @return the values of the row, or null at the end of the input
+     * @throws IOException
+     *             if the input cannot be read or a quote is not closed
+     */
+    static List<String> readRow(BufferedReader reader) throws IOException {
+        int c = reader.read();
+        if (c == -1)
+            return null;
+
+        List<String> values = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        boolean inQuotes = false;
+        while (true) {
+            if (inQuotes) {
+                if (c == -1) {
+                    throw new IOException("unclosed quote");
+                } else if (c == '"') {
+                    reader.mark(1);
+                    int next = reader.read();
+                    if (next == '"') {
+                        sb.append('"');
+                    } else {
+                        inQuotes = false;
+                        if (next != -1) {
+                            reader.reset();
+                        }
+                    }
+                } else {
+                    sb.append((char) c);
+                }
+            } else if (c == '"' && sb.length() == 0 && !quoted) {
+                quoted = true;
+                inQuotes = true;
+            } else if (c == ',') {
+                values.add(sb.toString());
+                sb.setLength(0);
+                quoted = false;
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r') {
+                    reader.mark(1);
+                    if (reader.read() != '\n') {
+                        reader.reset();
+                    }
+                }
+                values.add(sb.toString());
+                return values;
+            } else {
+                sb.append((char) c);
+            }
+            c = reader.read();
+        }
+    }
+
+    /**
+     * Writes a row. The values are quoted only if they need to be.
+     * 
+     * @param writer
+     *            the writer
+     * @param values
+     *            the values of the row, where null is written as empty
+     * @throws IOException
+     */
+    static void writeRow(Writer writer, List<String> values) throws IOException {
+        boolean first = true;
+        for (String value : values) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            if (value == null)
+                continue;
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                    || value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+                writer.write('"');
+                writer.write(value.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(value);
+            }
+        }
+        writer.write("\r\n");
+    }
+}
@@ -0,0 +1,37 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The receiver of a downloaded file.
+ *
+ */
+public interface DownloadCallback {
+    /**
+     * Receives the content of the file. The stream is read directly from
+     * the connection and closed after this method returns.
+     * 
+     * @param input
+     *            the content of the file
+     * @param contentLength
+     *            the length of the content, or -1 if unknown
+     * @throws IOException
+     */
+    public void onReceive(InputStream input, long contentLength)
+            throws IOException;
+}
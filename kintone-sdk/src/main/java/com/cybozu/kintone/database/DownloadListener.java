@@ -0,0 +1,44 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * The listener of the progress of {@link BulkDownloader}.
+ * It is called from multiple threads.
+ *
+ */
+public interface DownloadListener {
+    /**
+     * Called when a file was downloaded.
+     * 
+     * @param file
+     *            the downloaded file
+     * @param bytes
+     *            the number of the downloaded bytes
+     */
+    public void onDownloaded(FileDto file, long bytes);
+
+    /**
+     * Called when a file failed to be downloaded.
+     * 
+     * @param file
+     *            the file
+     * @param e
+     *            the cause of the failure
+     */
+    public void onFailed(FileDto file, DBException e);
+}
@@ -28,6 +28,7 @@ public class Field {
     private Object value;
 
     private LazyUploader lazyUploader = null;
+    private boolean changed = true;
     
     /**
      * Constructor
@@ -95,6 +96,25 @@ public class Field {
      */
     public void setValue(Object value) {
         this.value = value;
+        this.changed = true;
+    }
+
+    /**
+     * Returns true if the value was set after the record was retrieved.
+     * The changes of the list values made in place are not detected, but
+     * they are found by the snapshot of the record.
+     * @return true if the value was set
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Sets the change flag.
+     * @param changed true if the value was set
+     */
+    void setChanged(boolean changed) {
+        this.changed = changed;
     }
 
     /**
@@ -215,6 +235,7 @@ public class Field {
      */
     public void setLazyUploader(LazyUploader lazyUploader) {;
         this.lazyUploader = lazyUploader;
+        this.changed = true;
     }
 
     /**
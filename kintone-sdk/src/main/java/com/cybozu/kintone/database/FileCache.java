@@ -0,0 +1,306 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * A persistent cache of the downloaded files on the local disk. The files
+ * are keyed by the file key, and the least recently used files are evicted
+ * when the total size exceeds the limit. A file is written to a temporary
+ * file and renamed atomically, so readers never see a partial file. The
+ * concurrent downloads of the same file key are collapsed into one.
+ * <p>
+ * The returned files belong to the cache and should not be modified.
+ */
+public class FileCache {
+
+    private static final String TEMP_PREFIX = ".download";
+
+    private Connection connection;
+    private File directory;
+    private long maxBytes;
+    private long totalBytes = 0;
+    private Map<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private ConcurrentMap<String, FutureTask<File>> loading = new ConcurrentHashMap<String, FutureTask<File>>();
+
+    /**
+     * Constructor. The files already in the directory are reused.
+     * 
+     * @param connection
+     *            the connection object
+     * @param directory
+     *            the directory of the cache
+     * @param maxBytes
+     *            the maximum total size of the cached files
+     * @throws DBException
+     */
+    public FileCache(Connection connection, File directory, long maxBytes)
+            throws DBException {
+        this.connection = connection;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new DBException("cannot create directory: " + directory);
+        }
+        load();
+    }
+
+    /**
+     * Gets the file from the cache, or downloads it if not cached.
+     * 
+     * @param fileKey
+     *            file key
+     * @return the cached file
+     * @throws DBException
+     */
+    public File get(final String fileKey) throws DBException {
+        File file = lookup(fileKey);
+        if (file != null)
+            return file;
+
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws DBException {
+                return download(fileKey);
+            }
+        });
+        FutureTask<File> current = loading.putIfAbsent(fileKey, task);
+        if (current == null) {
+            current = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(fileKey, task);
+            }
+        }
+        try {
+            return current.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException(e, "interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DBException) {
+                throw (DBException) e.getCause();
+            }
+            throw new DBException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns if the file is cached.
+     * 
+     * @param fileKey
+     *            file key
+     * @return true if cached
+     */
+    public boolean contains(String fileKey) {
+        return lookup(fileKey) != null;
+    }
+
+    /**
+     * Removes the file from the cache.
+     * 
+     * @param fileKey
+     *            file key
+     */
+    public synchronized void invalidate(String fileKey) {
+        Long size = entries.remove(fileKey);
+        if (size != null) {
+            totalBytes -= size;
+            toFile(fileKey).delete();
+        }
+    }
+
+    /**
+     * Removes all files from the cache.
+     */
+    public synchronized void clear() {
+        for (String fileKey : entries.keySet()) {
+            toFile(fileKey).delete();
+        }
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * @return the total size of the cached files
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the number of the cached files
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the cached file and marks it as recently used.
+     * 
+     * @param fileKey
+     *            file key
+     * @return the cached file, or null if not cached
+     */
+    private synchronized File lookup(String fileKey) {
+        Long size = entries.get(fileKey);
+        if (size == null)
+            return null;
+        File file = toFile(fileKey);
+        if (!file.exists()) {
+            // deleted by others
+            entries.remove(fileKey);
+            totalBytes -= size;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Downloads the file into the cache.
+     * 
+     * @param fileKey
+     *            file key
+     * @return the cached file
+     * @throws DBException
+     */
+    private File download(String fileKey) throws DBException {
+        File file = toFile(fileKey);
+        File temp;
+        try {
+            temp = File.createTempFile(TEMP_PREFIX, null, directory);
+        } catch (IOException e) {
+            throw new DBException(e, "cannot create temporary file");
+        }
+        try {
+            try {
+                OutputStream os = new FileOutputStream(temp);
+                try {
+                    connection.downloadFile(fileKey, os);
+                } finally {
+                    os.close();
+                }
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new DBException(e, "cannot write file");
+            }
+        } finally {
+            temp.delete();
+        }
+        put(fileKey, file.length());
+        return file;
+    }
+
+    /**
+     * Adds the file to the index and evicts the least recently used files.
+     * 
+     * @param fileKey
+     *            file key
+     * @param size
+     *            the size of the file
+     */
+    private synchronized void put(String fileKey, long size) {
+        Long old = entries.put(fileKey, size);
+        if (old != null) {
+            totalBytes -= old;
+        }
+        totalBytes += size;
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(fileKey))
+                continue;
+            it.remove();
+            totalBytes -= entry.getValue();
+            toFile(entry.getKey()).delete();
+        }
+    }
+
+    /**
+     * Loads the index from the files in the directory, in the order of the
+     * last modified time.
+     */
+    private synchronized void load() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long t1 = f1.lastModified();
+                long t2 = f2.lastModified();
+                return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (!file.isFile())
+                continue;
+            if (file.getName().startsWith(TEMP_PREFIX)) {
+                // left by an interrupted download
+                file.delete();
+                continue;
+            }
+            try {
+                String fileKey = URLDecoder.decode(file.getName(), "UTF-8");
+                entries.put(fileKey, file.length());
+                totalBytes += file.length();
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            } catch (IllegalArgumentException e) {
+                // not a cached file
+            }
+        }
+    }
+
+    /**
+     * Gets the path of the cached file.
+     * 
+     * @param fileKey
+     *            file key
+     * @return the file
+     */
+    private File toFile(String fileKey) {
+        try {
+            return new File(directory, URLEncoder.encode(fileKey, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
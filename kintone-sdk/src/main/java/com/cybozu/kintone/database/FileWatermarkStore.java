@@ -0,0 +1,107 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * Implemented class of watermark store for using a properties file.
+ * The file is rewritten to a temporary file and renamed, so a crash never
+ * leaves a broken watermark.
+ */
+public class FileWatermarkStore implements WatermarkStore {
+
+    private File file;
+
+    /**
+     * Constructor
+     * @param file
+     *            the properties file which stores the watermarks
+     */
+    public FileWatermarkStore(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized Watermark load(long app) throws DBException {
+        Properties props = read();
+        String value = props.getProperty(String.valueOf(app));
+        if (value == null) return null;
+
+        int pos = value.lastIndexOf(',');
+        if (pos < 0) {
+            throw new DBException("invalid watermark: " + value);
+        }
+        try {
+            return new Watermark(value.substring(0, pos),
+                    Long.valueOf(value.substring(pos + 1)));
+        } catch (NumberFormatException e) {
+            throw new DBException("invalid watermark: " + value);
+        }
+    }
+
+    @Override
+    public synchronized void save(long app, Watermark watermark) throws DBException {
+        Properties props = read();
+        props.setProperty(String.valueOf(app), watermark.toString());
+
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            FileOutputStream os = new FileOutputStream(temp);
+            try {
+                props.store(os, null);
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new DBException(e, "failed to save the watermark");
+        }
+    }
+
+    /**
+     * Reads the properties file.
+     * @return the properties
+     * @throws DBException
+     */
+    private Properties read() throws DBException {
+        Properties props = new Properties();
+        if (!file.exists()) return props;
+
+        try {
+            InputStream is = new FileInputStream(file);
+            try {
+                props.load(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            throw new DBException(e, "failed to load the watermark");
+        }
+        return props;
+    }
+}
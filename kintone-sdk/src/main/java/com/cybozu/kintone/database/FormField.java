@@ -0,0 +1,115 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A data transfer object represents a field definition of the form.
+ */
+public class FormField {
+    private String code;
+    private String label;
+    private String type;
+    private boolean required;
+    private boolean unique;
+    private List<String> options;
+    private Map<String, FormField> fields;
+
+    /**
+     * Constructor
+     * @param code
+     *            field code
+     * @param label
+     *            field label
+     * @param type
+     *            field type string such as "SINGLE_LINE_TEXT"
+     * @param required
+     *            true if the field is required
+     * @param unique
+     *            true if the value must be unique
+     * @param options
+     *            the options of the selection fields, or null
+     * @param fields
+     *            the fields in the subtable, or null
+     */
+    public FormField(String code, String label, String type, boolean required,
+            boolean unique, List<String> options, Map<String, FormField> fields) {
+        this.code = code;
+        this.label = label;
+        this.type = type;
+        this.required = required;
+        this.unique = unique;
+        this.options = options;
+        this.fields = fields;
+    }
+
+    /**
+     * @return field code
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @return field label
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return field type string
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return field type, or null if the field has no value such as a group
+     */
+    public FieldType getFieldType() {
+        return type == null ? null : FieldType.getEnum(type);
+    }
+
+    /**
+     * @return true if the field is required
+     */
+    public boolean isRequired() {
+        return required;
+    }
+
+    /**
+     * @return true if the value must be unique
+     */
+    public boolean isUnique() {
+        return unique;
+    }
+
+    /**
+     * @return the options of the selection fields, or null
+     */
+    public List<String> getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the fields in the subtable, or null
+     */
+    public Map<String, FormField> getFields() {
+        return fields;
+    }
+}
@@ -0,0 +1,268 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * The field definitions of an application, retrieved from the form API.
+ * <p>
+ * The schema provides the field types to the json decoder and encoder, so
+ * that values are decoded and encoded by the types of the form instead of
+ * the types of the setter methods, and validates records before they are
+ * sent.
+ */
+public class FormSchema {
+    private long app;
+    private long revision;
+    private Map<String, FormField> fields;
+    private Map<String, FormField> allFields = new HashMap<String, FormField>();
+    private JsonParser parser;
+
+    /**
+     * Constructor
+     * @param app
+     *            application id
+     * @param revision
+     *            the revision of the application settings
+     * @param fields
+     *            the map of the field code and the field definition
+     */
+    public FormSchema(long app, long revision, Map<String, FormField> fields) {
+        this.app = app;
+        this.revision = revision;
+        this.fields = Collections.unmodifiableMap(fields);
+        for (FormField field : fields.values()) {
+            allFields.put(field.getCode(), field);
+            if (field.getFields() != null) {
+                allFields.putAll(field.getFields());
+            }
+        }
+        this.parser = new JsonParser(this);
+    }
+
+    /**
+     * @return application id
+     */
+    public long getApp() {
+        return app;
+    }
+
+    /**
+     * @return the revision of the application settings
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * @return the map of the field code and the field definition, which
+     *         does not contain the fields in the subtables
+     */
+    public Map<String, FormField> getFields() {
+        return fields;
+    }
+
+    /**
+     * Gets the field definition including the fields in the subtables.
+     * @param code
+     *            field code
+     * @return the field definition, or null if not found
+     */
+    public FormField getField(String code) {
+        return allFields.get(code);
+    }
+
+    /**
+     * Gets the field type including the fields in the subtables.
+     * @param code
+     *            field code
+     * @return the field type, or null if not found
+     */
+    public FieldType getFieldType(String code) {
+        FormField field = allFields.get(code);
+        if (field == null)
+            return null;
+        return field.getFieldType();
+    }
+
+    /**
+     * Gets the json parser which decodes and encodes the records of this
+     * application by the field types of the form.
+     * @return the json parser
+     */
+    public JsonParser getParser() {
+        return parser;
+    }
+
+    /**
+     * Returns true if the field can not be written. These fields are
+     * skipped by the validation, so the records retrieved by select can be
+     * written.
+     * @param type
+     *            field type
+     * @return true if the field is read-only
+     */
+    static boolean isReadOnly(FieldType type) {
+        switch (type) {
+        case CALC:
+        case RECORD_NUMBER:
+        case STATUS:
+        case STATUS_ASSIGNEE:
+        case CATEGORY:
+        case __ID__:
+        case __REVISION__:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Validates the changed fields of the record before it is inserted or
+     * updated. The read-only fields are skipped.
+     * @param record
+     *            the record object
+     * @throws DBException
+     *             if the record has unknown fields or values which do not
+     *             fit the field types
+     */
+    public void validate(Record record) throws DBException {
+        List<String> errors = new ArrayList<String>();
+        validate(record, errors);
+        if (!errors.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("invalid record");
+            for (String error : errors) {
+                sb.append("; " + error);
+            }
+            throw new DBException(new String(sb));
+        }
+    }
+
+    /**
+     * Validates the record and collects the errors.
+     * @param record
+     *            the record object
+     * @param errors
+     *            the list where the errors are added
+     */
+    private void validate(Record record, List<String> errors) {
+        for (String name : record.getChangedFieldNames()) {
+            Field field = record.getField(name);
+            FormField def = allFields.get(name);
+            if (def == null || def.getFieldType() == null) {
+                errors.add(name + ": unknown field");
+                continue;
+            }
+            if (isReadOnly(def.getFieldType()))
+                continue;
+            String error = check(def, field);
+            if (error != null) {
+                errors.add(name + ": " + error);
+            } else if (def.getFieldType() == FieldType.SUBTABLE
+                    && !field.isEmpty()) {
+                for (Record row : field.getAsSubtable()) {
+                    validate(row, errors);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the value of the field.
+     * @param def
+     *            the field definition
+     * @param field
+     *            the field object
+     * @return the error message, or null if the value is valid
+     */
+    private String check(FormField def, Field field) {
+        FieldType type = def.getFieldType();
+        if (field.isEmpty() || field.isLazyUpload())
+            return null;
+
+        Object value = field.getValue();
+        switch (type) {
+        case NUMBER:
+            if (value instanceof Long)
+                return null;
+            try {
+                new BigDecimal(value.toString());
+                return null;
+            } catch (NumberFormatException e) {
+                return "not a number: " + value;
+            }
+        case RADIO_BUTTON:
+        case DROP_DOWN:
+            if (value instanceof List)
+                return "a single value is expected";
+            if (def.getOptions() != null && value.toString().length() > 0
+                    && !def.getOptions().contains(value.toString()))
+                return "unknown option: " + value;
+            return null;
+        case CHECK_BOX:
+        case MULTI_SELECT:
+            if (!(value instanceof List))
+                return "a list of values is expected";
+            if (def.getOptions() != null) {
+                for (Object option : (List<?>) value) {
+                    if (!def.getOptions().contains(option))
+                        return "unknown option: " + option;
+                }
+            }
+            return null;
+        case DATE:
+            if (!value.toString().matches("\\d{4}-\\d{2}-\\d{2}"))
+                return "not a date: " + value;
+            return null;
+        case TIME:
+            if (!value.toString().matches("\\d{2}:\\d{2}(:\\d{2})?"))
+                return "not a time: " + value;
+            return null;
+        case DATETIME:
+        case CREATED_TIME:
+        case UPDATED_TIME:
+            try {
+                QueryParser.parseDateTime(value.toString());
+                return null;
+            } catch (IllegalArgumentException e) {
+                return "not a date time: " + value;
+            }
+        case CREATOR:
+        case MODIFIER:
+            if (!(value instanceof UserDto))
+                return "a user is expected";
+            return null;
+        case USER_SELECT:
+        case FILE:
+        case SUBTABLE:
+            if (!(value instanceof List))
+                return "a list is expected";
+            return null;
+        default:
+            if (value instanceof List)
+                return "a single value is expected";
+            return null;
+        }
+    }
+}
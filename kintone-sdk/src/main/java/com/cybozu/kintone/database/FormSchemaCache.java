@@ -0,0 +1,101 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * A cache of the form schemas. When a cached schema gets older than the
+ * time to live, only the revision of the application settings is retrieved
+ * and the schema is kept unless the revision was changed.
+ */
+public class FormSchemaCache {
+
+    private Connection connection;
+    private long ttl;
+    private Map<Long, Entry> schemas = new ConcurrentHashMap<Long, Entry>();
+
+    /**
+     * A cached schema.
+     */
+    private static class Entry {
+        FormSchema schema;
+        volatile long checkedAt;
+
+        Entry(FormSchema schema, long checkedAt) {
+            this.schema = schema;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param connection
+     *            the connection object
+     * @param ttl
+     *            the interval of the change check in milliseconds
+     */
+    public FormSchemaCache(Connection connection, long ttl) {
+        this.connection = connection;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Gets the form schema.
+     * 
+     * @param app
+     *            application id
+     * @return the form schema
+     * @throws DBException
+     */
+    public FormSchema get(long app) throws DBException {
+        long now = System.currentTimeMillis();
+        Entry entry = schemas.get(app);
+        if (entry != null) {
+            if (now - entry.checkedAt < ttl) {
+                return entry.schema;
+            }
+            long revision = connection.getAppRevision(app);
+            if (revision >= 0 && revision == entry.schema.getRevision()) {
+                entry.checkedAt = now;
+                return entry.schema;
+            }
+        }
+        FormSchema schema = connection.fetchFormSchema(app);
+        schemas.put(app, new Entry(schema, now));
+        return schema;
+    }
+
+    /**
+     * Removes the schema from the cache.
+     * 
+     * @param app
+     *            application id
+     */
+    public void invalidate(long app) {
+        schemas.remove(app);
+    }
+
+    /**
+     * Removes all schemas from the cache.
+     */
+    public void clear() {
+        schemas.clear();
+    }
+}
@@ -0,0 +1,78 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A hash index which finds the records by the value of a field in constant
+ * time.
+ */
+public class HashIndex extends AbstractRecordIndex {
+
+    private Map<Object, Set<Long>> map = new HashMap<Object, Set<Long>>();
+
+    /**
+     * Constructor
+     * @param field
+     *            the field code of the indexed field
+     */
+    public HashIndex(String field) {
+        super(field);
+    }
+
+    /**
+     * Gets the ids of the records which have the value.
+     * @param value
+     *            field value
+     * @return the set of the record ids
+     */
+    public synchronized Set<Long> get(String value) {
+        Set<Long> ids = map.get(toKey(value));
+        if (ids == null)
+            return Collections.emptySet();
+        return new TreeSet<Long>(ids);
+    }
+
+    @Override
+    protected void clearKeys() {
+        map.clear();
+    }
+
+    @Override
+    protected void addKey(Object key, long id) {
+        Set<Long> ids = map.get(key);
+        if (ids == null) {
+            ids = new TreeSet<Long>();
+            map.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    @Override
+    protected void removeKey(Object key, long id) {
+        Set<Long> ids = map.get(key);
+        if (ids == null)
+            return;
+        ids.remove(id);
+        if (ids.isEmpty()) {
+            map.remove(key);
+        }
+    }
+}
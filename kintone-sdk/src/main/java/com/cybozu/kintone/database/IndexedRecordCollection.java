@@ -0,0 +1,312 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A collection of records keyed by the record id with secondary indexes.
+ * The indexes are updated incrementally whenever a record is put, replaced
+ * or removed, so a lookup by an indexed field does not scan the records.
+ * This class is thread safe.
+ */
+public class IndexedRecordCollection {
+
+    private TreeMap<Long, Record> records = new TreeMap<Long, Record>();
+    private List<RecordIndex> indexes = new ArrayList<RecordIndex>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Creates a hash index on the field. The existing records are indexed.
+     * 
+     * @param field
+     *            field code
+     * @return the index object
+     */
+    public HashIndex createHashIndex(String field) {
+        HashIndex index = new HashIndex(field);
+        addIndex(index);
+        return index;
+    }
+
+    /**
+     * Creates a sorted index on the field. The existing records are indexed.
+     * 
+     * @param field
+     *            field code
+     * @return the index object
+     */
+    public SortedIndex createSortedIndex(String field) {
+        SortedIndex index = new SortedIndex(field);
+        addIndex(index);
+        return index;
+    }
+
+    /**
+     * Adds an index. The existing records are indexed.
+     * 
+     * @param index
+     *            the index object
+     */
+    public void addIndex(RecordIndex index) {
+        lock.writeLock().lock();
+        try {
+            for (Record record : records.values()) {
+                index.add(record);
+            }
+            indexes.add(index);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the record.
+     * 
+     * @param id
+     *            record id
+     * @return the record object or null if not found
+     */
+    public Record get(long id) {
+        lock.readLock().lock();
+        try {
+            return records.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the records which have the value using the index on the field.
+     * 
+     * @param field
+     *            field code
+     * @param value
+     *            field value
+     * @return the list of the records in the order of the record id
+     */
+    public List<Record> findEqual(String field, String value) {
+        lock.readLock().lock();
+        try {
+            RecordIndex index = getIndex(field, HashIndex.class);
+            if (index == null) {
+                index = getIndex(field, SortedIndex.class);
+            }
+            if (index == null) {
+                throw new IllegalArgumentException("no index on " + field);
+            }
+            Set<Long> ids;
+            if (index instanceof HashIndex) {
+                ids = ((HashIndex) index).get(value);
+            } else {
+                ids = ((SortedIndex) index).get(value);
+            }
+            return toRecords(ids);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the records whose value is in the range using the sorted index on
+     * the field.
+     * 
+     * @param field
+     *            field code
+     * @param from
+     *            the lower bound (inclusive), or null for no bound
+     * @param to
+     *            the upper bound (exclusive), or null for no bound
+     * @return the list of the records in the order of the record id
+     */
+    public List<Record> findRange(String field, String from, String to) {
+        lock.readLock().lock();
+        try {
+            RecordIndex index = getIndex(field, SortedIndex.class);
+            if (index == null) {
+                throw new IllegalArgumentException("no sorted index on " + field);
+            }
+            return toRecords(((SortedIndex) index).range(from, true, to, false));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets all records in the order of the record id.
+     * 
+     * @return the list of the records
+     */
+    public List<Record> getAll() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<Record>(records.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the ids of all records.
+     * 
+     * @return the set of the record ids
+     */
+    public Set<Long> getIds() {
+        lock.readLock().lock();
+        try {
+            return new TreeSet<Long>(records.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of the records.
+     * 
+     * @return record count
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return records.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Puts the records. Records which have the same id are replaced.
+     * 
+     * @param list
+     *            the records to be put
+     */
+    public void putAll(Collection<Record> list) {
+        lock.writeLock().lock();
+        try {
+            for (Record record : list) {
+                Record old = records.put(record.getId(), record);
+                for (RecordIndex index : indexes) {
+                    if (old != null) {
+                        index.remove(old);
+                    }
+                    index.add(record);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the records.
+     * 
+     * @param ids
+     *            the ids of the records to be removed
+     * @return the number of the removed records
+     */
+    public int removeAll(Collection<Long> ids) {
+        lock.writeLock().lock();
+        try {
+            int count = 0;
+            for (Long id : ids) {
+                Record old = records.remove(id);
+                if (old == null)
+                    continue;
+                for (RecordIndex index : indexes) {
+                    index.remove(old);
+                }
+                count++;
+            }
+            return count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces all records with the given records at once, so the readers
+     * see either the old or the new records.
+     * 
+     * @param list
+     *            the new records
+     */
+    public void replaceAll(Collection<Record> list) {
+        lock.writeLock().lock();
+        try {
+            clear();
+            putAll(list);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all records.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            records.clear();
+            for (RecordIndex index : indexes) {
+                index.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the index of the class on the field.
+     * 
+     * @param field
+     *            field code
+     * @param type
+     *            the class of the index
+     * @return the index object, or null if not found
+     */
+    private RecordIndex getIndex(String field, Class<? extends RecordIndex> type) {
+        for (RecordIndex index : indexes) {
+            if (index.getField().equals(field) && type.isInstance(index)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Converts the ids to the records.
+     * 
+     * @param ids
+     *            the record ids
+     * @return the list of the records
+     */
+    private List<Record> toRecords(Set<Long> ids) {
+        List<Record> list = new ArrayList<Record>();
+        for (Long id : ids) {
+            Record record = records.get(id);
+            if (record != null) {
+                list.add(record);
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,436 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.cybozu.kintone.database.WriteJournal.Entry;
+import com.cybozu.kintone.database.WriteJournal.Operation;
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * A writer which records each batch to the write-ahead journal before
+ * sending it. A batch which failed because kintone was unreachable or
+ * unavailable stays in the journal and is sent again by {@link #drain()},
+ * in the order the batches were written. A batch which failed for any other
+ * reason is recorded as failed and skipped, and its exception is kept by
+ * the batch id until it is taken by {@link #getFailure(String)}. The
+ * batches left by a crash are
+ * also sent again by {@link #drain()}, so an importer can skip the batch
+ * ids whose status is not UNKNOWN and resume where it stopped. The statuses
+ * of the completed batches are forgotten when the journal is compacted, so
+ * they are known only since the last compaction.
+ * <p>
+ * Updates and deletes can be sent again safely. An insert is sent again
+ * only as an upsert when the key field of the application is set by
+ * {@link #setKeyField(long, String)}, otherwise a batch inserted just
+ * before a crash may be inserted twice.
+ */
+public class JournaledWriter {
+    static final long COMPACT_SIZE = 16 * 1024 * 1024;
+
+    private Connection connection;
+    private WriteJournal journal;
+    private Map<Long, String> keyFields = new ConcurrentHashMap<Long, String>();
+    private Map<String, DBException> failures = new ConcurrentHashMap<String, DBException>();
+    private ScheduledExecutorService scheduler = null;
+    private volatile DBException lastError = null;
+
+    /**
+     * Constructor. The batches left in the journal are not sent until
+     * {@link #drain()} is called.
+     * 
+     * @param connection
+     *            the connection object
+     * @param journal
+     *            the write-ahead journal
+     */
+    public JournaledWriter(Connection connection, WriteJournal journal) {
+        this.connection = connection;
+        this.journal = journal;
+    }
+
+    /**
+     * Sets the key field of the application, which prohibits duplicate
+     * values. The inserts into the application are sent as the upserts by
+     * the field, so they can be sent again safely.
+     * 
+     * @param app
+     *            application id
+     * @param keyField
+     *            the name of the key field
+     */
+    public void setKeyField(long app, String keyField) {
+        keyFields.put(app, keyField);
+    }
+
+    /**
+     * Gets the status of the batch.
+     * 
+     * @param id
+     *            the id of the batch
+     * @return the status
+     */
+    public WriteJournal.Status getStatus(String id) {
+        return journal.getStatus(id);
+    }
+
+    /**
+     * Takes the exception of the batch which failed while draining. The
+     * exception is removed, so it is returned only once.
+     * 
+     * @param id
+     *            the id of the batch
+     * @return the exception, or null if the batch did not fail or the
+     *         exception was already taken
+     */
+    public DBException getFailure(String id) {
+        return failures.remove(id);
+    }
+
+    /**
+     * Gets the exception of the last background drain which failed. The
+     * background drain keeps running at the next interval after a failure.
+     * 
+     * @return the exception, or null if no background drain failed
+     */
+    public DBException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Inserts the records as a batch.
+     * 
+     * @param id
+     *            the id of the batch, or null to generate it
+     * @param app
+     *            application id
+     * @param records
+     *            up to MAX_WRITE_RECORDS records
+     * @return true if the batch was sent, or false if it was queued
+     * @throws DBException
+     *             if the batch failed and should not be retried
+     */
+    public boolean insert(String id, long app, List<Record> records)
+            throws DBException {
+        String keyField = keyFields.get(app);
+        if (keyField != null) {
+            return write(id, Operation.UPSERT, app, keyField, records);
+        }
+        return write(id, Operation.INSERT, app, null, records);
+    }
+
+    /**
+     * Inserts or updates the records by the key field as a batch.
+     * 
+     * @param id
+     *            the id of the batch, or null to generate it
+     * @param app
+     *            application id
+     * @param keyField
+     *            the name of the field to identify the records
+     * @param records
+     *            up to MAX_WRITE_RECORDS records
+     * @return true if the batch was sent, or false if it was queued
+     * @throws DBException
+     *             if the batch failed and should not be retried
+     */
+    public boolean upsert(String id, long app, String keyField,
+            List<Record> records) throws DBException {
+        return write(id, Operation.UPSERT, app, keyField, records);
+    }
+
+    /**
+     * Updates the records as a batch.
+     * 
+     * @param id
+     *            the id of the batch, or null to generate it
+     * @param app
+     *            application id
+     * @param records
+     *            up to MAX_WRITE_RECORDS records which have the ids
+     * @return true if the batch was sent, or false if it was queued
+     * @throws DBException
+     *             if the batch failed and should not be retried
+     */
+    public boolean updateByRecords(String id, long app, List<Record> records)
+            throws DBException {
+        return write(id, Operation.UPDATE, app, null, records);
+    }
+
+    /**
+     * Deletes the records as a batch.
+     * 
+     * @param id
+     *            the id of the batch, or null to generate it
+     * @param app
+     *            application id
+     * @param ids
+     *            up to MAX_WRITE_RECORDS record ids
+     * @return true if the batch was sent, or false if it was queued
+     * @throws DBException
+     *             if the batch failed and should not be retried
+     */
+    public boolean delete(String id, long app, List<Long> ids)
+            throws DBException {
+        List<Record> records = new ArrayList<Record>();
+        for (Long recordId : ids) {
+            Record record = new Record();
+            record.setId(recordId);
+            records.add(record);
+        }
+        return write(id, Operation.DELETE, app, null, records);
+    }
+
+    /**
+     * Sends the queued batches in order until a batch cannot be sent.
+     * A batch which failed and should not be retried is recorded as failed
+     * and skipped, and its exception is kept for {@link #getFailure(String)}.
+     * The journal is compacted when all batches are sent and it is grown
+     * larger than COMPACT_SIZE.
+     * 
+     * @return the number of the batches sent
+     * @throws DBException
+     *             if the journal cannot be written
+     */
+    public synchronized int drain() throws DBException {
+        int count = 0;
+        for (Entry entry : journal.getPending()) {
+            Boolean sent = send(entry);
+            if (sent == null) {
+                break;
+            }
+            if (sent) {
+                count++;
+            }
+        }
+        if (journal.getPending().isEmpty() && journal.size() > COMPACT_SIZE) {
+            journal.compact();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of the queued batches.
+     * 
+     * @return the number of the batches
+     */
+    public int getPendingCount() {
+        return journal.getPending().size();
+    }
+
+    /**
+     * Starts draining the queue periodically. The failure of a background
+     * drain is kept for {@link #getLastError()}.
+     * 
+     * @param interval
+     *            the interval in milliseconds
+     */
+    public synchronized void start(long interval) {
+        if (scheduler != null)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "kintone-journal-drain");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain();
+                } catch (DBException e) {
+                    lastError = e;
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops draining and closes the journal.
+     * 
+     * @throws DBException
+     */
+    public void close() throws DBException {
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+        journal.close();
+    }
+
+    /**
+     * Records the batch and sends it unless older batches are queued.
+     * 
+     * @param id
+     *            the id of the batch, or null to generate it
+     * @param operation
+     *            the operation
+     * @param app
+     *            application id
+     * @param keyField
+     *            the key field of the upsert, or null
+     * @param records
+     *            the records of the batch
+     * @return true if the batch was sent
+     * @throws DBException
+     *             if this batch failed and should not be retried
+     */
+    private synchronized boolean write(String id, Operation operation,
+            long app, String keyField, List<Record> records) throws DBException {
+        if (records.size() > Connection.MAX_WRITE_RECORDS) {
+            throw new IllegalArgumentException("too many records in a batch: "
+                    + records.size());
+        }
+        // files can not be queued, so they are uploaded before the batch
+        for (Record record : records) {
+            for (Map.Entry<String, Field> field : record.getEntrySet()) {
+                connection.lazyUpload(field.getValue());
+            }
+        }
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+        }
+        List<Record> journaled = records;
+        if (operation == Operation.UPDATE || operation == Operation.UPSERT) {
+            journaled = toChangedRecords(records, keyField);
+        }
+        journal.begin(new Entry(id, operation, app, keyField, journaled));
+        drain();
+        DBException failure = failures.remove(id);
+        if (failure != null) {
+            throw failure;
+        }
+        WriteJournal.Status status = journal.getStatus(id);
+        if (status == WriteJournal.Status.COMMITTED && journaled != records) {
+            for (Record record : records) {
+                if (record.isTracking()) {
+                    record.clearChanges();
+                }
+            }
+        }
+        return status != WriteJournal.Status.PENDING;
+    }
+
+    /**
+     * Copies the records with their changed fields only. The journal does
+     * not keep which fields are changed, so the replayed records would send
+     * all of their fields otherwise.
+     * 
+     * @param records
+     *            the records
+     * @param keyField
+     *            the key field which is copied even if it is not changed, or
+     *            null
+     * @return the list of the records with the changed fields
+     */
+    private static List<Record> toChangedRecords(List<Record> records,
+            String keyField) {
+        List<Record> list = new ArrayList<Record>();
+        for (Record record : records) {
+            if (!record.isTracking()) {
+                list.add(record);
+                continue;
+            }
+            Record copy = new Record(record.getId(), record.getRevision());
+            for (String name : record.getChangedFieldNames()) {
+                copy.addField(name, record.getField(name));
+            }
+            if (keyField != null && copy.getField(keyField) == null
+                    && record.getField(keyField) != null) {
+                copy.addField(keyField, record.getField(keyField));
+            }
+            list.add(copy);
+        }
+        return list;
+    }
+
+    /**
+     * Sends the batch and records the result.
+     * 
+     * @param entry
+     *            the batch
+     * @return true if the batch was sent, false if it failed and should not
+     *         be retried, or null if it should be retried later
+     * @throws DBException
+     *             if the journal cannot be written
+     */
+    private Boolean send(Entry entry) throws DBException {
+        try {
+            switch (entry.getOperation()) {
+            case INSERT:
+                connection.insert(entry.getApp(), entry.getRecords());
+                break;
+            case UPSERT:
+                connection.upsert(entry.getApp(), entry.getKeyField(), entry.getRecords());
+                break;
+            case UPDATE:
+                connection.updateByRecords(entry.getApp(), entry.getRecords());
+                break;
+            case DELETE:
+                connection.deleteByRecords(entry.getApp(), entry.getRecords());
+                break;
+            }
+        } catch (DBException e) {
+            if (isRetriable(e)) {
+                return null;
+            }
+            journal.fail(entry.getId(), e.getMessage());
+            failures.put(entry.getId(), e);
+            return false;
+        }
+        journal.commit(entry.getId());
+        return true;
+    }
+
+    /**
+     * Returns true if the error may be resolved by retrying, that is, kintone
+     * was unreachable or answered 429 or 5xx. The errors detected locally and
+     * the other responses of kintone are not retried.
+     * 
+     * @param e
+     *            the exception
+     * @return true if the batch should be retried
+     */
+    static boolean isRetriable(DBException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                // not reached to kintone, or timed out
+                return true;
+            }
+            if (cause instanceof DBException) {
+                int status = ((DBException) cause).getHttpStatus();
+                if (status == 429 || status >= 500) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
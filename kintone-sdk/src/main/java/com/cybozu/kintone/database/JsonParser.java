@@ -35,6 +35,7 @@ import java.io.OutputStreamWriter;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -43,7 +44,9 @@ import com.cybozu.kintone.database.exception.TypeMismatchException;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonWriter;
@@ -56,10 +59,35 @@ import com.google.gson.stream.JsonWriter;
  */
 public class JsonParser {
 
+    private FormSchema schema = null;
+
     public JsonParser() {
 
     }
 
+    /**
+     * Constructor
+     * @param schema
+     *            the form schema whose field types are used instead of the
+     *            types in the json or the types of the field objects
+     */
+    public JsonParser(FormSchema schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Gets the field type of the form schema.
+     * @param fieldName
+     *            the field name
+     * @return the field type, or null if no schema is given or the field is
+     *         unknown
+     */
+    private FieldType getSchemaType(String fieldName) {
+        if (schema == null)
+            return null;
+        return schema.getFieldType(fieldName);
+    }
+
     /**
      * Converts the json string to the error response object.
      * @param json
@@ -96,6 +124,7 @@ public class JsonParser {
             for (JsonElement elem: records) {
                 Record record = readRecord(elem);
                 if (record != null) {
+                    record.clearChanges();
                     rs.add(record);
                 }
             }
@@ -145,7 +174,12 @@ public class JsonParser {
         if (!fieldElem.isJsonObject()) return null;
         JsonObject obj = fieldElem.getAsJsonObject();
         
-        FieldType type = FieldType.getEnum(obj.get("type").getAsString());
+        FieldType type = getSchemaType(fieldName);
+        if (type == null) {
+            JsonElement typeElem = obj.get("type");
+            if (typeElem == null) return null;
+            type = FieldType.getEnum(typeElem.getAsString());
+        }
         JsonElement element = obj.get("value");
 
         Object object = null;
@@ -300,7 +334,10 @@ public class JsonParser {
         writer.name(field.getName());
         writer.beginObject();
         writer.name("value");
-        FieldType type = field.getFieldType();
+        FieldType type = getSchemaType(field.getName());
+        if (type == null) {
+            type = field.getFieldType();
+        }
 
         if (field.isEmpty()) {
             writer.value("");
@@ -319,7 +356,9 @@ public class JsonParser {
                 break;
             case NUMBER:
             case RECORD_NUMBER:
-                writer.value(String.valueOf(field.getAsLong()));
+                // the string value keeps the decimals, and a long value is
+                // written as before
+                writer.value(field.getAsString());
                 break;
             case DATE:
             case TIME:
@@ -442,6 +481,133 @@ public class JsonParser {
         return new String(baos.toByteArray());
     }
 
+    /**
+     * Converts the record object to the json string. Unlike the json for
+     * insert or update, the field types, the record id and the revision are
+     * also written so that {@link #jsonToRecord(String)} restores the same
+     * record.
+     * @param record
+     *            a record object
+     * @return the json string
+     */
+    public String recordToJson(Record record) {
+        Gson gson = new Gson();
+        return gson.toJson(recordToJsonObject(record));
+    }
+
+    /**
+     * Converts the record object to the json object.
+     * @param record
+     *            a record object
+     * @return the json object
+     */
+    private JsonObject recordToJsonObject(Record record) {
+        JsonObject obj = new JsonObject();
+
+        if (record.getId() >= 0) {
+            JsonObject id = new JsonObject();
+            id.addProperty("type", FieldType.__ID__.toString());
+            id.addProperty("value", String.valueOf(record.getId()));
+            obj.add("$id", id);
+        }
+        if (record.hasRevision()) {
+            JsonObject revision = new JsonObject();
+            revision.addProperty("type", FieldType.__REVISION__.toString());
+            revision.addProperty("value", String.valueOf(record.getRevision()));
+            obj.add("$revision", revision);
+        }
+        for (Map.Entry<String,Field> entry: record.getEntrySet()) {
+            obj.add(entry.getKey(), fieldToJsonObject(entry.getValue()));
+        }
+        return obj;
+    }
+
+    /**
+     * Converts the field object to the json object with the field type.
+     * @param field
+     *            a field object
+     * @return the json object
+     */
+    JsonObject fieldToJsonObject(Field field) {
+        Gson gson = new Gson();
+        JsonObject elem = new JsonObject();
+        elem.addProperty("type", field.getFieldType().toString());
+        if (field.isEmpty()) {
+            elem.add("value", JsonNull.INSTANCE);
+        } else if (field.getFieldType() == FieldType.SUBTABLE) {
+            JsonArray rows = new JsonArray();
+            for (Record row : field.getAsSubtable()) {
+                JsonObject rowObj = new JsonObject();
+                rowObj.addProperty("id", String.valueOf(row.getId()));
+                rowObj.add("value", recordToJsonObject(row));
+                rows.add(rowObj);
+            }
+            elem.add("value", rows);
+        } else {
+            elem.add("value", gson.toJsonTree(field.getValue()));
+        }
+        return elem;
+    }
+
+    /**
+     * Converts the json string created by {@link #recordToJson(Record)} or a
+     * record element of the REST API to the record object.
+     * @param json
+     *            a json string
+     * @return the record object
+     * @throws IOException
+     */
+    public Record jsonToRecord(String json) throws IOException {
+        com.google.gson.JsonParser parser = new com.google.gson.JsonParser();
+        JsonElement root;
+        try {
+            root = parser.parse(json);
+        } catch (JsonParseException e) {
+            throw new IOException("malformed record json", e);
+        }
+        return readRecord(root);
+    }
+
+    /**
+     * Converts the records to a json array without losing the field types.
+     * @param records
+     *            the record objects
+     * @return json string
+     */
+    public String recordsToJson(List<Record> records) {
+        JsonArray array = new JsonArray();
+        for (Record record : records) {
+            array.add(recordToJsonObject(record));
+        }
+        Gson gson = new Gson();
+        return gson.toJson(array);
+    }
+
+    /**
+     * Converts the json array generated by recordsToJson to the records.
+     * @param json
+     *            a json string
+     * @return the record objects
+     * @throws IOException
+     */
+    public List<Record> jsonToRecords(String json) throws IOException {
+        com.google.gson.JsonParser parser = new com.google.gson.JsonParser();
+        JsonElement root;
+        try {
+            root = parser.parse(json);
+        } catch (JsonParseException e) {
+            throw new IOException("malformed records json", e);
+        }
+        if (!root.isJsonArray()) {
+            throw new IOException("malformed records json");
+        }
+        List<Record> records = new ArrayList<Record>();
+        for (JsonElement elem : root.getAsJsonArray()) {
+            records.add(readRecord(elem));
+        }
+        return records;
+    }
+
     /**
      * Retrieves the array of the Long values from json.
      * @param json
@@ -507,7 +673,7 @@ public class JsonParser {
             }
             writer.name("record");
             writer.beginObject();
-            for (String fieldName : record.getFieldNames()) {
+            for (String fieldName : record.getChangedFieldNames()) {
                 Field field = record.getField(fieldName);
                 try {
                     writeField(writer, field);
@@ -527,7 +693,8 @@ public class JsonParser {
     }
     
     /**
-     * Generates the json string for update method.
+     * Generates the json string for update method. Only the changed fields
+     * of the records are written.
      * @param app
      *            the application id
      * @param records
@@ -554,7 +721,62 @@ public class JsonParser {
             }
             writer.name("record");
             writer.beginObject();
-            for (String fieldName : record.getFieldNames()) {
+            for (String fieldName : record.getChangedFieldNames()) {
+                Field field = record.getField(fieldName);
+                try {
+                    writeField(writer, field);
+                } catch (TypeMismatchException e) {
+                    e.printStackTrace();
+                }
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+        writer.endArray();
+
+        writer.endObject();
+
+        writer.close();
+        return new String(baos.toByteArray());
+    }
+    
+    /**
+     * Generates the json string for update method with the update key.
+     * @param app
+     *            the application id
+     * @param keyField
+     *            the name of the field to identify the records
+     * @param records
+     *            an array of the updated records which have the key field
+     * @return
+     *        json string
+     * @throws IOException
+     */
+    public String recordsToJsonForUpdateByKey(long app, String keyField,
+            List<Record> records) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(baos));
+
+        writer.beginObject();
+        writer.name("app").value(app);
+        writer.name("records");
+
+        writer.beginArray();
+        for (Record record : records) {
+            writer.beginObject();
+            writer.name("updateKey");
+            writer.beginObject();
+            writer.name("field").value(keyField);
+            writer.name("value").value(record.getString(keyField));
+            writer.endObject();
+            if (record.hasRevision()) {
+                writer.name("revision").value(record.getRevision());
+            }
+            writer.name("record");
+            writer.beginObject();
+            for (String fieldName : record.getChangedFieldNames()) {
+                if (fieldName.equals(keyField))
+                    continue;
                 Field field = record.getField(fieldName);
                 try {
                     writeField(writer, field);
@@ -672,4 +894,107 @@ public class JsonParser {
 
         return gson.fromJson(apps, collectionType);
     }
-} 
+
+    /**
+     * Converts the json string of the form fields to the form schema.
+     * @param app
+     *            the application id
+     * @param json
+     *            a json string
+     * @return form schema object
+     * @throws IOException
+     */
+    public FormSchema jsonToFormSchema(long app, String json) throws IOException {
+        com.google.gson.JsonParser parser = new com.google.gson.JsonParser();
+        JsonElement root;
+        try {
+            root = parser.parse(json);
+        } catch (JsonParseException e) {
+            throw new IOException("malformed form fields json", e);
+        }
+        if (!root.isJsonObject())
+            throw new IOException("invalid form fields");
+
+        return new FormSchema(app, readRevision(root),
+                readFormFields(root.getAsJsonObject().get("properties")));
+    }
+
+    /**
+     * Reads the properties of the form fields.
+     * @param element
+     *            json element of the properties
+     * @return the map of the field code and the field definition
+     */
+    private Map<String, FormField> readFormFields(JsonElement element) {
+        Map<String, FormField> fields = new LinkedHashMap<String, FormField>();
+        if (element == null || !element.isJsonObject())
+            return fields;
+
+        for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+            if (!entry.getValue().isJsonObject())
+                continue;
+            JsonObject prop = entry.getValue().getAsJsonObject();
+            String code = prop.has("code") ? prop.get("code").getAsString() : entry.getKey();
+            String label = prop.has("label") ? prop.get("label").getAsString() : null;
+            String type = prop.has("type") ? prop.get("type").getAsString() : null;
+            boolean required = prop.has("required") && prop.get("required").getAsBoolean();
+            boolean unique = prop.has("unique") && prop.get("unique").getAsBoolean();
+
+            List<String> options = null;
+            JsonElement optionsElem = prop.get("options");
+            if (optionsElem != null && optionsElem.isJsonObject()) {
+                options = new ArrayList<String>();
+                for (Map.Entry<String, JsonElement> option : optionsElem.getAsJsonObject().entrySet()) {
+                    options.add(option.getKey());
+                }
+            } else if (optionsElem != null && optionsElem.isJsonArray()) {
+                options = jsonToStringArray(optionsElem);
+            }
+            Map<String, FormField> subfields = null;
+            if (prop.has("fields")) {
+                subfields = readFormFields(prop.get("fields"));
+            }
+            fields.put(code, new FormField(code, label, type, required, unique,
+                    options, subfields));
+        }
+        return fields;
+    }
+
+    /**
+     * Retrieves the revision from json string.
+     * @param json
+     *            a json string
+     * @return the revision, or -1 if not found
+     * @throws IOException
+     */
+    public long jsonToRevision(String json) throws IOException {
+        com.google.gson.JsonParser parser = new com.google.gson.JsonParser();
+        JsonElement root;
+        try {
+            root = parser.parse(json);
+        } catch (JsonParseException e) {
+            throw new IOException("malformed revision json", e);
+        }
+        return readRevision(root);
+    }
+
+    /**
+     * Reads the revision of the json object.
+     * @param root
+     *            json element
+     * @return the revision, or -1 if not found
+     * @throws IOException
+     */
+    private long readRevision(JsonElement root) throws IOException {
+        if (!root.isJsonObject() || !root.getAsJsonObject().has("revision"))
+            return -1;
+        JsonElement revision = root.getAsJsonObject().get("revision");
+        try {
+            if (revision.isJsonPrimitive()) {
+                return revision.getAsLong();
+            }
+        } catch (NumberFormatException e) {
+        }
+        throw new IOException("invalid revision: " + revision);
+    }
+}
@@ -0,0 +1,316 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * An embedded on-disk store of the records of one application.
+ * <p>
+ * The records are kept in memory in an {@link IndexedRecordCollection},
+ * on which secondary indexes can be declared, and persisted to a snapshot file and a
+ * journal file in the directory. Every change is appended to the journal,
+ * and {@link #compact()} rewrites the snapshot and truncates the journal.
+ * Both files contain one entry per line, so an entry cut off by a crash is
+ * simply skipped when the store is opened again. The journal is then folded
+ * into the snapshot, so no new entry is appended to a cut-off one.
+ * {@link #flush()} forces the journal to the disk.
+ */
+public class LocalRecordStore {
+    private static final String SNAPSHOT_FILE = "records.snapshot";
+    private static final String JOURNAL_FILE = "records.journal";
+    private static final char PUT = '+';
+    private static final char REMOVE = '-';
+
+    private File dir;
+    private IndexedRecordCollection records = new IndexedRecordCollection();
+    private FileOutputStream journalStream;
+    private Writer journal;
+    private JsonParser parser = new JsonParser();
+
+    /**
+     * Opens the store. The directory is created if it does not exist.
+     * 
+     * @param dir
+     *            the directory of the store
+     * @throws DBException
+     */
+    public LocalRecordStore(File dir) throws DBException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new DBException("cannot create directory: " + dir);
+        }
+        try {
+            File journalFile = new File(dir, JOURNAL_FILE);
+            load(new File(dir, SNAPSHOT_FILE));
+            load(journalFile);
+            if (journalFile.length() > 0) {
+                // the last entry may have been cut off by a crash, and new
+                // entries must not be appended to it
+                compact();
+            } else {
+                openJournal(true);
+            }
+        } catch (IOException e) {
+            throw new DBException(e, "failed to open the local store");
+        }
+    }
+
+    /**
+     * Gets the records kept in memory, on which the secondary indexes can be
+     * created and looked up.
+     * 
+     * @return the record collection
+     */
+    public IndexedRecordCollection getRecords() {
+        return records;
+    }
+
+    /**
+     * Gets the record.
+     * 
+     * @param id
+     *            record id
+     * @return the record object or null if not found
+     */
+    public Record get(long id) {
+        return records.get(id);
+    }
+
+    /**
+     * Gets all records in the order of the record id.
+     * 
+     * @return the list of the records
+     */
+    public List<Record> getAll() {
+        return records.getAll();
+    }
+
+    /**
+     * Gets the ids of all records.
+     * 
+     * @return the set of the record ids
+     */
+    public Set<Long> getIds() {
+        return records.getIds();
+    }
+
+    /**
+     * Gets the number of the records.
+     * 
+     * @return record count
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Stores the records. Records which have the same id are replaced.
+     * 
+     * @param list
+     *            the records to be stored
+     * @throws DBException
+     */
+    public synchronized void putAll(Collection<Record> list) throws DBException {
+        try {
+            for (Record record : list) {
+                journal.write(PUT);
+                journal.write(parser.recordToJson(record));
+                journal.write('\n');
+            }
+            records.putAll(list);
+        } catch (IOException e) {
+            throw new DBException(e, "failed to write the local store");
+        }
+    }
+
+    /**
+     * Removes the records.
+     * 
+     * @param ids
+     *            the ids of the records to be removed
+     * @throws DBException
+     */
+    public synchronized void removeAll(Collection<Long> ids) throws DBException {
+        try {
+            for (Long id : ids) {
+                if (records.get(id) == null)
+                    continue;
+                journal.write(REMOVE);
+                journal.write(String.valueOf(id));
+                journal.write('\n');
+            }
+            records.removeAll(ids);
+        } catch (IOException e) {
+            throw new DBException(e, "failed to write the local store");
+        }
+    }
+
+    /**
+     * Removes all records.
+     * 
+     * @throws DBException
+     */
+    public synchronized void clear() throws DBException {
+        records.clear();
+        compact();
+    }
+
+    /**
+     * Replaces all records with the given records and rewrites the snapshot.
+     * The secondary indexes are kept and rebuilt.
+     * 
+     * @param list
+     *            the new records
+     * @throws DBException
+     */
+    public synchronized void replaceAll(Collection<Record> list) throws DBException {
+        records.replaceAll(list);
+        compact();
+    }
+
+    /**
+     * Flushes the journal and forces it to the disk.
+     * 
+     * @throws DBException
+     */
+    public synchronized void flush() throws DBException {
+        try {
+            journal.flush();
+            journalStream.getFD().sync();
+        } catch (IOException e) {
+            throw new DBException(e, "failed to write the local store");
+        }
+    }
+
+    /**
+     * Rewrites the snapshot with the current records and truncates the
+     * journal.
+     * 
+     * @throws DBException
+     */
+    public synchronized void compact() throws DBException {
+        try {
+            File snapshot = new File(dir, SNAPSHOT_FILE);
+            File temp = new File(dir, SNAPSHOT_FILE + ".tmp");
+            FileOutputStream os = new FileOutputStream(temp);
+            try {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(os,
+                        "UTF-8"));
+                for (Record record : records.getAll()) {
+                    writer.write(PUT);
+                    writer.write(parser.recordToJson(record));
+                    writer.write('\n');
+                }
+                writer.flush();
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+            Files.move(temp.toPath(), snapshot.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            if (journal != null) {
+                journal.close();
+            }
+            openJournal(false);
+        } catch (IOException e) {
+            throw new DBException(e, "failed to compact the local store");
+        }
+    }
+
+    /**
+     * Flushes and closes the store.
+     * 
+     * @throws DBException
+     */
+    public synchronized void close() throws DBException {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            throw new DBException(e, "failed to close the local store");
+        }
+    }
+
+    /**
+     * Opens the journal file.
+     * 
+     * @param append
+     *            true to keep the current entries
+     * @throws IOException
+     */
+    private void openJournal(boolean append) throws IOException {
+        journalStream = new FileOutputStream(new File(dir, JOURNAL_FILE),
+                append);
+        journal = new BufferedWriter(new OutputStreamWriter(journalStream,
+                "UTF-8"));
+    }
+
+    /**
+     * Replays the entries of the file.
+     * 
+     * @param file
+     *            the snapshot or the journal file
+     * @throws IOException
+     */
+    private void load(File file) throws IOException {
+        if (!file.exists())
+            return;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 2)
+                    continue;
+                String body = line.substring(1);
+                try {
+                    if (line.charAt(0) == PUT) {
+                        records.putAll(Collections.singletonList(parser
+                                .jsonToRecord(body)));
+                    } else if (line.charAt(0) == REMOVE) {
+                        records.removeAll(Collections.singletonList(Long
+                                .valueOf(body)));
+                    }
+                } catch (IOException e) {
+                    // an entry cut off by a crash
+                } catch (NumberFormatException e) {
+                    // an entry cut off by a crash
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cybozu.kintone.database.exception.QuerySyntaxException;
+
+/**
+ * A query compiled from the kintone query string, such as
+ * <code>Status in ("open", "pending") and Count &gt; 10 order by Count desc limit 20</code>.
+ * <p>
+ * The condition is compiled into a {@link RecordFilter} and the "order by"
+ * clause into a comparator once, so the query can be evaluated repeatedly
+ * against local records, for example the records of an {@link AppMirror}.
+ * Compiled queries are cached by the query string, except for the queries
+ * which use date functions such as TODAY() because their result changes
+ * with the time.
+ * <p>
+ * As kintone does, the records are sorted by the record id in descending
+ * order if no "order by" clause is given. Unlike kintone, the number of the
+ * records is not limited unless a "limit" clause is given.
+ */
+public class Query {
+    private static final int CACHE_SIZE = 256;
+
+    private static final Map<String, Query> cache = new LinkedHashMap<String, Query>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private String condition;
+    private RecordFilter filter;
+    private Comparator<Record> comparator;
+    private int limit;
+    private int offset;
+
+    /**
+     * Constructor
+     * 
+     * @param condition
+     *            the condition part of the query string
+     * @param filter
+     *            compiled condition
+     * @param comparator
+     *            compiled "order by" clause
+     * @param limit
+     *            the limit, or -1 for no limit
+     * @param offset
+     *            the offset
+     */
+    Query(String condition, RecordFilter filter, Comparator<Record> comparator,
+            int limit, int offset) {
+        this.condition = condition;
+        this.filter = filter;
+        this.comparator = comparator;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /**
+     * Compiles the query string.
+     * 
+     * @param query
+     *            query string
+     * @return the compiled query
+     * @throws QuerySyntaxException
+     *             if the query string is invalid
+     */
+    public static Query compile(String query) {
+        if (query == null) {
+            query = "";
+        }
+        synchronized (cache) {
+            Query compiled = cache.get(query);
+            if (compiled != null)
+                return compiled;
+        }
+
+        QueryParser parser = new QueryParser(query);
+        Query compiled = parser.parse();
+        if (!parser.isTimeDependent()) {
+            synchronized (cache) {
+                cache.put(query, compiled);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Gets the condition part of the query string, without "order by",
+     * "limit" and "offset".
+     * 
+     * @return the condition string, which may be empty
+     */
+    public String getCondition() {
+        return condition;
+    }
+
+    /**
+     * Gets the compiled condition.
+     * 
+     * @return the filter object
+     */
+    public RecordFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Gets the compiled "order by" clause.
+     * 
+     * @return the comparator
+     */
+    public Comparator<Record> getComparator() {
+        return comparator;
+    }
+
+    /**
+     * Gets the limit.
+     * 
+     * @return the limit, or -1 if no limit is given
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the offset.
+     * 
+     * @return the offset
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns true if the record satisfies the condition.
+     * 
+     * @param record
+     *            the record object
+     * @return true if the record satisfies the condition
+     */
+    public boolean matches(Record record) {
+        return filter.matches(record);
+    }
+
+    /**
+     * Evaluates the query against the records.
+     * 
+     * @param records
+     *            the records to be searched
+     * @return the matched records, sorted and limited
+     */
+    public List<Record> apply(Collection<Record> records) {
+        List<Record> list = new ArrayList<Record>();
+        for (Record record : records) {
+            if (filter.matches(record)) {
+                list.add(record);
+            }
+        }
+        Collections.sort(list, comparator);
+
+        int from = Math.min(offset, list.size());
+        int to = list.size();
+        if (limit >= 0) {
+            to = Math.min(from + limit, to);
+        }
+        return new ArrayList<Record>(list.subList(from, to));
+    }
+}
@@ -0,0 +1,844 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.math.BigDecimal;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.cybozu.kintone.database.exception.QuerySyntaxException;
+
+/**
+ * Parser of the kintone query string. This class builds the filters and the
+ * comparator of a {@link Query}.
+ */
+class QueryParser {
+    private static final int IDENT = 0;
+    private static final int STRING = 1;
+    private static final int NUMBER = 2;
+    private static final int OPERATOR = 3;
+    private static final int LPAREN = 4;
+    private static final int RPAREN = 5;
+    private static final int COMMA = 6;
+    private static final int EOF = 7;
+
+    private static final String ID_FIELD = "$id";
+    private static final String REVISION_FIELD = "$revision";
+
+    private static final RecordFilter ALL = new RecordFilter() {
+        @Override
+        public boolean matches(Record record) {
+            return true;
+        }
+    };
+
+    private String text;
+    private List<Token> tokens = new ArrayList<Token>();
+    private int pos = 0;
+    private boolean timeDependent = false;
+
+    /**
+     * A token of the query string.
+     */
+    private static class Token {
+        int type;
+        String text;
+        int start;
+
+        Token(int type, String text, int start) {
+            this.type = type;
+            this.text = text;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Operators of the conditions.
+     */
+    enum Operator {
+        EQ, NE, GT, GE, LT, LE, IN, NOT_IN, LIKE, NOT_LIKE, EMPTY, NOT_EMPTY
+    }
+
+    /**
+     * Constructor
+     * @param text
+     *            query string
+     */
+    QueryParser(String text) {
+        this.text = text;
+        tokenize();
+    }
+
+    /**
+     * Returns true if the query uses date functions.
+     * @return true if the result of the query depends on the current time
+     */
+    boolean isTimeDependent() {
+        return timeDependent;
+    }
+
+    /**
+     * Parses the query string.
+     * @return the compiled query
+     */
+    Query parse() {
+        RecordFilter filter = ALL;
+        if (!isKeyword("order") && !isKeyword("limit") && !isKeyword("offset")
+                && peek().type != EOF) {
+            filter = parseOr();
+        }
+        String condition = text.substring(0, peek().start).trim();
+
+        Comparator<Record> comparator = null;
+        int limit = -1;
+        int offset = 0;
+        if (acceptKeyword("order")) {
+            expectKeyword("by");
+            List<Comparator<Record>> keys = new ArrayList<Comparator<Record>>();
+            do {
+                String field = expect(IDENT).text;
+                boolean desc = false;
+                if (acceptKeyword("desc")) {
+                    desc = true;
+                } else {
+                    acceptKeyword("asc");
+                }
+                keys.add(new FieldComparator(field, desc));
+            } while (accept(COMMA));
+            comparator = new CompositeComparator(keys);
+        }
+        while (peek().type != EOF) {
+            if (acceptKeyword("limit")) {
+                limit = parseInt();
+            } else if (acceptKeyword("offset")) {
+                offset = parseInt();
+            } else {
+                throw error("unexpected token");
+            }
+        }
+        if (comparator == null) {
+            comparator = new FieldComparator(ID_FIELD, true);
+        }
+        return new Query(condition, filter, comparator, limit, offset);
+    }
+
+    /**
+     * Parses the "or" expression.
+     * @return the filter
+     */
+    private RecordFilter parseOr() {
+        final List<RecordFilter> filters = new ArrayList<RecordFilter>();
+        filters.add(parseAnd());
+        while (acceptKeyword("or")) {
+            filters.add(parseAnd());
+        }
+        if (filters.size() == 1)
+            return filters.get(0);
+
+        return new RecordFilter() {
+            @Override
+            public boolean matches(Record record) {
+                for (RecordFilter filter : filters) {
+                    if (filter.matches(record))
+                        return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Parses the "and" expression.
+     * @return the filter
+     */
+    private RecordFilter parseAnd() {
+        final List<RecordFilter> filters = new ArrayList<RecordFilter>();
+        filters.add(parsePrimary());
+        while (acceptKeyword("and")) {
+            filters.add(parsePrimary());
+        }
+        if (filters.size() == 1)
+            return filters.get(0);
+
+        return new RecordFilter() {
+            @Override
+            public boolean matches(Record record) {
+                for (RecordFilter filter : filters) {
+                    if (!filter.matches(record))
+                        return false;
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Parses a parenthesized expression or a condition.
+     * @return the filter
+     */
+    private RecordFilter parsePrimary() {
+        if (accept(LPAREN)) {
+            RecordFilter filter = parseOr();
+            expect(RPAREN);
+            return filter;
+        }
+        String field = expect(IDENT).text;
+        List<Literal> values = new ArrayList<Literal>();
+        Operator op;
+
+        if (peek().type == OPERATOR) {
+            op = toOperator(next().text);
+            values.add(parseValue());
+        } else if (acceptKeyword("in")) {
+            op = Operator.IN;
+            parseList(values);
+        } else if (acceptKeyword("like")) {
+            op = Operator.LIKE;
+            values.add(parseValue());
+        } else if (acceptKeyword("not")) {
+            if (acceptKeyword("in")) {
+                op = Operator.NOT_IN;
+                parseList(values);
+            } else {
+                expectKeyword("like");
+                op = Operator.NOT_LIKE;
+                values.add(parseValue());
+            }
+        } else if (acceptKeyword("is")) {
+            op = acceptKeyword("not") ? Operator.NOT_EMPTY : Operator.EMPTY;
+            expectKeyword("empty");
+        } else {
+            throw error("operator expected");
+        }
+        return new Condition(field, op, values);
+    }
+
+    /**
+     * Parses the list of values.
+     * @param values
+     *            the list where the values are added
+     */
+    private void parseList(List<Literal> values) {
+        expect(LPAREN);
+        do {
+            values.add(parseValue());
+        } while (accept(COMMA));
+        expect(RPAREN);
+    }
+
+    /**
+     * Parses a value.
+     * @return the literal
+     */
+    private Literal parseValue() {
+        Token token = next();
+        switch (token.type) {
+        case STRING:
+        case NUMBER:
+            return new Literal(token.text);
+        case IDENT:
+            List<String> args = new ArrayList<String>();
+            expect(LPAREN);
+            if (!accept(RPAREN)) {
+                do {
+                    args.add(next().text);
+                } while (accept(COMMA));
+                expect(RPAREN);
+            }
+            timeDependent = true;
+            return Literal.function(token.text.toUpperCase(Locale.ENGLISH), args);
+        default:
+            pos--;
+            throw error("value expected");
+        }
+    }
+
+    /**
+     * Parses an integer.
+     * @return the integer value
+     */
+    private int parseInt() {
+        Token token = expect(NUMBER);
+        try {
+            return Integer.parseInt(token.text);
+        } catch (NumberFormatException e) {
+            throw error("integer expected");
+        }
+    }
+
+    /**
+     * Converts the operator token.
+     * @param op
+     *            operator string
+     * @return the operator
+     */
+    private Operator toOperator(String op) {
+        if (op.equals("=")) return Operator.EQ;
+        if (op.equals("!=")) return Operator.NE;
+        if (op.equals(">")) return Operator.GT;
+        if (op.equals(">=")) return Operator.GE;
+        if (op.equals("<")) return Operator.LT;
+        if (op.equals("<=")) return Operator.LE;
+        throw error("unknown operator " + op);
+    }
+
+    private Token peek() {
+        return tokens.get(pos);
+    }
+
+    private Token next() {
+        Token token = tokens.get(pos);
+        if (token.type != EOF) {
+            pos++;
+        }
+        return token;
+    }
+
+    private boolean accept(int type) {
+        if (peek().type != type)
+            return false;
+        pos++;
+        return true;
+    }
+
+    private Token expect(int type) {
+        if (peek().type != type) {
+            throw error("unexpected token");
+        }
+        return next();
+    }
+
+    private boolean isKeyword(String keyword) {
+        Token token = peek();
+        return token.type == IDENT && token.text.equalsIgnoreCase(keyword);
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        if (!isKeyword(keyword))
+            return false;
+        pos++;
+        return true;
+    }
+
+    private void expectKeyword(String keyword) {
+        if (!acceptKeyword(keyword)) {
+            throw error("\"" + keyword + "\" expected");
+        }
+    }
+
+    private QuerySyntaxException error(String message) {
+        return new QuerySyntaxException(message + " at " + peek().start
+                + ": " + text);
+    }
+
+    /**
+     * Splits the query string into the tokens.
+     */
+    private void tokenize() {
+        int i = 0;
+        int len = text.length();
+        while (i < len) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                tokens.add(new Token(LPAREN, "(", i++));
+            } else if (c == ')') {
+                tokens.add(new Token(RPAREN, ")", i++));
+            } else if (c == ',') {
+                tokens.add(new Token(COMMA, ",", i++));
+            } else if (c == '=' || c == '!' || c == '<' || c == '>') {
+                int start = i++;
+                if (i < len && text.charAt(i) == '=') {
+                    i++;
+                }
+                tokens.add(new Token(OPERATOR, text.substring(start, i), start));
+            } else if (c == '"') {
+                int start = i++;
+                StringBuilder sb = new StringBuilder();
+                while (true) {
+                    if (i >= len) {
+                        throw new QuerySyntaxException("unterminated string at "
+                                + start + ": " + text);
+                    }
+                    c = text.charAt(i++);
+                    if (c == '"')
+                        break;
+                    if (c == '\\' && i < len) {
+                        c = text.charAt(i++);
+                    }
+                    sb.append(c);
+                }
+                tokens.add(new Token(STRING, new String(sb), start));
+            } else {
+                int start = i;
+                while (i < len) {
+                    c = text.charAt(i);
+                    if (Character.isWhitespace(c) || "()=!<>,\"".indexOf(c) >= 0)
+                        break;
+                    i++;
+                }
+                String word = text.substring(start, i);
+                int type = word.matches("-?[0-9]+(\\.[0-9]+)?") ? NUMBER : IDENT;
+                tokens.add(new Token(type, word, start));
+            }
+        }
+        tokens.add(new Token(EOF, "", len));
+    }
+
+    /**
+     * A condition on a field. If the record has no field of the code, the
+     * fields of the same code in the subtable rows are tested and the
+     * condition is satisfied if any row satisfies it.
+     */
+    private static class Condition implements RecordFilter {
+        private String field;
+        private Operator op;
+        private List<Literal> values;
+
+        Condition(String field, Operator op, List<Literal> values) {
+            this.field = field;
+            this.op = op;
+            this.values = values;
+        }
+
+        @Override
+        public boolean matches(Record record) {
+            switch (op) {
+            case NE:
+                return !test(record, Operator.EQ);
+            case NOT_IN:
+                return !test(record, Operator.IN);
+            case NOT_LIKE:
+                return !test(record, Operator.LIKE);
+            case EMPTY:
+                return !test(record, Operator.NOT_EMPTY);
+            default:
+                return test(record, op);
+            }
+        }
+
+        /**
+         * Tests the positive operator against the values of the field.
+         */
+        private boolean test(Record record, Operator op) {
+            if (field.equals(ID_FIELD)) {
+                return testValue(FieldType.__ID__, String.valueOf(record.getId()), op);
+            }
+            if (field.equals(REVISION_FIELD)) {
+                return testValue(FieldType.__REVISION__,
+                        String.valueOf(record.getRevision()), op);
+            }
+            Field f = record.getField(field);
+            if (f != null) {
+                return testField(f, op);
+            }
+            for (Map.Entry<String, Field> entry : record.getEntrySet()) {
+                Field table = entry.getValue();
+                if (table.getFieldType() != FieldType.SUBTABLE || table.isEmpty())
+                    continue;
+                for (Record row : table.getAsSubtable()) {
+                    Field cell = row.getField(field);
+                    if (cell != null && testField(cell, op))
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean testField(Field f, Operator op) {
+            if (f.isEmpty())
+                return false;
+            Object value = f.getValue();
+            if (value instanceof List) {
+                for (Object elem : (List<?>) value) {
+                    if (testValue(f.getFieldType(), toText(elem), op))
+                        return true;
+                }
+                return false;
+            }
+            return testValue(f.getFieldType(), toText(value), op);
+        }
+
+        private boolean testValue(FieldType type, String value, Operator op) {
+            if (value == null || value.length() == 0)
+                return false;
+            switch (op) {
+            case NOT_EMPTY:
+                return true;
+            case LIKE:
+                return value.toLowerCase().contains(values.get(0).text.toLowerCase());
+            case IN:
+                for (Literal literal : values) {
+                    if (literal.compare(type, value) == 0)
+                        return true;
+                }
+                return false;
+            default:
+                int c = values.get(0).compare(type, value);
+                switch (op) {
+                case EQ: return c == 0;
+                case GT: return c > 0;
+                case GE: return c >= 0;
+                case LT: return c < 0;
+                case LE: return c <= 0;
+                default: return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compares the records by a field.
+     */
+    private static class FieldComparator implements Comparator<Record> {
+        private String field;
+        private boolean desc;
+
+        FieldComparator(String field, boolean desc) {
+            this.field = field;
+            this.desc = desc;
+        }
+
+        @Override
+        public int compare(Record r1, Record r2) {
+            int c;
+            if (field.equals(ID_FIELD)) {
+                c = r1.getId().compareTo(r2.getId());
+            } else if (field.equals(REVISION_FIELD)) {
+                c = r1.getRevision().compareTo(r2.getRevision());
+            } else {
+                Field f1 = r1.getField(field);
+                Field f2 = r2.getField(field);
+                String v1 = f1 == null || f1.isEmpty() ? null : toText(f1.getValue());
+                String v2 = f2 == null || f2.isEmpty() ? null : toText(f2.getValue());
+                if (v1 == null || v2 == null) {
+                    c = v1 == null ? (v2 == null ? 0 : -1) : 1;
+                } else {
+                    c = compareValues(f1.getFieldType(), v1, v2);
+                }
+            }
+            return desc ? -c : c;
+        }
+    }
+
+    /**
+     * Compares the records by several fields in order.
+     */
+    private static class CompositeComparator implements Comparator<Record> {
+        private List<Comparator<Record>> keys;
+
+        CompositeComparator(List<Comparator<Record>> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public int compare(Record r1, Record r2) {
+            for (Comparator<Record> key : keys) {
+                int c = key.compare(r1, r2);
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Converts the field value to the string to be compared.
+     * @param value
+     *            the field value or an element of the list value
+     * @return string value
+     */
+    static String toText(Object value) {
+        if (value == null) return null;
+        if (value instanceof UserDto) return ((UserDto) value).getCode();
+        if (value instanceof FileDto) return ((FileDto) value).getName();
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            return list.isEmpty() ? null : toText(list.get(0));
+        }
+        return value.toString();
+    }
+
+    /**
+     * Returns true if the field type has numeric values.
+     */
+    static boolean isNumeric(FieldType type) {
+        switch (type) {
+        case NUMBER:
+        case CALC:
+        case RECORD_NUMBER:
+        case __ID__:
+        case __REVISION__:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the field type has date time values.
+     */
+    static boolean isDateTime(FieldType type) {
+        switch (type) {
+        case DATETIME:
+        case CREATED_TIME:
+        case UPDATED_TIME:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Compares two values of the field type.
+     */
+    static int compareValues(FieldType type, String v1, String v2) {
+        if (isNumeric(type)) {
+            try {
+                return new BigDecimal(v1).compareTo(new BigDecimal(v2));
+            } catch (NumberFormatException e) {
+            }
+        } else if (isDateTime(type)) {
+            try {
+                return compareLong(parseDateTime(v1), parseDateTime(v2));
+            } catch (IllegalArgumentException e) {
+            }
+        }
+        return v1.compareTo(v2);
+    }
+
+    static int compareLong(long l1, long l2) {
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+
+    /**
+     * Parses the date time string such as "2012-02-03T09:00:00Z" or
+     * "2012-02-03T09:00+09:00" without SimpleDateFormat.
+     * @param s
+     *            date time string
+     * @return milliseconds since the epoch
+     */
+    static long parseDateTime(String s) {
+        try {
+            if (s.length() < 16 || s.charAt(4) != '-' || s.charAt(7) != '-'
+                    || s.charAt(10) != 'T' || s.charAt(13) != ':') {
+                throw new IllegalArgumentException(s);
+            }
+            int year = Integer.parseInt(s.substring(0, 4));
+            int month = Integer.parseInt(s.substring(5, 7));
+            int day = Integer.parseInt(s.substring(8, 10));
+            int hour = Integer.parseInt(s.substring(11, 13));
+            int minute = Integer.parseInt(s.substring(14, 16));
+            int second = 0;
+            int p = 16;
+            if (p < s.length() && s.charAt(p) == ':') {
+                second = Integer.parseInt(s.substring(17, 19));
+                p = 19;
+                if (p < s.length() && s.charAt(p) == '.') {
+                    p++;
+                    while (p < s.length() && Character.isDigit(s.charAt(p))) {
+                        p++;
+                    }
+                }
+            }
+            long offset = 0;
+            if (p < s.length()) {
+                char sign = s.charAt(p);
+                if (sign == '+' || sign == '-') {
+                    String zone = s.substring(p + 1).replace(":", "");
+                    offset = (Integer.parseInt(zone.substring(0, 2)) * 60 + Integer
+                            .parseInt(zone.substring(2, 4))) * 60000L;
+                    if (sign == '-') {
+                        offset = -offset;
+                    }
+                } else if (sign != 'Z') {
+                    throw new IllegalArgumentException(s);
+                }
+            }
+            long days = daysFromCivil(year, month, day);
+            return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L
+                    - offset;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(s);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException(s);
+        }
+    }
+
+    /**
+     * Gets the number of days since 1970-01-01 of the date.
+     */
+    private static long daysFromCivil(int y, int m, int d) {
+        y -= m <= 2 ? 1 : 0;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yoe = y - era * 400;
+        long doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * A value in the query. The value is parsed as a number and a date time
+     * in advance. A date time value is held as a range of the time, so that a
+     * date or a date function such as TODAY() matches the whole day.
+     */
+    static class Literal {
+        String text;
+        private BigDecimal decimal = null;
+        private boolean dateTime = false;
+        private long millisFrom;
+        private long millisTo;
+        private String dateFrom = null;
+        private String dateTo = null;
+
+        Literal(String text) {
+            this.text = text;
+            try {
+                decimal = new BigDecimal(text);
+            } catch (NumberFormatException e) {
+            }
+            try {
+                if (text.length() == 10) {
+                    Calendar from = Calendar.getInstance();
+                    from.clear();
+                    from.set(Integer.parseInt(text.substring(0, 4)),
+                            Integer.parseInt(text.substring(5, 7)) - 1,
+                            Integer.parseInt(text.substring(8, 10)));
+                    millisFrom = from.getTimeInMillis();
+                    from.add(Calendar.DATE, 1);
+                    millisTo = from.getTimeInMillis();
+                    dateTime = text.charAt(4) == '-' && text.charAt(7) == '-';
+                } else {
+                    millisFrom = parseDateTime(text);
+                    millisTo = millisFrom + 1;
+                    dateTime = true;
+                }
+            } catch (IllegalArgumentException e) {
+            } catch (IndexOutOfBoundsException e) {
+            }
+        }
+
+        /**
+         * Evaluates the date function.
+         */
+        static Literal function(String name, List<String> args) {
+            Calendar from = Calendar.getInstance();
+            from.set(Calendar.HOUR_OF_DAY, 0);
+            from.set(Calendar.MINUTE, 0);
+            from.set(Calendar.SECOND, 0);
+            from.set(Calendar.MILLISECOND, 0);
+            Calendar to = (Calendar) from.clone();
+            to.add(Calendar.DATE, 1);
+
+            if (name.equals("NOW")) {
+                Calendar now = Calendar.getInstance();
+                Literal literal = range(from, to);
+                literal.millisFrom = now.getTimeInMillis();
+                literal.millisTo = literal.millisFrom + 1;
+                return literal;
+            } else if (name.equals("TODAY")) {
+            } else if (name.equals("YESTERDAY")) {
+                from.add(Calendar.DATE, -1);
+                to.add(Calendar.DATE, -1);
+            } else if (name.equals("TOMORROW")) {
+                from.add(Calendar.DATE, 1);
+                to.add(Calendar.DATE, 1);
+            } else if (name.equals("FROM_TODAY")) {
+                if (args.size() != 2) {
+                    throw new QuerySyntaxException("FROM_TODAY requires 2 arguments");
+                }
+                int amount;
+                try {
+                    amount = Integer.parseInt(args.get(0));
+                } catch (NumberFormatException e) {
+                    throw new QuerySyntaxException("invalid argument: " + args.get(0));
+                }
+                int unit = toCalendarUnit(args.get(1));
+                from.add(unit, amount);
+                to.add(unit, amount);
+            } else if (name.equals("THIS_MONTH") || name.equals("LAST_MONTH")
+                    || name.equals("NEXT_MONTH")) {
+                from.set(Calendar.DATE, 1);
+                from.add(Calendar.MONTH, name.equals("THIS_MONTH") ? 0
+                        : (name.equals("LAST_MONTH") ? -1 : 1));
+                to = (Calendar) from.clone();
+                to.add(Calendar.MONTH, 1);
+            } else if (name.equals("THIS_YEAR") || name.equals("LAST_YEAR")
+                    || name.equals("NEXT_YEAR")) {
+                from.set(Calendar.DAY_OF_YEAR, 1);
+                from.add(Calendar.YEAR, name.equals("THIS_YEAR") ? 0
+                        : (name.equals("LAST_YEAR") ? -1 : 1));
+                to = (Calendar) from.clone();
+                to.add(Calendar.YEAR, 1);
+            } else {
+                throw new QuerySyntaxException("unsupported function: " + name);
+            }
+            return range(from, to);
+        }
+
+        private static int toCalendarUnit(String unit) {
+            String u = unit.toUpperCase(Locale.ENGLISH);
+            if (u.equals("DAYS")) return Calendar.DATE;
+            if (u.equals("WEEKS")) return Calendar.WEEK_OF_YEAR;
+            if (u.equals("MONTHS")) return Calendar.MONTH;
+            if (u.equals("YEARS")) return Calendar.YEAR;
+            throw new QuerySyntaxException("invalid unit: " + unit);
+        }
+
+        private static Literal range(Calendar from, Calendar to) {
+            DateFormat df = new SimpleDateFormat(Record.DATE_PATTERN);
+            Literal literal = new Literal(df.format(from.getTime()));
+            literal.dateFrom = literal.text;
+            literal.dateTo = df.format(to.getTime());
+            literal.millisFrom = from.getTimeInMillis();
+            literal.millisTo = to.getTimeInMillis();
+            return literal;
+        }
+
+        /**
+         * Compares the field value with this literal.
+         * @return a negative integer, zero, or a positive integer as the
+         *         field value is less than, equal to, or greater than this
+         */
+        int compare(FieldType type, String value) {
+            if (isNumeric(type) && decimal != null) {
+                try {
+                    return new BigDecimal(value).compareTo(decimal);
+                } catch (NumberFormatException e) {
+                }
+            } else if (isDateTime(type) && dateTime) {
+                try {
+                    long v = parseDateTime(value);
+                    if (v < millisFrom) return -1;
+                    if (v >= millisTo) return 1;
+                    return 0;
+                } catch (IllegalArgumentException e) {
+                }
+            } else if (type == FieldType.DATE && dateFrom != null) {
+                if (value.compareTo(dateFrom) < 0) return -1;
+                if (value.compareTo(dateTo) >= 0) return 1;
+                return 0;
+            }
+            return value.compareTo(text);
+        }
+    }
+}
@@ -16,12 +16,15 @@ package com.cybozu.kintone.database;
 
 import java.io.File;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -32,7 +35,14 @@ import com.cybozu.kintone.database.exception.TypeMismatchException;
 /**
  * A record object represents a row of the kintone application. You can retrieve
  * or store data by using this class.
- * 
+ * <p>
+ * The records retrieved by select track the changes of the fields, and only
+ * the changed fields are sent when they are updated. The fields set by the
+ * setter methods or {@link Field#setValue(Object)} are changed. If the list
+ * values such as the rows of a subtable are modified in place, take a
+ * snapshot by {@link #snapshot()} to find the changes by comparing the values.
+ * The records created by the constructors send all fields until
+ * {@link #clearChanges()} is called.
  */
 public class Record implements Cloneable {
     static public final String DATETIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss'Z'";
@@ -43,6 +53,10 @@ public class Record implements Cloneable {
 
     private HashMap<String, Field> fields = new HashMap<String, Field>();
 
+    private boolean tracking = false;
+    private HashSet<String> changed = new HashSet<String>();
+    private HashMap<String, String> snapshot = null;
+
     public Record() {
         this.id = -1;
         this.revision = -1;
@@ -124,7 +138,112 @@ public class Record implements Cloneable {
             }
         } else {
             fields.put(name, field);
+            changed.add(name);
+        }
+    }
+
+    /**
+     * Starts tracking the changes, or forgets the changes tracked. After
+     * this, only the fields changed are sent by the update methods. If a
+     * snapshot was taken, it is taken again.
+     */
+    public void clearChanges() {
+        tracking = true;
+        changed.clear();
+        for (Field field : fields.values()) {
+            field.setChanged(false);
+            if (field.getFieldType() == FieldType.SUBTABLE && !field.isEmpty()) {
+                for (Record row : field.getAsSubtable()) {
+                    row.clearChanges();
+                }
+            }
+        }
+        if (snapshot != null) {
+            JsonParser parser = new JsonParser();
+            snapshot.clear();
+            for (Map.Entry<String, Field> entry : fields.entrySet()) {
+                snapshot.put(entry.getKey(),
+                        parser.fieldToJsonObject(entry.getValue()).toString());
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of the field values and starts tracking the changes
+     * by comparing the values with the snapshot, which finds the changes
+     * made in place.
+     */
+    public void snapshot() {
+        snapshot = new HashMap<String, String>();
+        clearChanges();
+    }
+
+    /**
+     * Returns true if the changes are tracked.
+     * 
+     * @return true if the changes are tracked
+     */
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    /**
+     * Returns true if the field is changed. All fields are changed if the
+     * changes are not tracked.
+     * 
+     * @param name
+     *            field name
+     * @return true if the field is changed
+     */
+    public boolean isChanged(String name) {
+        return isChanged(name, snapshot != null ? new JsonParser() : null);
+    }
+
+    /**
+     * Gets the names of the changed fields.
+     * 
+     * @return the field names
+     */
+    public Set<String> getChangedFieldNames() {
+        JsonParser parser = snapshot != null ? new JsonParser() : null;
+        Set<String> names = new LinkedHashSet<String>();
+        for (String name : fields.keySet()) {
+            if (isChanged(name, parser)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns true if the field is changed.
+     * 
+     * @param name
+     *            field name
+     * @param parser
+     *            the parser to compare the values with the snapshot
+     * @return true if the field is changed
+     */
+    private boolean isChanged(String name, JsonParser parser) {
+        Field field = fields.get(name);
+        if (field == null)
+            return false;
+        if (!tracking)
+            return true;
+        if (snapshot != null) {
+            String value = snapshot.get(name);
+            return value == null
+                    || !value.equals(parser.fieldToJsonObject(field).toString());
         }
+        if (changed.contains(name) || field.isChanged())
+            return true;
+        if (field.getFieldType() == FieldType.SUBTABLE && !field.isEmpty()) {
+            for (Record row : field.getAsSubtable()) {
+                if (!row.getChangedFieldNames().isEmpty())
+                    return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -434,6 +553,45 @@ public class Record implements Cloneable {
         addField(name, field);
     }
 
+    /**
+     * Adds a new field and sets the file content.
+     * 
+     * @param name
+     *            field name
+     * @param data
+     *            file content
+     * @param fileName
+     *            file name
+     * @param contentType
+     *            content type
+     */
+    public void setFile(String name, byte[] data, String fileName,
+            String contentType) {
+        setFile(name, ByteBuffer.wrap(data), fileName, contentType);
+    }
+
+    /**
+     * Adds a new field and sets the file content. The remaining bytes of the
+     * buffer are uploaded.
+     * 
+     * @param name
+     *            field name
+     * @param data
+     *            file content
+     * @param fileName
+     *            file name
+     * @param contentType
+     *            content type
+     */
+    public void setFile(String name, ByteBuffer data, String fileName,
+            String contentType) {
+        Field field = new Field(name, FieldType.FILE, null);
+        LazyUploader uploader = new ByteBufferLazyUploader(data, fileName,
+                contentType);
+        field.setLazyUploader(uploader);
+        addField(name, field);
+    }
+
     /**
      * Adds a new field and sets the file keys.
      * 
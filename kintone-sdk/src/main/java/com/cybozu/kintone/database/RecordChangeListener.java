@@ -0,0 +1,38 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.List;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * An interface to receive the changed records.
+ *
+ */
+public interface RecordChangeListener {
+
+    /**
+     * Called with the records which were created or updated since the last
+     * watermark. The watermark is advanced only after this method returns
+     * normally, so the same records are delivered again if it throws.
+     * @param app
+     *            application id
+     * @param records
+     *            the changed records in the order of the updated time and id
+     * @throws DBException
+     */
+    public void onUpsert(long app, List<Record> records) throws DBException;
+}
@@ -0,0 +1,222 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * Captures the records which were created or updated since the last poll.
+ * <p>
+ * The poller keeps a watermark of (updated time, record id) per application
+ * and pages through the changes in that order, so records which share the
+ * same updated time are neither missed nor delivered twice. Since kintone
+ * stores the updated time only to the minute, records newer than the settle
+ * time are left for the next poll; otherwise a record updated later in the
+ * same minute with a smaller id would fall behind the watermark.
+ */
+public class RecordChangePoller {
+    public static final long DEFAULT_SETTLE_MILLIS = 60 * 1000;
+
+    private static final String ID_FIELD = "$id";
+
+    private Connection connection;
+    private String updatedTimeField;
+    private WatermarkStore store;
+    private RecordChangeListener listener;
+    private String condition = null;
+    private String[] columns = null;
+    private int limit = Connection.MAX_SELECT_RECORDS;
+    private long settleMillis = DEFAULT_SETTLE_MILLIS;
+
+    /**
+     * Constructor
+     * 
+     * @param connection
+     *            the connection object
+     * @param updatedTimeField
+     *            the field code of the updated time field
+     * @param store
+     *            the store which persists the watermarks
+     * @param listener
+     *            the listener which receives the changed records
+     */
+    public RecordChangePoller(Connection connection, String updatedTimeField,
+            WatermarkStore store, RecordChangeListener listener) {
+        this.connection = connection;
+        this.updatedTimeField = updatedTimeField;
+        this.store = store;
+        this.listener = listener;
+    }
+
+    /**
+     * Sets an additional query condition to narrow the captured records.
+     * 
+     * @param condition
+     *            query condition without "order by", "limit" and "offset"
+     */
+    public void setCondition(String condition) {
+        this.condition = condition;
+    }
+
+    /**
+     * Sets the column names to be retrieved. The updated time field and the
+     * record id are always retrieved.
+     * 
+     * @param columns
+     *            column names
+     */
+    public void setColumns(String[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * Sets the number of records retrieved by one request.
+     * 
+     * @param limit
+     *            page size (1 to 500)
+     */
+    public void setLimit(int limit) {
+        if (limit < 1 || limit > Connection.MAX_SELECT_RECORDS) {
+            throw new IllegalArgumentException("invalid limit: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Sets how long the changes are left unread after they were made.
+     * 
+     * @param settleMillis
+     *            the settle time in milliseconds
+     */
+    public void setSettleMillis(long settleMillis) {
+        this.settleMillis = settleMillis;
+    }
+
+    /**
+     * Retrieves all changes since the watermark and hands them to the
+     * listener page by page. The watermark is saved after each page was
+     * processed successfully.
+     * 
+     * @param app
+     *            application id
+     * @return the number of the changed records
+     * @throws DBException
+     */
+    public synchronized int poll(long app) throws DBException {
+        String settleTime = getSettleTime();
+        Watermark watermark = store.load(app);
+        String[] fields = getFields();
+        int count = 0;
+
+        while (true) {
+            ResultSet rs = connection.select(app,
+                    buildQuery(watermark, settleTime), fields);
+            List<Record> records = rs.getRecords();
+            if (records.isEmpty())
+                break;
+
+            listener.onUpsert(app, records);
+
+            Record last = records.get(records.size() - 1);
+            watermark = new Watermark(last.getString(updatedTimeField),
+                    last.getId());
+            store.save(app, watermark);
+            count += records.size();
+
+            if (records.size() < limit)
+                break;
+        }
+        return count;
+    }
+
+    /**
+     * Builds the query string which retrieves the next page.
+     * 
+     * @param watermark
+     *            the current watermark
+     * @param settleTime
+     *            the upper bound of the updated time
+     * @return query string
+     */
+    private String buildQuery(Watermark watermark, String settleTime) {
+        StringBuilder sb = new StringBuilder();
+        if (watermark != null) {
+            String time = quote(watermark.getUpdatedTime());
+            sb.append("(" + updatedTimeField + " > " + time);
+            sb.append(" or (" + updatedTimeField + " = " + time);
+            sb.append(" and " + ID_FIELD + " > " + watermark.getId() + ")) and ");
+        }
+        sb.append(updatedTimeField + " < " + quote(settleTime));
+        if (condition != null && condition.trim().length() > 0) {
+            sb.append(" and (" + condition + ")");
+        }
+        sb.append(" order by " + updatedTimeField + " asc, " + ID_FIELD + " asc");
+        sb.append(" limit " + limit);
+
+        return new String(sb);
+    }
+
+    /**
+     * Gets the column names which include the updated time and the record id.
+     * 
+     * @return column names or null to retrieve all fields
+     */
+    private String[] getFields() {
+        if (columns == null)
+            return null;
+        List<String> list = new ArrayList<String>();
+        for (String column : columns) {
+            list.add(column);
+        }
+        if (!list.contains(updatedTimeField)) {
+            list.add(updatedTimeField);
+        }
+        if (!list.contains(ID_FIELD)) {
+            list.add(ID_FIELD);
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    /**
+     * Gets the time before which no more changes can be stamped.
+     * 
+     * @return the settle time truncated to the minute
+     */
+    private String getSettleTime() {
+        long time = System.currentTimeMillis() - settleMillis;
+        time -= time % (60 * 1000);
+        DateFormat df = new SimpleDateFormat(Record.DATETIME_PATTERN);
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df.format(new Date(time));
+    }
+
+    /**
+     * Quotes the string value for the query.
+     * 
+     * @param value
+     *            string value
+     * @return quoted value
+     */
+    static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,200 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * Pages through the records of an application in the order of the record
+ * id. Each page is retrieved with the condition "$id &gt; (the last id)"
+ * instead of an offset, so the cost of a page does not grow with the
+ * position and records deleted or updated while paging do not shift the
+ * following pages.
+ */
+public class RecordCursor {
+    static final String ID_FIELD = "$id";
+    private static final Pattern CLAUSE = Pattern.compile(
+            "(order\\s+by\\s|(limit|offset)\\s+[0-9])", Pattern.CASE_INSENSITIVE);
+
+    private Connection connection;
+    private long app;
+    private String condition;
+    private String[] columns;
+    private int limit = Connection.MAX_SELECT_RECORDS;
+    private long lastId = 0;
+    private long maxId = -1;
+    private boolean done = false;
+
+    /**
+     * Constructor
+     * 
+     * @param connection
+     *            the connection object
+     * @param app
+     *            application id
+     * @param condition
+     *            query condition without "order by", "limit" and "offset",
+     *            or null to retrieve all records
+     * @param columns
+     *            column names if needed
+     */
+    public RecordCursor(Connection connection, long app, String condition,
+            String[] columns) {
+        this.connection = connection;
+        this.app = app;
+        this.condition = condition;
+        this.columns = columns;
+    }
+
+    /**
+     * Restricts the cursor to the records whose id is in (from, to].
+     * 
+     * @param from
+     *            the lower bound of the id (exclusive)
+     * @param to
+     *            the upper bound of the id (inclusive), or -1 for no bound
+     */
+    public void setIdRange(long from, long to) {
+        this.lastId = from;
+        this.maxId = to;
+    }
+
+    /**
+     * Sets the number of records retrieved by one request.
+     * 
+     * @param limit
+     *            page size (1 to 500)
+     */
+    public void setLimit(int limit) {
+        if (limit < 1 || limit > Connection.MAX_SELECT_RECORDS) {
+            throw new IllegalArgumentException("invalid limit: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Gets the id of the last record retrieved.
+     * 
+     * @return the record id
+     */
+    public long getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Returns true if there may be more records.
+     * 
+     * @return true if the next page should be retrieved
+     */
+    public boolean hasNext() {
+        return !done;
+    }
+
+    /**
+     * Retrieves the next page.
+     * 
+     * @return the list of records, or an empty list if no record remains
+     * @throws DBException
+     */
+    public List<Record> next() throws DBException {
+        if (done) {
+            return Collections.emptyList();
+        }
+        ResultSet rs = connection.select(app, buildQuery(), getFields());
+        List<Record> records = rs.getRecords();
+        if (records.size() < limit) {
+            done = true;
+        }
+        if (!records.isEmpty()) {
+            lastId = records.get(records.size() - 1).getId();
+        }
+        return records;
+    }
+
+    /**
+     * Splits the query string into the condition and the clauses of "order
+     * by", "limit" and "offset". The query is not parsed, so any condition
+     * which kintone accepts is kept as is.
+     * 
+     * @param query
+     *            query string
+     * @return the condition and the clauses, each of which may be empty
+     */
+    static String[] splitQuery(String query) {
+        if (query == null)
+            return new String[] { "", "" };
+        int len = query.length();
+        boolean quoted = false;
+        for (int i = 0; i < len; i++) {
+            char c = query.charAt(i);
+            if (quoted) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if ((i == 0 || Character.isWhitespace(query.charAt(i - 1)))
+                    && CLAUSE.matcher(query).region(i, len).lookingAt()) {
+                return new String[] { query.substring(0, i).trim(),
+                        query.substring(i).trim() };
+            }
+        }
+        return new String[] { query.trim(), "" };
+    }
+
+    /**
+     * Builds the query string which retrieves the next page.
+     * 
+     * @return query string
+     */
+    private String buildQuery() {
+        StringBuilder sb = new StringBuilder();
+        if (condition != null && condition.trim().length() > 0) {
+            sb.append("(" + condition + ") and ");
+        }
+        sb.append(ID_FIELD + " > " + lastId);
+        if (maxId >= 0) {
+            sb.append(" and " + ID_FIELD + " <= " + maxId);
+        }
+        sb.append(" order by " + ID_FIELD + " asc limit " + limit);
+
+        return new String(sb);
+    }
+
+    /**
+     * Gets the column names which include the record id.
+     * 
+     * @return column names or null to retrieve all fields
+     */
+    private String[] getFields() {
+        if (columns == null)
+            return null;
+        List<String> list = new ArrayList<String>();
+        for (String column : columns) {
+            list.add(column);
+        }
+        if (!list.contains(ID_FIELD)) {
+            list.add(ID_FIELD);
+        }
+        return list.toArray(new String[list.size()]);
+    }
+}
@@ -0,0 +1,662 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.cybozu.kintone.database.exception.DBException;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+
+/**
+ * Exports the records of an application to CSV or NDJSON.
+ * <p>
+ * The records are retrieved page by page with {@link RecordCursor} and
+ * written as soon as they are decoded. The next page is retrieved while
+ * the current page is written, and only these two pages are held in memory,
+ * so the memory does not grow with the number of the records.
+ * <p>
+ * The subtables are written by the {@link SubtableMode}. The columns of CSV
+ * are the given columns, or the fields of the form schema when it is
+ * available, or the fields found in the first page. The fields which are
+ * not in the columns are not written to CSV.
+ */
+public class RecordExporter {
+
+    public static final String DEFAULT_VALUE_SEPARATOR = "\n";
+    private static final String UTF8 = "UTF-8";
+    private static final String REVISION_FIELD = "$revision";
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * The output format.
+     */
+    public enum Format {
+        /** comma separated values with a header row */
+        CSV,
+        /** a json object per line */
+        NDJSON
+    }
+
+    /**
+     * How the subtables are written.
+     */
+    public enum SubtableMode {
+        /**
+         * A subtable is written as an array of the row objects, which is
+         * the json text in CSV.
+         */
+        JSON,
+        /**
+         * The rows of the subtables are written as the lines with the
+         * "subtable.field" columns. The n-th rows of all subtables are
+         * written to the n-th line of the record, and the other fields are
+         * written to every line, or only to the first line if the parent
+         * values are not repeated.
+         */
+        EXPAND
+    }
+
+    private Connection connection;
+    private long app;
+    private String condition = null;
+    private String[] columns = null;
+    private int pageSize = Connection.MAX_SELECT_RECORDS;
+    private boolean gzip = false;
+    private SubtableMode subtableMode = SubtableMode.JSON;
+    private boolean repeatParent = true;
+    private String valueSeparator = DEFAULT_VALUE_SEPARATOR;
+    private FormSchema schema = null;
+    private Gson gson = new Gson();
+
+    private AtomicLong exported = new AtomicLong();
+    private AtomicLong written = new AtomicLong();
+    private volatile long startedAt = 0;
+    private volatile long finishedAt = 0;
+
+    /**
+     * A stream which counts the written bytes.
+     */
+    private class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written.addAndGet(len);
+        }
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param connection
+     *            the connection object
+     * @param app
+     *            application id
+     */
+    public RecordExporter(Connection connection, long app) {
+        this.connection = connection;
+        this.app = app;
+    }
+
+    /**
+     * Sets the condition of the records.
+     * 
+     * @param condition
+     *            query condition without "order by", "limit" and "offset",
+     *            or null to export all records
+     */
+    public void setCondition(String condition) {
+        this.condition = condition;
+    }
+
+    /**
+     * Sets the fields to be exported.
+     * 
+     * @param columns
+     *            field codes, or null to export all fields
+     */
+    public void setColumns(String[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * Sets the number of the records retrieved by one request.
+     * 
+     * @param pageSize
+     *            page size (1 to 500)
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1 || pageSize > Connection.MAX_SELECT_RECORDS) {
+            throw new IllegalArgumentException("invalid page size: " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets whether the output is compressed by gzip.
+     * 
+     * @param gzip
+     *            true to compress the output
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Sets how the subtables are written.
+     * 
+     * @param subtableMode
+     *            the subtable mode
+     */
+    public void setSubtableMode(SubtableMode subtableMode) {
+        this.subtableMode = subtableMode;
+    }
+
+    /**
+     * Sets whether the fields of the record are repeated on every line of
+     * the subtable rows in the EXPAND mode.
+     * 
+     * @param repeatParent
+     *            false to write them only on the first line
+     */
+    public void setRepeatParent(boolean repeatParent) {
+        this.repeatParent = repeatParent;
+    }
+
+    /**
+     * Sets the separator of the values of the multiple value fields such as
+     * CHECK_BOX and USER_SELECT in CSV. The default is the line break.
+     * 
+     * @param valueSeparator
+     *            the separator
+     */
+    public void setValueSeparator(String valueSeparator) {
+        this.valueSeparator = valueSeparator;
+    }
+
+    /**
+     * Sets the form schema which gives the columns of CSV. If it is not set,
+     * the schema is retrieved when the connection uses the form schemas.
+     * 
+     * @param schema
+     *            the form schema
+     */
+    public void setFormSchema(FormSchema schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Exports the records to the file.
+     * 
+     * @param file
+     *            the destination file
+     * @param format
+     *            the output format
+     * @return the number of the exported records
+     * @throws DBException
+     */
+    public long export(File file, Format format) throws DBException {
+        OutputStream os;
+        try {
+            os = new FileOutputStream(file);
+        } catch (IOException e) {
+            throw new DBException(e, "cannot open " + file);
+        }
+        try {
+            return export(os, format);
+        } finally {
+            try {
+                os.close();
+            } catch (IOException e) {
+                throw new DBException(e, "cannot write " + file);
+            }
+        }
+    }
+
+    /**
+     * Exports the records to the stream. The stream is flushed but not
+     * closed.
+     * 
+     * @param output
+     *            the destination stream
+     * @param format
+     *            the output format
+     * @return the number of the exported records
+     * @throws DBException
+     */
+    public long export(OutputStream output, Format format) throws DBException {
+        if (schema == null && connection.isUseFormSchema()) {
+            schema = connection.getFormSchema(app);
+        }
+        exported.set(0);
+        written.set(0);
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+
+        final RecordCursor cursor = new RecordCursor(connection, app,
+                condition, columns);
+        cursor.setLimit(pageSize);
+        Callable<List<Record>> fetch = new Callable<List<Record>>() {
+            @Override
+            public List<Record> call() throws DBException {
+                return cursor.next();
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            OutputStream os = new CountingOutputStream(output);
+            GZIPOutputStream gz = null;
+            if (gzip) {
+                gz = new GZIPOutputStream(os, BUFFER_SIZE);
+                os = gz;
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(os,
+                    UTF8), BUFFER_SIZE);
+
+            List<String> header = null;
+            Future<List<Record>> next = executor.submit(fetch);
+            while (true) {
+                List<Record> page = get(next);
+                boolean more = cursor.hasNext();
+                if (more) {
+                    next = executor.submit(fetch);
+                }
+                if (format == Format.CSV && header == null) {
+                    header = getHeader(page);
+                    Csv.writeRow(writer, header);
+                }
+                for (Record record : page) {
+                    if (format == Format.CSV) {
+                        writeCsv(writer, header, record);
+                    } else {
+                        writeNdjson(writer, record);
+                    }
+                    exported.incrementAndGet();
+                }
+                if (page.isEmpty() || !more)
+                    break;
+            }
+            writer.flush();
+            if (gz != null) {
+                gz.finish();
+            }
+            os.flush();
+        } catch (IOException e) {
+            throw new DBException(e, "cannot write records");
+        } finally {
+            executor.shutdownNow();
+            finishedAt = System.currentTimeMillis();
+        }
+        return exported.get();
+    }
+
+    /**
+     * @return the number of the records exported in the current or last run
+     */
+    public long getExportedCount() {
+        return exported.get();
+    }
+
+    /**
+     * @return the number of the bytes written, after the compression
+     */
+    public long getWrittenBytes() {
+        return written.get();
+    }
+
+    /**
+     * Gets the throughput of the current or last run.
+     * 
+     * @return the exported records per second
+     */
+    public double getThroughput() {
+        if (startedAt == 0)
+            return 0;
+        long end = finishedAt != 0 ? finishedAt : System.currentTimeMillis();
+        long elapsed = Math.max(1, end - startedAt);
+        return exported.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Waits for the page.
+     * 
+     * @param future
+     *            the future of the page
+     * @return the records of the page
+     * @throws DBException
+     */
+    private static List<Record> get(Future<List<Record>> future)
+            throws DBException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException(e, "interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DBException) {
+                throw (DBException) e.getCause();
+            }
+            throw new DBException(e.getCause());
+        }
+    }
+
+    /**
+     * Builds the columns of CSV.
+     * 
+     * @param page
+     *            the first page, which gives the fields without the schema
+     * @return the column names
+     */
+    private List<String> getHeader(List<Record> page) {
+        List<String> codes = new ArrayList<String>();
+        if (columns != null) {
+            for (String column : columns) {
+                if (!column.equals(RecordCursor.ID_FIELD)
+                        && !column.equals(REVISION_FIELD)) {
+                    codes.add(column);
+                }
+            }
+        } else if (schema != null) {
+            codes.addAll(new TreeSet<String>(schema.getFields().keySet()));
+        } else {
+            TreeSet<String> names = new TreeSet<String>();
+            for (Record record : page) {
+                names.addAll(record.getFieldNames());
+            }
+            codes.addAll(names);
+        }
+
+        List<String> header = new ArrayList<String>();
+        header.add(RecordCursor.ID_FIELD);
+        header.add(REVISION_FIELD);
+        for (String code : codes) {
+            if (subtableMode == SubtableMode.EXPAND && isSubtable(code, page)) {
+                for (String inner : getSubtableFields(code, page)) {
+                    header.add(code + "." + inner);
+                }
+            } else {
+                header.add(code);
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Returns true if the field is a subtable.
+     * 
+     * @param code
+     *            field code
+     * @param page
+     *            the first page
+     * @return true if the field is a subtable
+     */
+    private boolean isSubtable(String code, List<Record> page) {
+        if (schema != null && schema.getFieldType(code) != null) {
+            return schema.getFieldType(code) == FieldType.SUBTABLE;
+        }
+        for (Record record : page) {
+            if (record.hasField(code)) {
+                return record.getFieldType(code) == FieldType.SUBTABLE;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the field codes in the subtable.
+     * 
+     * @param code
+     *            the field code of the subtable
+     * @param page
+     *            the first page
+     * @return the sorted field codes
+     */
+    private List<String> getSubtableFields(String code, List<Record> page) {
+        TreeSet<String> names = new TreeSet<String>();
+        FormField def = schema == null ? null : schema.getField(code);
+        if (def != null && def.getFields() != null) {
+            names.addAll(def.getFields().keySet());
+        } else {
+            for (Record record : page) {
+                if (record.hasField(code) && !record.isEmpty(code)) {
+                    for (Record row : record.getSubtable(code)) {
+                        names.addAll(row.getFieldNames());
+                    }
+                }
+            }
+        }
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * Writes the record as the lines of CSV.
+     * 
+     * @param writer
+     *            the writer
+     * @param header
+     *            the column names
+     * @param record
+     *            the record
+     * @throws IOException
+     */
+    private void writeCsv(Writer writer, List<String> header, Record record)
+            throws IOException {
+        int lines = 1;
+        if (subtableMode == SubtableMode.EXPAND) {
+            for (String name : record.getFieldNames()) {
+                Field field = record.getField(name);
+                if (field.getFieldType() == FieldType.SUBTABLE && !field.isEmpty()) {
+                    lines = Math.max(lines, field.getAsSubtable().size());
+                }
+            }
+        }
+        for (int line = 0; line < lines; line++) {
+            List<String> values = new ArrayList<String>(header.size());
+            for (String column : header) {
+                values.add(getCsvValue(record, column, line));
+            }
+            Csv.writeRow(writer, values);
+        }
+    }
+
+    /**
+     * Gets the value of the column of CSV.
+     * 
+     * @param record
+     *            the record
+     * @param column
+     *            the column name
+     * @param line
+     *            the index of the line of the record
+     * @return the text of the value, or null
+     */
+    private String getCsvValue(Record record, String column, int line) {
+        boolean parent = line == 0 || repeatParent;
+        if (column.equals(RecordCursor.ID_FIELD)) {
+            return String.valueOf(record.getId());
+        } else if (column.equals(REVISION_FIELD)) {
+            return parent ? String.valueOf(record.getRevision()) : null;
+        }
+        Field field = record.getField(column);
+        if (field == null && subtableMode == SubtableMode.EXPAND) {
+            int dot = column.indexOf('.');
+            while (dot > 0 && field == null) {
+                Field table = record.getField(column.substring(0, dot));
+                if (table != null && table.getFieldType() == FieldType.SUBTABLE) {
+                    List<Record> rows = table.isEmpty() ? Collections.<Record> emptyList()
+                            : table.getAsSubtable();
+                    if (line >= rows.size())
+                        return null;
+                    return toText(rows.get(line).getField(column.substring(dot + 1)));
+                }
+                dot = column.indexOf('.', dot + 1);
+            }
+        }
+        if (field == null || !parent)
+            return null;
+        if (field.getFieldType() == FieldType.SUBTABLE) {
+            return field.isEmpty() ? null : toJson(field).toString();
+        }
+        return toText(field);
+    }
+
+    /**
+     * Converts the field value to the text of CSV.
+     * 
+     * @param field
+     *            the field, or null
+     * @return the text, or null
+     */
+    private String toText(Field field) {
+        if (field == null || field.isEmpty())
+            return null;
+        Object value = field.getValue();
+        if (value instanceof UserDto) {
+            return ((UserDto) value).getCode();
+        }
+        if (!(value instanceof List)) {
+            return value.toString();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Object item : (List<?>) value) {
+            if (sb.length() > 0) {
+                sb.append(valueSeparator);
+            }
+            if (item instanceof UserDto) {
+                sb.append(((UserDto) item).getCode());
+            } else if (item instanceof FileDto) {
+                sb.append(((FileDto) item).getName());
+            } else {
+                sb.append(item);
+            }
+        }
+        return new String(sb);
+    }
+
+    /**
+     * Writes the record as the lines of NDJSON.
+     * 
+     * @param writer
+     *            the writer
+     * @param record
+     *            the record
+     * @throws IOException
+     */
+    private void writeNdjson(Writer writer, Record record) throws IOException {
+        if (subtableMode == SubtableMode.JSON) {
+            JsonObject obj = new JsonObject();
+            obj.addProperty(RecordCursor.ID_FIELD, record.getId());
+            obj.addProperty(REVISION_FIELD, record.getRevision());
+            for (Map.Entry<String, Field> entry : record.getEntrySet()) {
+                obj.add(entry.getKey(), toJson(entry.getValue()));
+            }
+            writer.write(obj.toString());
+            writer.write('\n');
+            return;
+        }
+
+        List<Map.Entry<String, Field>> tables = new ArrayList<Map.Entry<String, Field>>();
+        int lines = 1;
+        for (Map.Entry<String, Field> entry : record.getEntrySet()) {
+            Field field = entry.getValue();
+            if (field.getFieldType() == FieldType.SUBTABLE) {
+                tables.add(entry);
+                if (!field.isEmpty()) {
+                    lines = Math.max(lines, field.getAsSubtable().size());
+                }
+            }
+        }
+        for (int line = 0; line < lines; line++) {
+            JsonObject obj = new JsonObject();
+            obj.addProperty(RecordCursor.ID_FIELD, record.getId());
+            if (line == 0 || repeatParent) {
+                obj.addProperty(REVISION_FIELD, record.getRevision());
+                for (Map.Entry<String, Field> entry : record.getEntrySet()) {
+                    if (entry.getValue().getFieldType() != FieldType.SUBTABLE) {
+                        obj.add(entry.getKey(), toJson(entry.getValue()));
+                    }
+                }
+            }
+            for (Map.Entry<String, Field> table : tables) {
+                Field field = table.getValue();
+                if (field.isEmpty() || line >= field.getAsSubtable().size())
+                    continue;
+                Record row = field.getAsSubtable().get(line);
+                for (Map.Entry<String, Field> entry : row.getEntrySet()) {
+                    obj.add(table.getKey() + "." + entry.getKey(),
+                            toJson(entry.getValue()));
+                }
+            }
+            writer.write(obj.toString());
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Converts the field value to json.
+     * 
+     * @param field
+     *            the field
+     * @return the json value
+     */
+    private JsonElement toJson(Field field) {
+        if (field.isEmpty())
+            return JsonNull.INSTANCE;
+        if (field.getFieldType() == FieldType.SUBTABLE) {
+            JsonArray rows = new JsonArray();
+            for (Record row : field.getAsSubtable()) {
+                JsonObject obj = new JsonObject();
+                for (Map.Entry<String, Field> entry : row.getEntrySet()) {
+                    obj.add(entry.getKey(), toJson(entry.getValue()));
+                }
+                rows.add(obj);
+            }
+            return rows;
+        }
+        return gson.toJsonTree(field.getValue());
+    }
+}
@@ -0,0 +1,961 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.cybozu.kintone.database.exception.DBException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+/**
+ * Imports the records from CSV or NDJSON into an application.
+ * <p>
+ * The input is read row by row, and the records are sent in batches of up
+ * to MAX_WRITE_RECORDS records. At most the given number of the batches are
+ * sent at the same time, and the reading waits while all of them are being
+ * sent, so the memory does not grow with the size of the input.
+ * <p>
+ * The columns are mapped to the fields by {@link #mapColumn(String, String)},
+ * or by the field codes and the labels of the form schema when it is
+ * available. Without the schema, a column is mapped to the field of the same
+ * code as SINGLE_LINE_TEXT. The columns such as "$id", and the read-only
+ * fields such as CALC and CREATED_TIME are skipped unless they are mapped,
+ * so the exported files can be imported again.
+ * <p>
+ * The FILE fields are skipped too unless they are mapped, because the
+ * exported file names and download file keys cannot be attached again. The
+ * values of a mapped FILE column must be the file keys of uploaded files.
+ * <p>
+ * The rows which cannot be converted or are rejected by kintone are written
+ * to the reject file with the error messages, and the import continues. A
+ * batch which failed because kintone was unreachable or busy is sent again
+ * with the exponential backoff before it is rejected.
+ */
+public class RecordImporter {
+
+    public static final String DEFAULT_VALUE_SEPARATOR = "\n";
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_INTERVAL = 1000;
+    private static final String UTF8 = "UTF-8";
+
+    private Connection connection;
+    private long app;
+    private int batchSize = Connection.MAX_WRITE_RECORDS;
+    private int concurrency;
+    private String keyField = null;
+    private String valueSeparator = DEFAULT_VALUE_SEPARATOR;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryInterval = DEFAULT_RETRY_INTERVAL;
+    private FormSchema schema = null;
+    private Map<String, String> columns = new HashMap<String, String>();
+    private Map<String, FieldType> types = new HashMap<String, FieldType>();
+    private File rejectFile = null;
+
+    private Writer rejectWriter = null;
+    private boolean rejectHeader = false;
+    private List<String> header = null;
+
+    private AtomicLong read = new AtomicLong();
+    private AtomicLong imported = new AtomicLong();
+    private AtomicLong rejected = new AtomicLong();
+    private volatile long startedAt = 0;
+    private volatile long finishedAt = 0;
+
+    /**
+     * A row of the input.
+     */
+    private static class Row {
+        long line;
+        List<String> values;
+        JsonObject object;
+        Record record;
+    }
+
+    /**
+     * Constructor. The batches are sent with the write concurrency of the
+     * connection.
+     * 
+     * @param connection
+     *            the connection object
+     * @param app
+     *            application id
+     */
+    public RecordImporter(Connection connection, long app) {
+        this.connection = connection;
+        this.app = app;
+        this.concurrency = connection.getWriteConcurrency();
+    }
+
+    /**
+     * Maps the column to the field.
+     * 
+     * @param column
+     *            the column name of CSV or the property name of NDJSON
+     * @param field
+     *            field code, or null to skip the column
+     */
+    public void mapColumn(String column, String field) {
+        columns.put(column, field);
+    }
+
+    /**
+     * Maps the column to the field of the type.
+     * 
+     * @param column
+     *            the column name of CSV or the property name of NDJSON
+     * @param field
+     *            field code
+     * @param type
+     *            field type
+     */
+    public void mapColumn(String column, String field, FieldType type) {
+        columns.put(column, field);
+        types.put(field, type);
+    }
+
+    /**
+     * Sets the form schema to map and convert the columns, and to validate
+     * the records before they are sent. If it is not set, the schema is
+     * retrieved when the connection uses the form schemas.
+     * 
+     * @param schema
+     *            the form schema
+     */
+    public void setFormSchema(FormSchema schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Sets the key field. If it is set, the records are upserted by the
+     * field instead of inserted.
+     * 
+     * @param keyField
+     *            the field code, or null to insert
+     */
+    public void setKeyField(String keyField) {
+        this.keyField = keyField;
+    }
+
+    /**
+     * Sets the number of the records in a batch.
+     * 
+     * @param batchSize
+     *            from 1 to MAX_WRITE_RECORDS
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > Connection.MAX_WRITE_RECORDS) {
+            throw new IllegalArgumentException("invalid batch size: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the maximum number of the batches sent at the same time.
+     * 
+     * @param concurrency
+     *            the concurrency
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("invalid concurrency: " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the separator of the values of the multiple value fields such as
+     * CHECK_BOX and USER_SELECT in CSV. The default is the line break.
+     * 
+     * @param valueSeparator
+     *            the separator
+     */
+    public void setValueSeparator(String valueSeparator) {
+        this.valueSeparator = valueSeparator;
+    }
+
+    /**
+     * Sets the retry of the batches which failed because kintone was
+     * unreachable or busy. The interval is doubled at each retry. Without
+     * the key field, a batch which reached kintone before the failure may be
+     * inserted twice.
+     * 
+     * @param maxRetries
+     *            the maximum number of the retries, or 0 not to retry
+     * @param retryInterval
+     *            the interval before the first retry in milliseconds
+     */
+    public void setRetry(int maxRetries, long retryInterval) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("invalid max retries: " + maxRetries);
+        }
+        if (retryInterval < 0) {
+            throw new IllegalArgumentException("invalid retry interval: " + retryInterval);
+        }
+        this.maxRetries = maxRetries;
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Sets the file where the rejected rows are written. The rows of CSV
+     * are written as CSV with an "error" column, and the rows of NDJSON are
+     * written as the objects with the line number, the error and the
+     * original record.
+     * 
+     * @param rejectFile
+     *            the reject file, or null to discard the rejected rows
+     */
+    public void setRejectFile(File rejectFile) {
+        this.rejectFile = rejectFile;
+    }
+
+    /**
+     * Imports the records from a CSV file encoded in UTF-8.
+     * 
+     * @param file
+     *            the CSV file
+     * @return the number of the imported records
+     * @throws DBException
+     */
+    public long importCsv(File file) throws DBException {
+        Reader reader = open(file);
+        try {
+            return importCsv(reader);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Imports the records from CSV. The first row is the column names.
+     * 
+     * @param input
+     *            the reader of CSV
+     * @return the number of the imported records
+     * @throws DBException
+     */
+    public long importCsv(Reader input) throws DBException {
+        BufferedReader reader = new BufferedReader(input);
+        Pipeline pipeline = start();
+        try {
+            header = Csv.readRow(reader);
+            if (header == null)
+                return 0;
+            if (!header.isEmpty() && header.get(0).startsWith("\uFEFF")) {
+                header.set(0, header.get(0).substring(1));
+            }
+            long line = 1;
+            List<String> values;
+            while ((values = Csv.readRow(reader)) != null) {
+                line++;
+                if (values.size() == 1 && values.get(0).length() == 0)
+                    continue;
+                Row row = new Row();
+                row.line = line;
+                row.values = values;
+                read.incrementAndGet();
+                try {
+                    row.record = toRecord(values);
+                } catch (IllegalArgumentException e) {
+                    reject(row, e.getMessage());
+                    continue;
+                }
+                pipeline.add(row);
+            }
+        } catch (IOException e) {
+            throw new DBException(e, "cannot read csv");
+        } finally {
+            pipeline.finish();
+        }
+        return imported.get();
+    }
+
+    /**
+     * Imports the records from an NDJSON file encoded in UTF-8.
+     * 
+     * @param file
+     *            the NDJSON file
+     * @return the number of the imported records
+     * @throws DBException
+     */
+    public long importNdjson(File file) throws DBException {
+        Reader reader = open(file);
+        try {
+            return importNdjson(reader);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Imports the records from NDJSON. Each line is an object whose
+     * properties are the values, such as <code>{"code": "A-1", "count": 3,
+     * "tags": ["a", "b"]}</code>. The values of the kintone record format,
+     * such as <code>{"type": "NUMBER", "value": "3"}</code>, are also
+     * accepted. A subtable is an array of the objects.
+     * 
+     * @param input
+     *            the reader of NDJSON
+     * @return the number of the imported records
+     * @throws DBException
+     */
+    public long importNdjson(Reader input) throws DBException {
+        BufferedReader reader = new BufferedReader(input);
+        com.google.gson.JsonParser parser = new com.google.gson.JsonParser();
+        Pipeline pipeline = start();
+        try {
+            long line = 0;
+            String text;
+            while ((text = reader.readLine()) != null) {
+                line++;
+                if (text.trim().length() == 0)
+                    continue;
+                Row row = new Row();
+                row.line = line;
+                read.incrementAndGet();
+                try {
+                    JsonElement elem = parser.parse(text);
+                    if (!elem.isJsonObject()) {
+                        throw new IllegalArgumentException("not an object");
+                    }
+                    row.object = elem.getAsJsonObject();
+                    row.record = toRecord(row.object, true);
+                } catch (JsonParseException e) {
+                    row.object = null;
+                    reject(row, text, "malformed json");
+                    continue;
+                } catch (IllegalArgumentException e) {
+                    reject(row, e.getMessage());
+                    continue;
+                }
+                pipeline.add(row);
+            }
+        } catch (IOException e) {
+            throw new DBException(e, "cannot read ndjson");
+        } finally {
+            pipeline.finish();
+        }
+        return imported.get();
+    }
+
+    /**
+     * @return the number of the rows read in the current or last run
+     */
+    public long getReadCount() {
+        return read.get();
+    }
+
+    /**
+     * @return the number of the imported records
+     */
+    public long getImportedCount() {
+        return imported.get();
+    }
+
+    /**
+     * @return the number of the rejected rows
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Gets the throughput of the current or last run.
+     * 
+     * @return the imported records per second
+     */
+    public double getThroughput() {
+        if (startedAt == 0)
+            return 0;
+        long end = finishedAt != 0 ? finishedAt : System.currentTimeMillis();
+        long elapsed = Math.max(1, end - startedAt);
+        return imported.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Sends the batches with the bounded concurrency. Adding a row blocks
+     * while all permits are taken by the batches being sent.
+     */
+    private class Pipeline {
+        private ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        private Semaphore permits = new Semaphore(concurrency);
+        private List<Row> batch = new ArrayList<Row>();
+
+        void add(Row row) throws DBException {
+            batch.add(row);
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        void flush() throws DBException {
+            if (batch.isEmpty())
+                return;
+            final List<Row> rows = batch;
+            batch = new ArrayList<Row>();
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DBException(e, "interrupted");
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(rows);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        }
+
+        void finish() throws DBException {
+            try {
+                flush();
+                permits.acquire(concurrency);
+                permits.release(concurrency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DBException(e, "interrupted");
+            } finally {
+                executor.shutdownNow();
+                finishedAt = System.currentTimeMillis();
+                closeRejects();
+            }
+        }
+    }
+
+    /**
+     * Resets the counters and resolves the form schema.
+     * 
+     * @return the pipeline of the run
+     * @throws DBException
+     */
+    private Pipeline start() throws DBException {
+        if (schema == null && connection.isUseFormSchema()) {
+            schema = connection.getFormSchema(app);
+        }
+        read.set(0);
+        imported.set(0);
+        rejected.set(0);
+        header = null;
+        rejectHeader = false;
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        return new Pipeline();
+    }
+
+    /**
+     * Sends the batch. If kintone rejects the batch, the records are sent
+     * one by one to find the invalid records. An unexpected runtime
+     * exception is handled in the same way, so the rows are never lost.
+     * 
+     * @param rows
+     *            the rows of the batch
+     */
+    private void send(List<Row> rows) {
+        try {
+            writeWithRetry(rows);
+            imported.addAndGet(rows.size());
+            return;
+        } catch (DBException e) {
+            if (rows.size() == 1 || JournaledWriter.isRetriable(e)) {
+                for (Row row : rows) {
+                    reject(row, e.getMessage());
+                }
+                return;
+            }
+        } catch (RuntimeException e) {
+            if (rows.size() == 1) {
+                reject(rows.get(0), e.toString());
+                return;
+            }
+        }
+        for (Row row : rows) {
+            List<Row> single = new ArrayList<Row>();
+            single.add(row);
+            try {
+                writeWithRetry(single);
+                imported.incrementAndGet();
+            } catch (DBException e) {
+                reject(row, e.getMessage());
+            } catch (RuntimeException e) {
+                reject(row, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Writes the rows, and writes them again with the backoff while the
+     * failure is retriable.
+     * 
+     * @param rows
+     *            the rows
+     * @throws DBException
+     */
+    private void writeWithRetry(List<Row> rows) throws DBException {
+        for (int retry = 0;; retry++) {
+            try {
+                write(rows);
+                return;
+            } catch (DBException e) {
+                if (retry >= maxRetries || !JournaledWriter.isRetriable(e)) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(retryInterval << retry);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DBException(e, "interrupted");
+            }
+        }
+    }
+
+    /**
+     * Inserts or upserts the records of the rows.
+     * 
+     * @param rows
+     *            the rows
+     * @throws DBException
+     */
+    private void write(List<Row> rows) throws DBException {
+        List<Record> records = new ArrayList<Record>();
+        for (Row row : rows) {
+            records.add(row.record);
+        }
+        if (keyField == null) {
+            connection.insert(app, records);
+        } else {
+            connection.upsert(app, keyField, records);
+        }
+    }
+
+    /**
+     * Converts the values of a CSV row to a record.
+     * 
+     * @param values
+     *            the values
+     * @return the record
+     * @throws IllegalArgumentException
+     *             if a value cannot be converted
+     */
+    private Record toRecord(List<String> values) {
+        if (values.size() != header.size()) {
+            throw new IllegalArgumentException("expected " + header.size()
+                    + " columns but " + values.size());
+        }
+        Record record = new Record();
+        for (int i = 0; i < values.size(); i++) {
+            String code = getFieldCode(header.get(i));
+            if (code == null)
+                continue;
+            FieldType type = getFieldType(code, null);
+            if (type == null)
+                continue;
+            if (type == FieldType.SUBTABLE) {
+                throw new IllegalArgumentException(code
+                        + ": subtables are not supported in csv");
+            }
+            List<String> list = null;
+            if (isMultiple(type)) {
+                list = new ArrayList<String>();
+                for (String value : values.get(i).split(Pattern.quote(valueSeparator))) {
+                    if (value.length() > 0) {
+                        list.add(value);
+                    }
+                }
+            }
+            record.addField(code, new Field(code, type, toValue(code, type,
+                    values.get(i), list)));
+        }
+        validate(record);
+        return record;
+    }
+
+    /**
+     * Converts an NDJSON object to a record.
+     * 
+     * @param object
+     *            the object
+     * @param top
+     *            true if the object is not a row of a subtable
+     * @return the record
+     * @throws IllegalArgumentException
+     *             if a value cannot be converted
+     */
+    private Record toRecord(JsonObject object, boolean top) {
+        Record record = new Record();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            String code = top ? getFieldCode(entry.getKey()) : entry.getKey();
+            if (code == null)
+                continue;
+            JsonElement elem = entry.getValue();
+            if (elem.isJsonObject() && elem.getAsJsonObject().has("value")) {
+                elem = elem.getAsJsonObject().get("value");
+            }
+            FieldType type = getFieldType(code, elem);
+            if (type == null)
+                continue;
+
+            Object value;
+            if (type == FieldType.SUBTABLE) {
+                if (!elem.isJsonArray()) {
+                    throw new IllegalArgumentException(code + ": not an array");
+                }
+                List<Record> rows = new ArrayList<Record>();
+                for (JsonElement rowElem : elem.getAsJsonArray()) {
+                    if (rowElem.isJsonObject() && rowElem.getAsJsonObject().has("value")) {
+                        rowElem = rowElem.getAsJsonObject().get("value");
+                    }
+                    if (!rowElem.isJsonObject()) {
+                        throw new IllegalArgumentException(code + ": not an object");
+                    }
+                    rows.add(toRecord(rowElem.getAsJsonObject(), false));
+                }
+                value = rows;
+            } else if (elem.isJsonArray()) {
+                List<String> list = new ArrayList<String>();
+                for (JsonElement item : elem.getAsJsonArray()) {
+                    String text = toText(code, item);
+                    if (text != null) {
+                        list.add(text);
+                    }
+                }
+                value = toValue(code, type, null, list);
+            } else {
+                String text = toText(code, elem);
+                List<String> list = null;
+                if (isMultiple(type)) {
+                    list = new ArrayList<String>();
+                    if (text != null && text.length() > 0) {
+                        list.add(text);
+                    }
+                }
+                value = toValue(code, type, text, list);
+            }
+            record.addField(code, new Field(code, type, value));
+        }
+        if (top) {
+            validate(record);
+        }
+        return record;
+    }
+
+    /**
+     * Converts a json value to the text.
+     * 
+     * @param code
+     *            field code
+     * @param elem
+     *            a primitive, null, or an object of a user or a file
+     * @return the text, or null
+     */
+    private static String toText(String code, JsonElement elem) {
+        if (elem.isJsonNull())
+            return null;
+        if (elem.isJsonPrimitive())
+            return elem.getAsString();
+        if (elem.isJsonObject()) {
+            JsonObject obj = elem.getAsJsonObject();
+            for (String name : new String[] { "code", "fileKey" }) {
+                if (obj.has(name) && obj.get(name).isJsonPrimitive()) {
+                    return obj.get(name).getAsString();
+                }
+            }
+        }
+        throw new IllegalArgumentException(code + ": unexpected value " + elem);
+    }
+
+    /**
+     * Converts the text to the value of the field type.
+     * 
+     * @param code
+     *            field code
+     * @param type
+     *            field type
+     * @param text
+     *            the text of a single value field
+     * @param list
+     *            the values of a multiple value field
+     * @return the field value, where an empty text is null
+     */
+    private static Object toValue(String code, FieldType type, String text,
+            List<String> list) {
+        switch (type) {
+        case CHECK_BOX:
+        case MULTI_SELECT:
+            return list;
+        case USER_SELECT: {
+            List<UserDto> users = new ArrayList<UserDto>();
+            for (String value : list) {
+                UserDto user = new UserDto();
+                user.setCode(value);
+                users.add(user);
+            }
+            return users;
+        }
+        case FILE: {
+            List<FileDto> files = new ArrayList<FileDto>();
+            for (String value : list) {
+                FileDto file = new FileDto();
+                file.setFileKey(value);
+                files.add(file);
+            }
+            return files;
+        }
+        default:
+            if (list != null) {
+                throw new IllegalArgumentException(code + ": multiple values");
+            }
+            if (text == null || text.length() == 0)
+                return null;
+            if (type == FieldType.NUMBER) {
+                try {
+                    new BigDecimal(text);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(code + ": not a number: " + text);
+                }
+            }
+            return text;
+        }
+    }
+
+    /**
+     * Returns true if the field type has multiple values.
+     * 
+     * @param type
+     *            field type
+     * @return true if the field has multiple values
+     */
+    private static boolean isMultiple(FieldType type) {
+        return type == FieldType.CHECK_BOX || type == FieldType.MULTI_SELECT
+                || type == FieldType.USER_SELECT || type == FieldType.FILE;
+    }
+
+    /**
+     * Gets the field code of the column.
+     * 
+     * @param column
+     *            the column name
+     * @return the field code, or null to skip the column such as "$id"
+     */
+    private String getFieldCode(String column) {
+        if (columns.containsKey(column))
+            return columns.get(column);
+        if (column.startsWith("$"))
+            return null;
+        if (schema == null)
+            return column;
+        if (schema.getFields().containsKey(column))
+            return column;
+        for (FormField field : schema.getFields().values()) {
+            if (column.equals(field.getLabel()))
+                return field.getCode();
+        }
+        return null;
+    }
+
+    /**
+     * Gets the field type of the field.
+     * 
+     * @param code
+     *            field code
+     * @param elem
+     *            the json value to guess the type without the schema, or
+     *            null
+     * @return the field type, or null to skip the read-only field or the
+     *         file field which is not mapped
+     */
+    private FieldType getFieldType(String code, JsonElement elem) {
+        FieldType type = types.get(code);
+        if (type == null && schema != null) {
+            type = schema.getFieldType(code);
+        }
+        if (type == null) {
+            if (elem != null && elem.isJsonArray()) {
+                JsonArray array = elem.getAsJsonArray();
+                if (array.size() > 0 && array.get(0).isJsonObject()
+                        && array.get(0).getAsJsonObject().has("fileKey")) {
+                    // an attachment, whose exported values cannot be
+                    // attached again
+                    return columns.containsValue(code) ? FieldType.FILE : null;
+                }
+                if (array.size() > 0 && array.get(0).isJsonObject()
+                        && !array.get(0).getAsJsonObject().has("code")) {
+                    return FieldType.SUBTABLE;
+                }
+                return FieldType.MULTI_SELECT;
+            } else if (elem != null && elem.isJsonPrimitive()
+                    && elem.getAsJsonPrimitive().isNumber()) {
+                return FieldType.NUMBER;
+            }
+            return FieldType.SINGLE_LINE_TEXT;
+        }
+        if (FormSchema.isReadOnly(type))
+            return null;
+        switch (type) {
+        case CREATOR:
+        case CREATED_TIME:
+        case MODIFIER:
+        case UPDATED_TIME:
+            // recorded by kintone, so the exported values are not imported
+            return null;
+        case FILE:
+            // the exported values are not the file keys of uploaded files
+            return columns.containsValue(code) ? type : null;
+        default:
+            return type;
+        }
+    }
+
+    /**
+     * Validates the record by the form schema.
+     * 
+     * @param record
+     *            the record
+     * @throws IllegalArgumentException
+     *             if the record is invalid
+     */
+    private void validate(Record record) {
+        if (schema == null)
+            return;
+        try {
+            schema.validate(record);
+        } catch (DBException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the rejected row.
+     * 
+     * @param row
+     *            the row
+     * @param error
+     *            the error message
+     */
+    private void reject(Row row, String error) {
+        reject(row, null, error);
+    }
+
+    /**
+     * Writes the rejected row.
+     * 
+     * @param row
+     *            the row
+     * @param text
+     *            the original line which cannot be parsed, or null
+     * @param error
+     *            the error message
+     */
+    private synchronized void reject(Row row, String text, String error) {
+        rejected.incrementAndGet();
+        if (rejectFile == null)
+            return;
+        try {
+            if (rejectWriter == null) {
+                rejectWriter = new OutputStreamWriter(new FileOutputStream(
+                        rejectFile), UTF8);
+            }
+            if (row.values != null) {
+                if (!rejectHeader) {
+                    List<String> names = new ArrayList<String>(header);
+                    names.add("error");
+                    Csv.writeRow(rejectWriter, names);
+                    rejectHeader = true;
+                }
+                List<String> values = new ArrayList<String>(row.values);
+                values.add(error);
+                Csv.writeRow(rejectWriter, values);
+            } else {
+                JsonObject obj = new JsonObject();
+                obj.addProperty("line", row.line);
+                obj.addProperty("error", error);
+                if (row.object != null) {
+                    obj.add("record", row.object);
+                } else {
+                    obj.addProperty("text", text);
+                }
+                rejectWriter.write(obj.toString());
+                rejectWriter.write("\n");
+            }
+        } catch (IOException e) {
+            // the rejected rows are counted even if they cannot be written
+        }
+    }
+
+    /**
+     * Closes the reject file.
+     */
+    private synchronized void closeRejects() {
+        if (rejectWriter != null) {
+            closeQuietly(rejectWriter);
+            rejectWriter = null;
+        }
+    }
+
+    /**
+     * Opens the file as UTF-8.
+     * 
+     * @param file
+     *            the file
+     * @return the reader
+     * @throws DBException
+     */
+    private static Reader open(File file) throws DBException {
+        try {
+            return new InputStreamReader(new FileInputStream(file), UTF8);
+        } catch (IOException e) {
+            throw new DBException(e, "cannot open " + file);
+        }
+    }
+
+    /**
+     * Closes the stream ignoring the error.
+     * 
+     * @param closeable
+     *            the stream
+     */
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+        }
+    }
+}
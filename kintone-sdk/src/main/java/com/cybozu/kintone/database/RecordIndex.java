@@ -0,0 +1,49 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+/**
+ * An interface of the secondary index over the records. The index is
+ * maintained by {@link IndexedRecordCollection} when records are added,
+ * replaced or removed.
+ *
+ */
+public interface RecordIndex {
+
+    /**
+     * Gets the field code of the indexed field.
+     * @return field code
+     */
+    public String getField();
+
+    /**
+     * Adds the record to the index.
+     * @param record
+     *            the record object
+     */
+    public void add(Record record);
+
+    /**
+     * Removes the record from the index.
+     * @param record
+     *            the record object which was added before
+     */
+    public void remove(Record record);
+
+    /**
+     * Removes all records from the index.
+     */
+    public void clear();
+}
@@ -16,6 +16,8 @@ package com.cybozu.kintone.database;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -54,6 +56,15 @@ public class ResultSet {
         records.add(record);
     }
 
+    /**
+     * Gets the list of the records.
+     * 
+     * @return list of the record objects
+     */
+    public List<Record> getRecords() {
+        return records;
+    }
+
     /**
      * Clears the result set.
      */
@@ -311,4 +322,55 @@ public class ResultSet {
         List<FileDto> files = getFiles(name);
         return connection.downloadFile(files.get(index).getFileKey());
     }
+
+    /**
+     * Downloads the file body into the stream.
+     * 
+     * @param name
+     *            field name
+     * @param index
+     *            index of the download file
+     * @param output
+     *            the destination stream
+     * @throws DBException
+     */
+    public void downloadFile(String name, int index, OutputStream output)
+            throws DBException {
+        List<FileDto> files = getFiles(name);
+        connection.downloadFile(files.get(index).getFileKey(), output);
+    }
+
+    /**
+     * Downloads the file body into the channel.
+     * 
+     * @param name
+     *            field name
+     * @param index
+     *            index of the download file
+     * @param output
+     *            the destination channel
+     * @throws DBException
+     */
+    public void downloadFile(String name, int index, WritableByteChannel output)
+            throws DBException {
+        List<FileDto> files = getFiles(name);
+        connection.downloadFile(files.get(index).getFileKey(), output);
+    }
+
+    /**
+     * Downloads the file body and passes the stream to the callback.
+     * 
+     * @param name
+     *            field name
+     * @param index
+     *            index of the download file
+     * @param callback
+     *            the receiver of the file
+     * @throws DBException
+     */
+    public void downloadFile(String name, int index, DownloadCallback callback)
+            throws DBException {
+        List<FileDto> files = getFiles(name);
+        connection.downloadFile(files.get(index).getFileKey(), callback);
+    }
 }
@@ -0,0 +1,130 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A sorted index which finds the records by a range of the value of a field
+ * in logarithmic time. Numbers and date times are ordered by their values,
+ * and other fields by the string values.
+ */
+public class SortedIndex extends AbstractRecordIndex {
+
+    private TreeMap<Object, Set<Long>> map = new TreeMap<Object, Set<Long>>();
+
+    /**
+     * Constructor
+     * @param field
+     *            the field code of the indexed field
+     */
+    public SortedIndex(String field) {
+        super(field);
+    }
+
+    /**
+     * Gets the ids of the records which have the value.
+     * @param value
+     *            field value
+     * @return the set of the record ids
+     */
+    public synchronized Set<Long> get(String value) {
+        Object key = toKey(value);
+        if (key == null)
+            return Collections.emptySet();
+        Set<Long> ids;
+        try {
+            ids = map.get(key);
+        } catch (ClassCastException e) {
+            // the value cannot be compared with the keys of this field type
+            return Collections.emptySet();
+        }
+        if (ids == null)
+            return Collections.emptySet();
+        return new TreeSet<Long>(ids);
+    }
+
+    /**
+     * Gets the ids of the records whose value is in the range.
+     * @param from
+     *            the lower bound, or null for no bound
+     * @param fromInclusive
+     *            true if the lower bound is included
+     * @param to
+     *            the upper bound, or null for no bound
+     * @param toInclusive
+     *            true if the upper bound is included
+     * @return the set of the record ids
+     */
+    public synchronized Set<Long> range(String from, boolean fromInclusive, String to,
+            boolean toInclusive) {
+        Object fromKey = from != null ? toKey(from) : null;
+        Object toKey = to != null ? toKey(to) : null;
+        if ((from != null && fromKey == null) || (to != null && toKey == null))
+            return Collections.emptySet();
+
+        NavigableMap<Object, Set<Long>> sub = map;
+        try {
+            if (fromKey != null) {
+                sub = sub.tailMap(fromKey, fromInclusive);
+            }
+            if (toKey != null) {
+                sub = sub.headMap(toKey, toInclusive);
+            }
+        } catch (ClassCastException e) {
+            // the bounds cannot be compared with the keys of this field type
+            return Collections.emptySet();
+        } catch (IllegalArgumentException e) {
+            // the lower bound is greater than the upper bound
+            return Collections.emptySet();
+        }
+        Set<Long> ids = new TreeSet<Long>();
+        for (Map.Entry<Object, Set<Long>> entry : sub.entrySet()) {
+            ids.addAll(entry.getValue());
+        }
+        return ids;
+    }
+
+    @Override
+    protected void clearKeys() {
+        map.clear();
+    }
+
+    @Override
+    protected void addKey(Object key, long id) {
+        Set<Long> ids = map.get(key);
+        if (ids == null) {
+            ids = new TreeSet<Long>();
+            map.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    @Override
+    protected void removeKey(Object key, long id) {
+        Set<Long> ids = map.get(key);
+        if (ids == null)
+            return;
+        ids.remove(id);
+        if (ids.isEmpty()) {
+            map.remove(key);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the uploaded files keyed by the SHA-256 hash of the content,
+ * the file name and the content type. A file key obtained by an upload is
+ * reused for the same content within the time to live, which should be
+ * shorter than the validity of the file keys on the server. A file key is
+ * removed by {@link #remove(String)} when a write which used it failed, so
+ * a file key rejected by the server is not reused.
+ */
+public class UploadCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private long ttl;
+    private Map<String, Entry> entries;
+
+    /**
+     * A cached file key.
+     */
+    private static class Entry {
+        String fileKey;
+        long uploadedAt;
+
+        Entry(String fileKey, long uploadedAt) {
+            this.fileKey = fileKey;
+            this.uploadedAt = uploadedAt;
+        }
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param ttl
+     *            the time to live of the file keys in milliseconds
+     */
+    public UploadCache(long ttl) {
+        this(ttl, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param ttl
+     *            the time to live of the file keys in milliseconds
+     * @param maxEntries
+     *            the maximum number of the cached file keys
+     */
+    public UploadCache(long ttl, final int maxEntries) {
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the cached file key.
+     * 
+     * @param hash
+     *            the hash of the content
+     * @param fileName
+     *            file name
+     * @param contentType
+     *            content type
+     * @return the file key, or null if not cached
+     */
+    public synchronized String get(String hash, String fileName, String contentType) {
+        String key = toKey(hash, fileName, contentType);
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        if (System.currentTimeMillis() - entry.uploadedAt >= ttl) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.fileKey;
+    }
+
+    /**
+     * Caches the file key.
+     * 
+     * @param hash
+     *            the hash of the content
+     * @param fileName
+     *            file name
+     * @param contentType
+     *            content type
+     * @param fileKey
+     *            the file key of the uploaded file
+     */
+    public synchronized void put(String hash, String fileName,
+            String contentType, String fileKey) {
+        entries.put(toKey(hash, fileName, contentType),
+                new Entry(fileKey, System.currentTimeMillis()));
+    }
+
+    /**
+     * Removes the file key.
+     * 
+     * @param fileKey
+     *            the file key of the uploaded file
+     */
+    public synchronized void remove(String fileKey) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().fileKey.equals(fileKey)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all file keys.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Creates the digest of the content hash.
+     * 
+     * @return the message digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Converts the digest to the hex string.
+     * 
+     * @param digest
+     *            the digest bytes
+     * @return the hex string
+     */
+    static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates the key of the cache.
+     * 
+     * @param hash
+     *            the hash of the content
+     * @param fileName
+     *            file name
+     * @param contentType
+     *            content type
+     * @return the key
+     */
+    private static String toKey(String hash, String fileName, String contentType) {
+        return hash + "\n" + fileName + "\n" + contentType;
+    }
+}
@@ -0,0 +1,58 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+/**
+ * A watermark represents the position of the last processed change of an
+ * application. It consists of the updated time and the record id, so that
+ * records which share the same updated time can be ordered strictly.
+ */
+public class Watermark {
+    private String updatedTime;
+    private long id;
+
+    /**
+     * Constructor
+     * 
+     * @param updatedTime
+     *            the updated time of the last processed record
+     *            (yyyy-MM-dd'T'HH:mm:ss'Z')
+     * @param id
+     *            the record id of the last processed record
+     */
+    public Watermark(String updatedTime, long id) {
+        this.updatedTime = updatedTime;
+        this.id = id;
+    }
+
+    /**
+     * @return the updated time of the last processed record
+     */
+    public String getUpdatedTime() {
+        return updatedTime;
+    }
+
+    /**
+     * @return the record id of the last processed record
+     */
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return updatedTime + "," + id;
+    }
+}
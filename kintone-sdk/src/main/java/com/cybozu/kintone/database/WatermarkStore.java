@@ -0,0 +1,45 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * An interface to persist the watermark of each application.
+ *
+ */
+public interface WatermarkStore {
+
+    /**
+     * Loads the watermark.
+     * @param app
+     *            application id
+     * @return the watermark, or null if the application has never been
+     *         processed
+     * @throws DBException
+     */
+    public Watermark load(long app) throws DBException;
+
+    /**
+     * Saves the watermark. The implementation must replace the previous
+     * watermark atomically.
+     * @param app
+     *            application id
+     * @param watermark
+     *            the new watermark
+     * @throws DBException
+     */
+    public void save(long app, Watermark watermark) throws DBException;
+}
@@ -0,0 +1,100 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future completed by the writer of the batch.
+ */
+class WriteFuture implements Future<Long> {
+
+    private CountDownLatch done = new CountDownLatch(1);
+    private volatile Long id;
+    private volatile Throwable error;
+
+    /**
+     * Completes the future with the id of the record.
+     * 
+     * @param id
+     *            the id of the written record
+     */
+    void set(Long id) {
+        if (done.getCount() == 0)
+            return;
+        this.id = id;
+        done.countDown();
+    }
+
+    /**
+     * Completes the future with the exception.
+     * 
+     * @param error
+     *            the cause of the failure
+     */
+    void setException(Throwable error) {
+        if (done.getCount() == 0)
+            return;
+        this.error = error;
+        done.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Long get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    @Override
+    public Long get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    /**
+     * Gets the result of the completed future.
+     * 
+     * @return the id of the record
+     * @throws ExecutionException
+     */
+    private Long getResult() throws ExecutionException {
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,467 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+/**
+ * An append-only journal of the write batches. A batch is recorded before
+ * it is sent and its result is recorded after, so the batches which were
+ * not completed can be found after a crash. The beginning of a batch is
+ * forced to the disk before the batch is sent, and the results are forced
+ * together with the next beginning, since a lost result only makes the
+ * batch sent again.
+ */
+public class WriteJournal {
+
+    private static final String BEGIN = "BEGIN";
+    private static final String COMMIT = "COMMIT";
+    private static final String FAIL = "FAIL";
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * The status of a batch.
+     */
+    public enum Status {
+        UNKNOWN, PENDING, COMMITTED, FAILED
+    }
+
+    /**
+     * The operation of a batch.
+     */
+    public enum Operation {
+        INSERT, UPDATE, DELETE, UPSERT
+    }
+
+    /**
+     * A batch in the journal.
+     */
+    public static class Entry {
+        private String id;
+        private Operation operation;
+        private long app;
+        private String keyField;
+        private List<Record> records;
+
+        public Entry(String id, Operation operation, long app,
+                String keyField, List<Record> records) {
+            this.id = id;
+            this.operation = operation;
+            this.app = app;
+            this.keyField = keyField;
+            this.records = records;
+        }
+
+        /**
+         * @return the id of the batch
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the operation
+         */
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return application id
+         */
+        public long getApp() {
+            return app;
+        }
+
+        /**
+         * @return the key field of the upsert, or null
+         */
+        public String getKeyField() {
+            return keyField;
+        }
+
+        /**
+         * @return the records of the batch
+         */
+        public List<Record> getRecords() {
+            return records;
+        }
+    }
+
+    private File file;
+    private FileChannel channel;
+    private Map<String, Status> statuses = new LinkedHashMap<String, Status>();
+    private Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+    private int epoch = 0;
+    private final Object syncLock = new Object();
+    private int syncedEpoch = 0;
+    private long syncedPosition = 0;
+
+    /**
+     * Constructor. The batches in the existing journal and their statuses
+     * are recovered.
+     * 
+     * @param file
+     *            the journal file
+     * @throws DBException
+     */
+    public WriteJournal(File file) throws DBException {
+        this.file = file;
+        try {
+            if (file.exists()) {
+                recover();
+            }
+            rewrite(false);
+        } catch (IOException e) {
+            throw new DBException(e, "cannot open journal: " + file);
+        }
+    }
+
+    /**
+     * Gets the status of the batch.
+     * 
+     * @param id
+     *            the id of the batch
+     * @return the status
+     */
+    public synchronized Status getStatus(String id) {
+        Status status = statuses.get(id);
+        return status == null ? Status.UNKNOWN : status;
+    }
+
+    /**
+     * Gets the batches which were begun but not completed, in the order of
+     * the beginning.
+     * 
+     * @return the list of the batches
+     */
+    public synchronized List<Entry> getPending() {
+        return new ArrayList<Entry>(pending.values());
+    }
+
+    /**
+     * Records the beginning of the batch and forces it to the disk.
+     * 
+     * @param entry
+     *            the batch
+     * @throws DBException
+     */
+    public void begin(Entry entry) throws DBException {
+        checkId(entry.getId());
+        JsonParser parser = new JsonParser();
+        String line = BEGIN + "\t" + entry.getId() + "\t" + entry.getOperation()
+                + "\t" + entry.getApp() + "\t"
+                + (entry.getKeyField() == null ? "" : entry.getKeyField())
+                + "\t" + parser.recordsToJson(entry.getRecords());
+        long position;
+        int current;
+        synchronized (this) {
+            if (statuses.containsKey(entry.getId())) {
+                throw new DBException("duplicate batch id: " + entry.getId());
+            }
+            position = append(line);
+            current = epoch;
+            statuses.put(entry.getId(), Status.PENDING);
+            pending.put(entry.getId(), entry);
+        }
+        sync(current, position);
+    }
+
+    /**
+     * Records the success of the batch.
+     * 
+     * @param id
+     *            the id of the batch
+     * @throws DBException
+     */
+    public synchronized void commit(String id) throws DBException {
+        append(COMMIT + "\t" + id);
+        statuses.put(id, Status.COMMITTED);
+        pending.remove(id);
+    }
+
+    /**
+     * Records the failure of the batch which should not be retried.
+     * 
+     * @param id
+     *            the id of the batch
+     * @param message
+     *            the error message
+     * @throws DBException
+     */
+    public synchronized void fail(String id, String message) throws DBException {
+        String text = message == null ? "" : message.replaceAll("[\\t\\r\\n]", " ");
+        append(FAIL + "\t" + id + "\t" + text);
+        statuses.put(id, Status.FAILED);
+        pending.remove(id);
+    }
+
+    /**
+     * Forces all records to the disk.
+     * 
+     * @throws DBException
+     */
+    public void sync() throws DBException {
+        long position;
+        int current;
+        synchronized (this) {
+            if (channel == null) {
+                throw new DBException("journal is closed");
+            }
+            try {
+                position = channel.position();
+            } catch (IOException e) {
+                throw new DBException(e, "cannot write journal");
+            }
+            current = epoch;
+        }
+        sync(current, position);
+    }
+
+    /**
+     * Rewrites the journal with the pending batches only. The committed and
+     * failed batches are forgotten, and their status becomes UNKNOWN.
+     * 
+     * @throws DBException
+     */
+    public synchronized void compact() throws DBException {
+        rewrite(true);
+    }
+
+    /**
+     * Rewrites the journal without the entries of the completed batches.
+     * 
+     * @param prune
+     *            true to forget the statuses of the completed batches, or
+     *            false to keep them
+     * @throws DBException
+     */
+    private void rewrite(boolean prune) throws DBException {
+        if (prune) {
+            statuses.values().retainAll(
+                    Collections.singleton(Status.PENDING));
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        // the rewritten journal is forced, so the waiting syncs are done
+        epoch++;
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            FileOutputStream os = new FileOutputStream(temp);
+            try {
+                Writer writer = new OutputStreamWriter(os, UTF8);
+                JsonParser parser = new JsonParser();
+                for (Map.Entry<String, Status> status : statuses.entrySet()) {
+                    String id = status.getKey();
+                    if (status.getValue() == Status.COMMITTED) {
+                        writer.write(COMMIT + "\t" + id + "\n");
+                    } else if (status.getValue() == Status.FAILED) {
+                        writer.write(FAIL + "\t" + id + "\t\n");
+                    } else {
+                        Entry entry = pending.get(id);
+                        writer.write(BEGIN + "\t" + id + "\t" + entry.getOperation()
+                                + "\t" + entry.getApp() + "\t"
+                                + (entry.getKeyField() == null ? "" : entry.getKeyField())
+                                + "\t" + parser.recordsToJson(entry.getRecords()) + "\n");
+                    }
+                }
+                writer.flush();
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            channel = new FileOutputStream(file, true).getChannel();
+        } catch (IOException e) {
+            throw new DBException(e, "cannot write journal");
+        }
+    }
+
+    /**
+     * Gets the size of the journal file.
+     * 
+     * @return the size in bytes
+     * @throws DBException
+     */
+    public synchronized long size() throws DBException {
+        if (channel == null) {
+            throw new DBException("journal is closed");
+        }
+        try {
+            return channel.position();
+        } catch (IOException e) {
+            throw new DBException(e, "cannot write journal");
+        }
+    }
+
+    /**
+     * Forces the records and closes the journal.
+     * 
+     * @throws DBException
+     */
+    public synchronized void close() throws DBException {
+        if (channel == null)
+            return;
+        try {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        } catch (IOException e) {
+            throw new DBException(e, "cannot close journal");
+        }
+    }
+
+    /**
+     * Appends a line to the journal.
+     * 
+     * @param line
+     *            the line without the line separator
+     * @return the position after the line
+     * @throws DBException
+     */
+    private long append(String line) throws DBException {
+        if (channel == null) {
+            throw new DBException("journal is closed");
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(UTF8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return channel.position();
+        } catch (IOException e) {
+            throw new DBException(e, "cannot write journal");
+        }
+    }
+
+    /**
+     * Forces the journal to the disk up to the position. The records
+     * appended by other threads before the force are also forced, so the
+     * concurrent writers share a force.
+     * 
+     * @param written
+     *            the epoch of the journal file when the record was appended
+     * @param position
+     *            the position to be forced
+     * @throws DBException
+     */
+    private void sync(int written, long position) throws DBException {
+        FileChannel current;
+        long end;
+        synchronized (this) {
+            if (written != epoch || channel == null) {
+                // compacted or closed with the force
+                return;
+            }
+            current = channel;
+            try {
+                end = current.position();
+            } catch (IOException e) {
+                throw new DBException(e, "cannot write journal");
+            }
+        }
+        synchronized (syncLock) {
+            if (syncedEpoch == written && syncedPosition >= position)
+                return;
+            try {
+                current.force(false);
+            } catch (ClosedChannelException e) {
+                // compacted or closed with the force
+                return;
+            } catch (IOException e) {
+                throw new DBException(e, "cannot write journal");
+            }
+            if (syncedEpoch != written || syncedPosition < end) {
+                syncedEpoch = written;
+                syncedPosition = end;
+            }
+        }
+    }
+
+    /**
+     * Reads the journal. An incomplete line at the end is ignored.
+     * 
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        JsonParser parser = new JsonParser();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.split("\t", 6);
+                try {
+                    if (cols[0].equals(BEGIN) && cols.length == 6) {
+                        Entry entry = new Entry(cols[1],
+                                Operation.valueOf(cols[2]),
+                                Long.parseLong(cols[3]),
+                                cols[4].length() == 0 ? null : cols[4],
+                                parser.jsonToRecords(cols[5]));
+                        statuses.put(entry.getId(), Status.PENDING);
+                        pending.put(entry.getId(), entry);
+                    } else if (cols[0].equals(COMMIT) && cols.length >= 2) {
+                        statuses.put(cols[1], Status.COMMITTED);
+                        pending.remove(cols[1]);
+                    } else if (cols[0].equals(FAIL) && cols.length >= 2) {
+                        statuses.put(cols[1], Status.FAILED);
+                        pending.remove(cols[1]);
+                    }
+                } catch (IOException e) {
+                    // torn write
+                } catch (IllegalArgumentException e) {
+                    // torn write
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Checks the id of the batch.
+     * 
+     * @param id
+     *            the id of the batch
+     */
+    private static void checkId(String id) {
+        if (id == null || id.length() == 0 || id.matches(".*[\\t\\r\\n].*")) {
+            throw new IllegalArgumentException("invalid batch id: " + id);
+        }
+    }
+}
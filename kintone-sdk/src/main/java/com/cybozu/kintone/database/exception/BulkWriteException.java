@@ -0,0 +1,131 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database.exception;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.cybozu.kintone.database.ErrorResponse;
+
+public class BulkWriteException extends DBException {
+    /**
+     * An exception thrown when some chunks of a bulk write failed. The chunks
+     * which succeeded are not rolled back.
+     */
+    private static final long serialVersionUID = -3528826329530245212L;
+    private List<ChunkFailure> failures;
+    private List<Long> ids;
+
+    /**
+     * A failure of a chunk.
+     */
+    public static class ChunkFailure {
+        private int index;
+        private int offset;
+        private int size;
+        private DBException cause;
+
+        public ChunkFailure(int index, int offset, int size, DBException cause) {
+            this.index = index;
+            this.offset = offset;
+            this.size = size;
+            this.cause = cause;
+        }
+
+        /**
+         * Gets the index of the chunk.
+         * 
+         * @return the index of the chunk
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Gets the position of the first record of the chunk in the input.
+         * 
+         * @return the offset in the input
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * Gets the number of the records in the chunk.
+         * 
+         * @return the number of the records
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the exception of the chunk.
+         * 
+         * @return the exception
+         */
+        public DBException getCause() {
+            return cause;
+        }
+    }
+
+    public BulkWriteException(List<ChunkFailure> failures, List<Long> ids) {
+        super(failures.get(0).getCause(), failures.size()
+                + " chunk(s) failed: " + failures.get(0).getCause().getMessage());
+        this.failures = new ArrayList<ChunkFailure>(failures);
+        this.ids = ids;
+    }
+
+    /**
+     * Gets the error response of the first failed chunk.
+     * 
+     * @return the error response, or null if kintone did not respond
+     */
+    @Override
+    public ErrorResponse getErrorResponse() {
+        return failures.get(0).getCause().getErrorResponse();
+    }
+
+    /**
+     * Gets the http status of the first failed chunk.
+     * 
+     * @return the http status, or 0 if kintone did not respond
+     */
+    @Override
+    public int getHttpStatus() {
+        return failures.get(0).getCause().getHttpStatus();
+    }
+
+    /**
+     * Gets the failed chunks. A chunk which was written partially has a
+     * failure for each run of its failed records.
+     * 
+     * @return the list of the failures in the input order
+     */
+    public List<ChunkFailure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * Gets the ids of the records written successfully.
+     * 
+     * @return the list of the ids in the input order, which has null for the
+     *         records of the failed chunks
+     */
+    public List<Long> getIds() {
+        return Collections.unmodifiableList(ids);
+    }
+}
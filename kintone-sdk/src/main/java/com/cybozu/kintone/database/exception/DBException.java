@@ -40,6 +40,11 @@ public class DBException extends Exception {
         super(message);
     }
     
+    public DBException(int httpStatus, String message) {
+        super(message);
+        this.httpStatus = httpStatus;
+    }
+    
     public DBException(int httpStatus, ErrorResponse error) {
         super(error.getMessage());
         this.error = error;
@@ -0,0 +1,52 @@
+//   Copyright 2014 Cybozu
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+package com.cybozu.kintone.database.exception;
+
+import com.cybozu.kintone.database.Record;
+
+public class UploadException extends DBException {
+    /**
+     * An exception thrown when the file of a field failed to be uploaded.
+     */
+    private static final long serialVersionUID = 4629383052360587361L;
+    private Record record;
+    private String fieldName;
+
+    public UploadException(Record record, String fieldName, DBException cause) {
+        super(cause, "failed to upload the file of " + fieldName
+                + (record.getId() >= 0 ? " in record " + record.getId() : "")
+                + ": " + cause.getMessage());
+        this.record = record;
+        this.fieldName = fieldName;
+    }
+
+    /**
+     * Gets the record which has the file.
+     * 
+     * @return the record object
+     */
+    public Record getRecord() {
+        return record;
+    }
+
+    /**
+     * Gets the name of the field which has the file.
+     * 
+     * @return the field name
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+}
@@ -5,7 +5,13 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({ ConnectionTest.class })
+@SuiteClasses({ ConnectionTest.class, QueryTest.class,
+		IndexedRecordCollectionTest.class, ChunkExecutorTest.class,
+		BatchWriterTest.class, UploadCacheTest.class, BulkDownloaderTest.class,
+		FileCacheTest.class, WriteJournalTest.class, RecordImporterTest.class,
+		RecordExporterTest.class, RecordChangeTest.class,
+		RecordCursorTest.class, FormSchemaTest.class,
+		LocalRecordStoreTest.class, JsonParserTest.class })
 public class AllTests {
 
 }
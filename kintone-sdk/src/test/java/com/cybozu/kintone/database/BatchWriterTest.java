@@ -0,0 +1,177 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+public class BatchWriterTest {
+
+	/**
+	 * A connection which records the writes instead of sending them.
+	 */
+	static class RecordingConnection extends Connection {
+		List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+		long nextId = 1;
+		boolean failUpdates = false;
+		List<Record> updated = new ArrayList<Record>();
+
+		RecordingConnection() {
+			super("localhost", "token");
+		}
+
+		@Override
+		public List<Long> insert(long app, List<Record> records) throws DBException {
+			calls.add("insert:" + app + ":" + records.size());
+			List<Long> ids = new ArrayList<Long>();
+			for (int i = 0; i < records.size(); i++) {
+				ids.add(nextId++);
+			}
+			return ids;
+		}
+
+		@Override
+		public void updateByRecords(long app, List<Record> records) throws DBException {
+			calls.add("update:" + app + ":" + records.size());
+			updated.addAll(records);
+			if (failUpdates) {
+				throw new DBException("update failed");
+			}
+		}
+
+		@Override
+		public void deleteByRecords(long app, List<Record> records) throws DBException {
+			calls.add("delete:" + app + ":" + records.size());
+		}
+	}
+
+	private RecordingConnection connection;
+
+	@Before
+	public void setUp() {
+		connection = new RecordingConnection();
+	}
+
+	private Record createRecord(long id, String text) {
+		Record record = new Record();
+		if (id > 0) {
+			record.setId(id);
+		}
+		record.setString("Single_line_text", text);
+		return record;
+	}
+
+	@Test
+	public void testBatchBySize() throws Exception {
+		BatchWriter writer = new BatchWriter(connection, 3, 60000);
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for (int i = 0; i < 7; i++) {
+			futures.add(writer.insert(1, createRecord(0, "r" + i)));
+		}
+		assertEquals(Long.valueOf(1), futures.get(0).get());
+		assertEquals(Long.valueOf(6), futures.get(5).get());
+		assertFalse(futures.get(6).isDone());
+		writer.close();
+		assertEquals(Long.valueOf(7), futures.get(6).get());
+		assertEquals("[insert:1:3, insert:1:3, insert:1:1]", connection.calls.toString());
+	}
+
+	@Test
+	public void testBatchByLinger() throws Exception {
+		BatchWriter writer = new BatchWriter(connection, 100, 20);
+		Future<Long> future = writer.insert(1, createRecord(0, "a"));
+		assertEquals(Long.valueOf(1), future.get());
+		writer.close();
+	}
+
+	@Test
+	public void testGroupingAndOrder() throws Exception {
+		BatchWriter writer = new BatchWriter(connection, 2, 60000);
+		writer.updateByRecord(1, createRecord(10, "a"));
+		writer.insert(2, createRecord(0, "b"));
+		writer.delete(1, 11);
+		writer.updateByRecord(1, createRecord(12, "c"));
+		writer.flush();
+		assertEquals("[update:1:1, insert:2:1, delete:1:1, update:1:1]", connection.calls.toString());
+		writer.close();
+	}
+
+	@Test
+	public void testOrderOfApplication() throws Exception {
+		BatchWriter writer = new BatchWriter(connection, 100, 60000);
+		writer.delete(1, 10);
+		Future<Long> update = writer.updateByRecord(1, createRecord(10, "a"));
+		assertFalse(update.isDone());
+		writer.insert(2, createRecord(0, "b"));
+		writer.delete(1, 11);
+		writer.close();
+		assertEquals("[delete:1:1, update:1:1, insert:2:1, delete:1:1]", connection.calls.toString());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		connection.failUpdates = true;
+		BatchWriter writer = new BatchWriter(connection, 100, 60000);
+		Future<Long> update = writer.updateByRecord(1, createRecord(10, "a"));
+		Future<Long> delete = writer.delete(1, 11);
+		writer.close();
+		try {
+			update.get();
+			fail("no exception");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DBException);
+		}
+		assertEquals(Long.valueOf(11), delete.get());
+	}
+
+	@Test
+	public void testCoalesceUpdates() throws Exception {
+		BatchWriter writer = new BatchWriter(connection, 100, 60000);
+		Record first = createRecord(10, "a");
+		first.setString("Number", "1");
+		Future<Long> f1 = writer.updateByRecord(1, first);
+		Future<Long> f2 = writer.updateByRecord(1, createRecord(10, "b"));
+		writer.updateByRecord(1, createRecord(11, "c"));
+		writer.close();
+		assertEquals("[update:1:2]", connection.calls.toString());
+		Record merged = connection.updated.get(0);
+		assertEquals("b", merged.getString("Single_line_text"));
+		assertEquals("1", merged.getString("Number"));
+		assertEquals("a", first.getString("Single_line_text"));
+		assertEquals(Long.valueOf(10), f1.get());
+		assertEquals(Long.valueOf(10), f2.get());
+	}
+
+	@Test
+	public void testDeleteSupersedesUpdate() throws Exception {
+		BatchWriter writer = new BatchWriter(connection, 100, 60000);
+		Future<Long> update = writer.updateByRecord(1, createRecord(10, "a"));
+		Future<Long> delete = writer.delete(1, 10);
+		writer.close();
+		assertEquals("[delete:1:1]", connection.calls.toString());
+		assertEquals(Long.valueOf(10), update.get());
+		assertEquals(Long.valueOf(10), delete.get());
+	}
+
+	@Test
+	public void testInsertDeleteCancel() throws Exception {
+		BatchWriter writer = new BatchWriter(connection, 100, 60000);
+		Record record = createRecord(0, "a");
+		Future<Long> insert = writer.insert(1, record);
+		Future<Long> other = writer.insert(1, createRecord(0, "b"));
+		Future<Long> delete = writer.deleteByRecord(1, record);
+		writer.close();
+		assertEquals("[insert:1:1]", connection.calls.toString());
+		assertNull(insert.get());
+		assertNull(delete.get());
+		assertEquals(Long.valueOf(1), other.get());
+	}
+}
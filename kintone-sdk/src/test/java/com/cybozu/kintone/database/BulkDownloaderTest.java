@@ -0,0 +1,114 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+public class BulkDownloaderTest {
+
+	/**
+	 * A connection which serves the files from memory.
+	 */
+	static class MemoryConnection extends Connection {
+		Map<String, String> files = new HashMap<String, String>();
+		List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+
+		MemoryConnection() {
+			super("localhost", "token");
+		}
+
+		@Override
+		public void downloadFile(String fileKey, DownloadCallback callback) throws DBException {
+			requested.add(fileKey);
+			String content = files.get(fileKey);
+			if (content == null) {
+				throw new DBException("not found: " + fileKey);
+			}
+			try {
+				callback.onReceive(new ByteArrayInputStream(content.getBytes()), content.length());
+			} catch (IOException e) {
+				throw new DBException(e);
+			}
+		}
+	}
+
+	private FileDto createFile(String fileKey, String name) {
+		FileDto file = new FileDto();
+		file.setFileKey(fileKey);
+		file.setName(name);
+		return file;
+	}
+
+	@Test
+	public void testDownloadToSink() throws DBException {
+		MemoryConnection connection = new MemoryConnection();
+		connection.files.put("k1", "hello");
+		connection.files.put("k2", "world!");
+		List<FileDto> files = new ArrayList<FileDto>();
+		files.add(createFile("k1", "a.txt"));
+		files.add(createFile("k2", "b.txt"));
+		files.add(createFile("k1", "a.txt"));
+		files.add(createFile("k3", "c.txt"));
+
+		final Map<String, String> received = Collections.synchronizedMap(new HashMap<String, String>());
+		BulkDownloader downloader = new BulkDownloader(connection, 2);
+		Map<String, DBException> failures = downloader.download(files, new DownloadSink() {
+			@Override
+			public void receive(FileDto file, InputStream input, long contentLength) throws IOException {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				int b;
+				while ((b = input.read()) != -1) {
+					out.write(b);
+				}
+				received.put(file.getFileKey(), out.toString());
+			}
+		});
+
+		assertEquals(3, connection.requested.size());
+		assertEquals("hello", received.get("k1"));
+		assertEquals("world!", received.get("k2"));
+		assertEquals(1, failures.size());
+		assertTrue(failures.containsKey("k3"));
+		assertEquals(3, downloader.getTotalCount());
+		assertEquals(2, downloader.getDownloadedCount());
+		assertEquals(1, downloader.getFailedCount());
+		assertEquals(11, downloader.getDownloadedBytes());
+		assertTrue(downloader.getThroughput() > 0);
+	}
+
+	@Test
+	public void testDownloadToDirectory() throws Exception {
+		MemoryConnection connection = new MemoryConnection();
+		connection.files.put("k1", "hello");
+		File directory = File.createTempFile("bulk", "");
+		directory.delete();
+		try {
+			BulkDownloader downloader = new BulkDownloader(connection);
+			List<FileDto> files = new ArrayList<FileDto>();
+			files.add(createFile("k1", "dir/a.txt"));
+			assertTrue(downloader.download(files, directory).isEmpty());
+			File file = new File(directory, "k1_dir_a.txt");
+			assertTrue(file.exists());
+			assertEquals(5, file.length());
+			assertEquals(1, directory.list().length);
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+}
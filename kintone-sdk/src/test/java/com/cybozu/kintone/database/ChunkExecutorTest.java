@@ -0,0 +1,159 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cybozu.kintone.database.exception.BulkWriteException;
+import com.cybozu.kintone.database.exception.BulkWriteException.ChunkFailure;
+import com.cybozu.kintone.database.exception.DBException;
+
+public class ChunkExecutorTest {
+
+	private List<Long> range(int size) {
+		List<Long> list = new ArrayList<Long>();
+		for (long i = 0; i < size; i++) {
+			list.add(i);
+		}
+		return list;
+	}
+
+	private ChunkExecutor.Task<Long> doubler(final long failAt) {
+		return new ChunkExecutor.Task<Long>() {
+			@Override
+			public List<Long> execute(List<Long> chunk) throws DBException {
+				if (chunk.contains(failAt)) {
+					throw new DBException("failed at " + failAt);
+				}
+				List<Long> ids = new ArrayList<Long>();
+				for (Long item : chunk) {
+					ids.add(item * 2);
+				}
+				return ids;
+			}
+		};
+	}
+
+	@Test
+	public void testSplit() {
+		List<List<Long>> chunks = ChunkExecutor.split(range(250), 100);
+		assertEquals(3, chunks.size());
+		assertEquals(100, chunks.get(0).size());
+		assertEquals(50, chunks.get(2).size());
+		assertEquals(Long.valueOf(200), chunks.get(2).get(0));
+		assertTrue(ChunkExecutor.split(range(0), 100).isEmpty());
+	}
+
+	@Test
+	public void testExecuteInOrder() throws DBException {
+		ChunkExecutor<Long> executor = new ChunkExecutor<Long>(7, 3);
+		List<Long> ids = executor.execute(range(100), doubler(-1));
+		assertEquals(100, ids.size());
+		for (int i = 0; i < ids.size(); i++) {
+			assertEquals(Long.valueOf(i * 2), ids.get(i));
+		}
+	}
+
+	@Test
+	public void testExecuteWithFailure() {
+		ChunkExecutor<Long> executor = new ChunkExecutor<Long>(10, 4);
+		try {
+			executor.execute(range(35), doubler(12));
+			fail("no exception");
+		} catch (BulkWriteException e) {
+			assertEquals(1, e.getFailures().size());
+			assertEquals(1, e.getFailures().get(0).getIndex());
+			assertEquals(10, e.getFailures().get(0).getOffset());
+			assertEquals(10, e.getFailures().get(0).getSize());
+			assertEquals(35, e.getIds().size());
+			assertEquals(Long.valueOf(18), e.getIds().get(9));
+			assertNull(e.getIds().get(10));
+			assertEquals(Long.valueOf(40), e.getIds().get(20));
+		} catch (DBException e) {
+			fail("unexpected exception");
+		}
+	}
+
+	@Test
+	public void testPartialFailure() {
+		ChunkExecutor<Long> executor = new ChunkExecutor<Long>(10, 2);
+		try {
+			executor.execute(range(20), new ChunkExecutor.Task<Long>() {
+				@Override
+				public List<Long> execute(List<Long> chunk) throws DBException {
+					List<Long> ids = new ArrayList<Long>(chunk);
+					if (chunk.get(0) > 0) {
+						ids.set(2, null);
+						ids.set(3, null);
+						List<ChunkFailure> failures = new ArrayList<ChunkFailure>();
+						failures.add(new ChunkFailure(0, 2, 2, new DBException("insert failed")));
+						throw new BulkWriteException(failures, ids);
+					}
+					return ids;
+				}
+			});
+			fail("no exception");
+		} catch (BulkWriteException e) {
+			assertEquals(1, e.getFailures().size());
+			assertEquals(1, e.getFailures().get(0).getIndex());
+			assertEquals(12, e.getFailures().get(0).getOffset());
+			assertEquals(2, e.getFailures().get(0).getSize());
+			assertEquals(20, e.getIds().size());
+			assertEquals(Long.valueOf(11), e.getIds().get(11));
+			assertNull(e.getIds().get(12));
+			assertNull(e.getIds().get(13));
+			assertEquals(Long.valueOf(14), e.getIds().get(14));
+		} catch (DBException e) {
+			fail("unexpected exception");
+		}
+	}
+
+	@Test
+	public void testStopOnFailure() {
+		ChunkExecutor<Long> executor = new ChunkExecutor<Long>(10, 1);
+		executor.setStopOnFailure(true);
+		try {
+			executor.execute(range(35), doubler(12));
+			fail("no exception");
+		} catch (BulkWriteException e) {
+			assertEquals(3, e.getFailures().size());
+			assertEquals(1, e.getFailures().get(0).getIndex());
+			assertEquals(3, e.getFailures().get(2).getIndex());
+			assertEquals(Long.valueOf(0), e.getIds().get(0));
+			assertNull(e.getIds().get(30));
+		} catch (DBException e) {
+			fail("unexpected exception");
+		}
+	}
+
+	@Test
+	public void testExecuteEmpty() throws DBException {
+		ChunkExecutor<Long> executor = new ChunkExecutor<Long>(10, 2);
+		assertTrue(executor.execute(range(0), doubler(-1)).isEmpty());
+	}
+
+	@Test
+	public void testFailureStatus() {
+		ChunkExecutor<Long> executor = new ChunkExecutor<Long>(10, 2);
+		try {
+			executor.execute(range(20), new ChunkExecutor.Task<Long>() {
+				@Override
+				public List<Long> execute(List<Long> chunk) throws DBException {
+					ErrorResponse error = new ErrorResponse();
+					error.setCode("CB_VA01");
+					error.setMessage("invalid value");
+					throw new DBException(400, error);
+				}
+			});
+			fail("no exception");
+		} catch (BulkWriteException e) {
+			assertEquals(400, e.getHttpStatus());
+			assertEquals("CB_VA01", e.getErrorResponse().getCode());
+		} catch (DBException e) {
+			fail("unexpected exception");
+		}
+	}
+}
@@ -2,10 +2,14 @@ package com.cybozu.kintone.database;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.channels.Channels;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -13,6 +17,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.cybozu.kintone.database.exception.DBException;
+import com.cybozu.kintone.database.exception.UploadException;
 
 public class ConnectionTest {
 
@@ -696,4 +701,372 @@ public class ConnectionTest {
 			fail("db exception:" + e.getMessage());
 		}
 	}
+
+	@Test
+	public void testRecordChangePoller() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			DateFormat df = new SimpleDateFormat("yyyy-MM-dd hh:mm");
+			Date date = df.parse("2000-01-01 01:34");
+			ArrayList<Record> records = new ArrayList<Record>();
+			for (int i = 0; i < 3; i++) {
+				Record record = new Record();
+				record.setString("Single_line_text", "foo" + i);
+				record.setDateTime("Updated_datetime", date);
+				records.add(record);
+			}
+			db.insert(app, records);
+
+			final List<Record> changes = new ArrayList<Record>();
+			File file = File.createTempFile("watermark", ".properties");
+			file.delete();
+			RecordChangePoller poller = new RecordChangePoller(db,
+					"Updated_datetime", new FileWatermarkStore(file),
+					new RecordChangeListener() {
+						@Override
+						public void onUpsert(long app, List<Record> records) {
+							changes.addAll(records);
+						}
+					});
+			poller.setLimit(2);
+
+			assertEquals(poller.poll(app), 3);
+			assertEquals(changes.size(), 3);
+			assertEquals(poller.poll(app), 0);
+			file.delete();
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testAppMirror() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			List<Long> ids = insertRecords();
+			File dir = File.createTempFile("mirror", "");
+			dir.delete();
+			AppMirror mirror = new AppMirror(db, app, dir, "Updated_datetime");
+			assertEquals(mirror.fullSync(), 3);
+			assertEquals(mirror.getRecord(ids.get(0)).getString("Single_line_text"), "foo");
+
+			db.delete(app, ids.get(1));
+			assertEquals(mirror.reconcile(), 1);
+			assertEquals(mirror.select().size(), 2);
+			mirror.close();
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testAppCache() {
+		Connection db = getConnection();
+		db.enableAppCache(60 * 1000);
+		try {
+			AppDto app = db.getApp(getAppId());
+			assertSame(app, db.getApp(getAppId()));
+			List<Long> ids = new ArrayList<Long>();
+			ids.add(getAppId());
+			assertEquals(db.getAppCache().getApps(ids).size(), 1);
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+
+	@Test
+	public void testFormSchema() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			FormSchema schema = db.getFormSchema(app);
+			assertEquals(FieldType.SINGLE_LINE_TEXT, schema.getFieldType("Single_line_text"));
+			assertEquals(FieldType.NUMBER, schema.getFieldType("Number"));
+			assertSame(schema, db.getFormSchema(app));
+
+			db.setUseFormSchema(true);
+			Record record = new Record();
+			record.setString("Single_line_text", "schema");
+			record.setString("Number", "1.5");
+			long id = db.insert(app, record);
+			ResultSet rs = db.select(app, "$id = " + id);
+			assertTrue(rs.next());
+			assertEquals("1.5", rs.getString("Number"));
+
+			record = new Record();
+			record.setString("Number", "abc");
+			try {
+				db.insert(app, record);
+				fail("invalid number");
+			} catch (DBException e) {
+			}
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		} finally {
+			db.setUseFormSchema(false);
+		}
+	}
+
+
+	@Test
+	public void testInsertChunked() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			List<Record> records = new ArrayList<Record>();
+			for (int i = 0; i < 250; i++) {
+				Record record = new Record();
+				record.setString("Single_line_text", "chunk" + i);
+				records.add(record);
+			}
+			List<Long> ids = db.insert(app, records);
+			assertEquals(250, ids.size());
+			ResultSet rs = db.select(app, "$id = " + ids.get(249));
+			assertTrue(rs.next());
+			assertEquals("chunk249", rs.getString("Single_line_text"));
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+
+	@Test
+	public void testUpdateAndDeleteChunked() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			List<Record> records = new ArrayList<Record>();
+			for (int i = 0; i < 250; i++) {
+				Record record = new Record();
+				record.setString("Single_line_text", "before");
+				records.add(record);
+			}
+			List<Long> ids = db.insert(app, records);
+
+			List<Record> updates = new ArrayList<Record>();
+			for (Long id : ids) {
+				Record record = new Record();
+				record.setId(id);
+				record.setString("Single_line_text", "after");
+				updates.add(record);
+			}
+			db.setWriteConcurrency(2);
+			db.updateByRecords(app, updates);
+			ResultSet rs = db.select(app, "$id = " + ids.get(249));
+			assertTrue(rs.next());
+			assertEquals("after", rs.getString("Single_line_text"));
+
+			db.delete(app, ids);
+			rs = db.select(app, "$id >= " + ids.get(0) + " and $id <= " + ids.get(249));
+			assertEquals(0, rs.size());
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+
+	@Test
+	public void testBulkRequestSplit() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			BulkRequest bulk = new BulkRequest();
+			List<Record> records = new ArrayList<Record>();
+			for (int i = 0; i < 150; i++) {
+				Record record = new Record();
+				record.setString("Single_line_text", "bulk");
+				records.add(record);
+			}
+			bulk.insert(app, records);
+			for (int i = 0; i < 25; i++) {
+				Record record = new Record();
+				record.setString("Single_line_text", "bulk" + i);
+				bulk.insert(app, record);
+			}
+			assertEquals(27, bulk.size());
+			db.bulkRequest(bulk);
+			ResultSet rs = db.select(app, "Single_line_text = \"bulk24\"");
+			assertEquals(1, rs.size());
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+
+	@Test
+	public void testParallelUpload() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			List<Record> records = new ArrayList<Record>();
+			for (int i = 0; i < 5; i++) {
+				Record record = new Record();
+				record.setFile("Attachment", new ByteArrayInputStream(("file" + i).getBytes()), "file" + i + ".txt");
+				records.add(record);
+			}
+			db.setUploadConcurrency(3);
+			List<Long> ids = db.insert(app, records);
+			ResultSet rs = db.select(app, "$id = " + ids.get(4));
+			assertTrue(rs.next());
+			assertEquals("file4.txt", rs.getFiles("Attachment").get(0).getName());
+
+			Record record = new Record();
+			record.setFile("Attachment", new File("not_exist.txt"));
+			try {
+				db.insert(app, Arrays.asList(records.get(0), record));
+				fail("no exception");
+			} catch (UploadException e) {
+				assertSame(record, e.getRecord());
+				assertEquals("Attachment", e.getFieldName());
+			}
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+
+	@Test
+	public void testUploadCache() {
+		Connection db = getConnection();
+		try {
+			db.enableUploadCache(60 * 60 * 1000);
+			String key1 = db.uploadFile("text/plain", new ByteArrayInputStream("same".getBytes()), "same.txt");
+			String key2 = db.uploadFile("text/plain", "same".getBytes(), "same.txt");
+			String key3 = db.uploadFile("text/plain", "other".getBytes(), "same.txt");
+			assertEquals(key1, key2);
+			assertFalse(key1.equals(key3));
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+
+	@Test
+	public void testUploadBytes() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			Record record = new Record();
+			record.setFile("Attachment", "bytes".getBytes(), "bytes.txt", "text/plain");
+			long id = db.insert(app, record);
+			ResultSet rs = db.select(app, "$id = " + id);
+			assertTrue(rs.next());
+			FileDto file = rs.getFiles("Attachment").get(0);
+			assertEquals("bytes.txt", file.getName());
+			assertEquals(5, file.getSize());
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+
+	@Test
+	public void testDownloadToStream() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			Record record = new Record();
+			record.setFile("Attachment", "download".getBytes(), "download.txt", "text/plain");
+			long id = db.insert(app, record);
+			ResultSet rs = db.select(app, "$id = " + id);
+			assertTrue(rs.next());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			rs.downloadFile("Attachment", 0, out);
+			assertEquals("download", out.toString());
+
+			out = new ByteArrayOutputStream();
+			rs.downloadFile("Attachment", 0, Channels.newChannel(out));
+			assertEquals("download", out.toString());
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+
+	@Test
+	public void testUpdateByQueryPaged() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			List<Record> records = new ArrayList<Record>();
+			for (int i = 0; i < 600; i++) {
+				Record record = new Record();
+				record.setString("Single_line_text", "mass");
+				records.add(record);
+			}
+			db.insert(app, records);
+
+			Record record = new Record();
+			record.setString("Single_line_text", "edited");
+			assertEquals(600, db.updateByQuery(app, "Single_line_text = \"mass\"", record));
+			ResultSet rs = db.select(app, "Single_line_text = \"mass\"");
+			assertEquals(0, rs.size());
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+
+	@Test
+	public void testDeleteByQueryPaged() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			List<Record> records = new ArrayList<Record>();
+			for (int i = 0; i < 600; i++) {
+				Record record = new Record();
+				record.setString("Single_line_text", "trash");
+				records.add(record);
+			}
+			db.insert(app, records);
+
+			assertEquals(600, db.deleteByQuery(app, "Single_line_text = \"trash\""));
+			ResultSet rs = db.select(app, "Single_line_text = \"trash\"");
+			assertEquals(0, rs.size());
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testUpdateChangedFields() {
+		Connection db = getConnection();
+		long app = getAppId();
+		try {
+			List<Long> ids = insertRecords();
+			long id = ids.get(1);
+			ResultSet rs = db.select(app, "Record_number = " + id);
+			if (rs.size() != 1) {
+				fail("invalid count");
+			}
+			Record record = rs.getRecords().get(0);
+			record.setString("Single_line_text", "changed");
+			if (record.getChangedFieldNames().size() != 1) {
+				fail("invalid changes");
+			}
+			db.updateByRecord(app, record);
+			if (!record.getChangedFieldNames().isEmpty()) {
+				fail("changes are not cleared");
+			}
+
+			rs = db.select(app, "Single_line_text = \"changed\"");
+			if (rs.size() != 1) {
+				fail("failed to update");
+			}
+		} catch (Exception e) {
+			fail("db exception:" + e.getMessage());
+		}
+	}
+
+	@Test
+	public void testUpsertKey() {
+		assertEquals("1.5", Connection.toUpsertKey(FieldType.NUMBER, "1.50"));
+		assertEquals("100", Connection.toUpsertKey(FieldType.NUMBER, "1E+2"));
+		assertEquals("0", Connection.toUpsertKey(FieldType.NUMBER, "0.00"));
+		assertEquals("abc", Connection.toUpsertKey(FieldType.NUMBER, "abc"));
+		assertEquals("1.50", Connection.toUpsertKey(FieldType.SINGLE_LINE_TEXT, "1.50"));
+	}
 }
@@ -0,0 +1,121 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cybozu.kintone.database.BulkDownloaderTest.MemoryConnection;
+
+public class FileCacheTest {
+
+	private File directory;
+	private MemoryConnection connection;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("cache", "");
+		directory.delete();
+		connection = new MemoryConnection();
+		connection.files.put("k1", "12345");
+		connection.files.put("k2", "67890");
+		connection.files.put("k3", "abcde");
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		FileCache cache = new FileCache(connection, directory, 100);
+		File file = cache.get("k1");
+		assertEquals(5, file.length());
+		assertEquals(file, cache.get("k1"));
+		assertEquals(1, connection.requested.size());
+		assertTrue(cache.contains("k1"));
+		assertFalse(cache.contains("k2"));
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		FileCache cache = new FileCache(connection, directory, 10);
+		cache.get("k1");
+		cache.get("k2");
+		cache.get("k1");
+		cache.get("k3");
+		assertEquals(2, cache.size());
+		assertEquals(10, cache.getTotalBytes());
+		assertTrue(cache.contains("k1"));
+		assertFalse(cache.contains("k2"));
+		assertEquals(2, directory.list().length);
+	}
+
+	@Test
+	public void testReload() throws Exception {
+		FileCache cache = new FileCache(connection, directory, 100);
+		cache.get("k1");
+		new File(directory, ".download123.tmp").createNewFile();
+
+		cache = new FileCache(connection, directory, 100);
+		assertTrue(cache.contains("k1"));
+		assertEquals(5, cache.getTotalBytes());
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test
+	public void testDownloadFileCopy() throws Exception {
+		connection.files.put("file1", "12345");
+		connection.enableFileCache(directory, 100);
+		File file = connection.downloadFile("file1");
+		try {
+			assertEquals(5, file.length());
+			assertFalse(file.equals(connection.getFileCache().get("file1")));
+		} finally {
+			file.delete();
+		}
+		assertTrue(connection.getFileCache().get("file1").exists());
+		assertEquals(1, connection.requested.size());
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		final FileCache cache = new FileCache(connection, directory, 100);
+		List<Thread> threads = new ArrayList<Thread>();
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						assertEquals(5, cache.get("k2").length());
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.isEmpty());
+		assertEquals(1, connection.requested.size());
+		assertEquals(1, directory.list().length);
+	}
+}
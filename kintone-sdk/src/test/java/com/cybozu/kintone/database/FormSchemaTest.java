@@ -0,0 +1,73 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+public class FormSchemaTest {
+
+	private FormSchema schema;
+
+	@Before
+	public void setUp() {
+		Map<String, FormField> fields = new HashMap<String, FormField>();
+		fields.put("number", new FormField("number", "Number", "RECORD_NUMBER", false, false, null, null));
+		fields.put("total", new FormField("total", "Total", "CALC", false, false, null, null));
+		fields.put("status", new FormField("status", "Status", "STATUS", false, false, null, null));
+		fields.put("count", new FormField("count", "Count", "NUMBER", false, false, null, null));
+		schema = new FormSchema(1, 1, fields);
+	}
+
+	@Test
+	public void testSelectedRecordIsValid() throws Exception {
+		String json = "{\"records\":[{"
+				+ "\"number\":{\"type\":\"RECORD_NUMBER\",\"value\":\"7\"},"
+				+ "\"total\":{\"type\":\"CALC\",\"value\":\"10\"},"
+				+ "\"status\":{\"type\":\"STATUS\",\"value\":\"open\"},"
+				+ "\"count\":{\"type\":\"NUMBER\",\"value\":\"3\"}}]}";
+		Record record = new JsonParser().jsonToResultSet(null, json).getRecords().get(0);
+		schema.validate(record);
+
+		Record copy = (Record) record.clone();
+		schema.validate(copy);
+
+		record.setString("count", "x");
+		try {
+			schema.validate(record);
+			fail("no exception");
+		} catch (DBException e) {
+			assertTrue(e.getMessage().contains("count: not a number"));
+		}
+	}
+
+	@Test(expected = DBException.class)
+	public void testUnknownField() throws Exception {
+		Record record = new Record();
+		record.setString("unknown", "a");
+		schema.validate(record);
+	}
+
+	@Test
+	public void testUnchangedFieldsAreNotValidated() throws Exception {
+		String json = "{\"records\":[{"
+				+ "\"legacy\":{\"type\":\"SINGLE_LINE_TEXT\",\"value\":\"a\"},"
+				+ "\"count\":{\"type\":\"NUMBER\",\"value\":\"3\"}}]}";
+		Record record = new JsonParser().jsonToResultSet(null, json).getRecords().get(0);
+		record.setLong("count", 4);
+		schema.validate(record);
+
+		record.setString("legacy", "b");
+		try {
+			schema.validate(record);
+			fail("no exception");
+		} catch (DBException e) {
+			assertTrue(e.getMessage().contains("legacy: unknown field"));
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexedRecordCollectionTest {
+
+	private IndexedRecordCollection collection;
+
+	private Record createRecord(long id, String code, String number) {
+		Record record = new Record(id, 1);
+		record.addField("Code", new Field("Code", FieldType.SINGLE_LINE_TEXT, code));
+		record.addField("Number", new Field("Number", FieldType.NUMBER, number));
+		return record;
+	}
+
+	private List<Long> idsOf(List<Record> records) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Record record : records) {
+			ids.add(record.getId());
+		}
+		return ids;
+	}
+
+	@Before
+	public void initialize() {
+		collection = new IndexedRecordCollection();
+		collection.putAll(Arrays.asList(createRecord(1, "A", "10"),
+				createRecord(2, "B", "9"), createRecord(3, "A", "100")));
+		collection.createHashIndex("Code");
+		collection.createSortedIndex("Number");
+	}
+
+	@Test
+	public void testHashIndex() {
+		assertEquals(Arrays.asList(1L, 3L), idsOf(collection.findEqual("Code", "A")));
+		assertEquals(0, collection.findEqual("Code", "C").size());
+	}
+
+	@Test
+	public void testSortedIndex() {
+		assertEquals(Arrays.asList(1L, 2L), idsOf(collection.findRange("Number", "9", "11")));
+		assertEquals(Arrays.asList(1L), idsOf(collection.findEqual("Number", "10.0")));
+	}
+
+	@Test
+	public void testIncrementalMaintenance() {
+		collection.putAll(Arrays.asList(createRecord(1, "C", "50")));
+		assertEquals(Arrays.asList(3L), idsOf(collection.findEqual("Code", "A")));
+		assertEquals(Arrays.asList(1L, 3L), idsOf(collection.findRange("Number", "11", null)));
+
+		collection.removeAll(Arrays.asList(3L));
+		assertEquals(0, collection.findEqual("Code", "A").size());
+		assertEquals(Arrays.asList(1L), idsOf(collection.findRange("Number", "11", null)));
+	}
+
+	@Test
+	public void testReplaceAll() {
+		collection.replaceAll(Arrays.asList(createRecord(4, "A", "1")));
+		assertEquals(1, collection.size());
+		assertNull(collection.get(1));
+		assertEquals(Arrays.asList(4L), idsOf(collection.findEqual("Code", "A")));
+		assertEquals(Arrays.asList(4L), idsOf(collection.findRange("Number", null, "9")));
+	}
+
+	@Test
+	public void testRecordChangedInPlace() {
+		Record record = collection.get(1);
+		record.setString("Code", "Z");
+		record.setLong("Number", 20);
+		collection.putAll(Arrays.asList(record));
+		assertEquals(Arrays.asList(3L), idsOf(collection.findEqual("Code", "A")));
+		assertEquals(Arrays.asList(1L), idsOf(collection.findEqual("Code", "Z")));
+		assertEquals(0, collection.findEqual("Number", "10").size());
+		assertEquals(Arrays.asList(1L), idsOf(collection.findEqual("Number", "20")));
+	}
+
+	@Test
+	public void testUnparseableValueIsNotIndexed() {
+		collection.putAll(Arrays.asList(createRecord(4, "D", "abc")));
+		assertEquals(Arrays.asList(1L, 2L, 3L), idsOf(collection.findRange("Number", null, null)));
+		assertEquals(0, collection.findEqual("Number", "abc").size());
+		assertEquals(0, collection.findRange("Number", "abc", null).size());
+	}
+}
@@ -0,0 +1,47 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class JsonParserTest {
+
+	@Test
+	public void testNumberKeepsDecimals() throws Exception {
+		Record record = new Record(1);
+		record.addField("price", new Field("price", FieldType.NUMBER, "1.50"));
+		record.setLong("count", 10);
+		String json = new JsonParser().recordsToJsonForUpdate(1, Arrays.asList(record));
+		assertTrue(json, json.contains("\"price\":{\"value\":\"1.50\"}"));
+		assertTrue(json, json.contains("\"count\":{\"value\":\"10\"}"));
+	}
+
+	@Test
+	public void testRevision() throws Exception {
+		JsonParser parser = new JsonParser();
+		assertEquals(5, parser.jsonToRevision("{\"revision\":\"5\"}"));
+		assertEquals(-1, parser.jsonToRevision("{}"));
+		assertEquals(5, parser.jsonToFormSchema(1, "{\"revision\":\"5\",\"properties\":{}}").getRevision());
+	}
+
+	@Test
+	public void testMalformedResponses() throws Exception {
+		JsonParser parser = new JsonParser();
+		String[] revisions = { "{\"revision\":", "{\"revision\":\"x\"}", "{\"revision\":{}}" };
+		for (String json : revisions) {
+			try {
+				parser.jsonToRevision(json);
+				fail("no exception: " + json);
+			} catch (IOException e) {
+			}
+		}
+		try {
+			parser.jsonToFormSchema(1, "{\"properties\":{");
+			fail("no exception");
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalRecordStoreTest {
+
+	private File dir;
+
+	private Record createRecord(long id, String code) {
+		Record record = new Record(id, 1);
+		record.addField("Code", new Field("Code", FieldType.SINGLE_LINE_TEXT, code));
+		return record;
+	}
+
+	@Before
+	public void initialize() throws Exception {
+		dir = File.createTempFile("store", "");
+		dir.delete();
+	}
+
+	@After
+	public void cleanup() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		LocalRecordStore store = new LocalRecordStore(dir);
+		store.putAll(Arrays.asList(createRecord(1, "A"), createRecord(2, "B")));
+		store.removeAll(Arrays.asList(1L));
+		store.flush();
+		store.close();
+
+		store = new LocalRecordStore(dir);
+		assertEquals(1, store.size());
+		assertEquals("B", store.get(2).getString("Code"));
+		store.close();
+	}
+
+	@Test
+	public void testTornEntry() throws Exception {
+		LocalRecordStore store = new LocalRecordStore(dir);
+		store.putAll(Arrays.asList(createRecord(1, "A")));
+		store.close();
+
+		FileOutputStream os = new FileOutputStream(new File(dir, "records.journal"), true);
+		os.write("+{\"id\":2,\"rev".getBytes("UTF-8"));
+		os.close();
+
+		store = new LocalRecordStore(dir);
+		assertEquals(1, store.size());
+		store.putAll(Arrays.asList(createRecord(3, "C")));
+		store.close();
+
+		store = new LocalRecordStore(dir);
+		assertEquals(2, store.size());
+		assertEquals("C", store.get(3).getString("Code"));
+		store.close();
+	}
+}
@@ -0,0 +1,102 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cybozu.kintone.database.exception.QuerySyntaxException;
+
+public class QueryTest {
+
+	private List<Record> records;
+
+	private Record createRecord(long id, String text, String number,
+			String status, String updated) {
+		Record record = new Record(id, 1);
+		record.addField("Single_line_text", new Field("Single_line_text",
+				FieldType.SINGLE_LINE_TEXT, text));
+		record.addField("Number", new Field("Number", FieldType.NUMBER, number));
+		record.addField("Check_box", new Field("Check_box",
+				FieldType.CHECK_BOX, Arrays.asList(status, "common")));
+		record.addField("Updated_datetime", new Field("Updated_datetime",
+				FieldType.UPDATED_TIME, updated));
+		return record;
+	}
+
+	@Before
+	public void initialize() {
+		records = new ArrayList<Record>();
+		records.add(createRecord(1, "foo", "10", "open", "2014-01-01T00:00:00Z"));
+		records.add(createRecord(2, "bar", "9", "closed", "2014-01-02T00:00:00Z"));
+		records.add(createRecord(3, "foobar", "100", "open", "2014-01-03T09:00:00Z"));
+		records.add(createRecord(4, "", null, "pending", "2014-01-04T00:00:00Z"));
+	}
+
+	private List<Long> select(String query) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Record record : Query.compile(query).apply(records)) {
+			ids.add(record.getId());
+		}
+		return ids;
+	}
+
+	@Test
+	public void testEmptyQuery() {
+		assertEquals(Arrays.asList(4L, 3L, 2L, 1L), select(""));
+	}
+
+	@Test
+	public void testNumberComparison() {
+		assertEquals(Arrays.asList(3L, 1L), select("Number >= 10"));
+		assertEquals(Arrays.asList(2L), select("Number < \"10\""));
+	}
+
+	@Test
+	public void testStringConditions() {
+		assertEquals(Arrays.asList(1L), select("Single_line_text = \"foo\""));
+		assertEquals(Arrays.asList(3L, 1L), select("Single_line_text like \"FOO\""));
+		assertEquals(Arrays.asList(4L, 2L), select("Single_line_text not like \"foo\""));
+		assertEquals(Arrays.asList(4L), select("Single_line_text is empty"));
+		assertEquals(Arrays.asList(4L), select("Number is empty"));
+	}
+
+	@Test
+	public void testInAndLogicalOperators() {
+		assertEquals(Arrays.asList(3L, 1L), select("Check_box in (\"open\")"));
+		assertEquals(Arrays.asList(4L, 2L), select("Check_box not in (\"open\")"));
+		assertEquals(Arrays.asList(3L, 2L),
+				select("(Number > 50 or Single_line_text = \"bar\") and $id > 1"));
+	}
+
+	@Test
+	public void testDateTime() {
+		assertEquals(Arrays.asList(3L),
+				select("Updated_datetime > \"2014-01-03T08:00:00+09:00\" and Updated_datetime < \"2014-01-04T00:00:00Z\""));
+	}
+
+	@Test
+	public void testOrderAndLimit() {
+		assertEquals(Arrays.asList(2L, 1L, 3L),
+				select("Number is not empty order by Number asc"));
+		assertEquals(Arrays.asList(1L, 2L),
+				select("order by $id asc limit 2"));
+		assertEquals(Arrays.asList(3L),
+				select("order by $id asc limit 1 offset 2"));
+	}
+
+	@Test
+	public void testCondition() {
+		assertEquals("Number > 1", Query.compile("Number > 1 order by $id asc limit 1").getCondition());
+		assertSame(Query.compile("Number > 1"), Query.compile("Number > 1"));
+	}
+
+	@Test(expected = QuerySyntaxException.class)
+	public void testSyntaxError() {
+		Query.compile("Number >");
+	}
+}
@@ -0,0 +1,100 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class RecordChangeTest {
+
+	private static final String RESPONSE = "{\"records\":[{"
+			+ "\"$id\":{\"type\":\"__ID__\",\"value\":\"7\"},"
+			+ "\"$revision\":{\"type\":\"__REVISION__\",\"value\":\"3\"},"
+			+ "\"code\":{\"type\":\"SINGLE_LINE_TEXT\",\"value\":\"A\"},"
+			+ "\"memo\":{\"type\":\"RICH_TEXT\",\"value\":\"<p>long</p>\"},"
+			+ "\"tags\":{\"type\":\"CHECK_BOX\",\"value\":[\"a\"]},"
+			+ "\"lines\":{\"type\":\"SUBTABLE\",\"value\":[{\"id\":\"100\",\"value\":{"
+			+ "\"item\":{\"type\":\"SINGLE_LINE_TEXT\",\"value\":\"x\"}}}]}}]}";
+
+	private JsonParser parser;
+	private Record record;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new JsonParser();
+		record = parser.jsonToResultSet(null, RESPONSE).getRecords().get(0);
+	}
+
+	private JsonObject updatedFields(Record record) throws Exception {
+		List<Record> records = new ArrayList<Record>();
+		records.add(record);
+		String json = parser.recordsToJsonForUpdate(1, records);
+		return new com.google.gson.JsonParser().parse(json).getAsJsonObject()
+				.getAsJsonArray("records").get(0).getAsJsonObject()
+				.getAsJsonObject("record");
+	}
+
+	@Test
+	public void testSelectedRecordIsClean() throws Exception {
+		assertTrue(record.isTracking());
+		assertTrue(record.getChangedFieldNames().isEmpty());
+		assertEquals(0, updatedFields(record).entrySet().size());
+	}
+
+	@Test
+	public void testOnlyChangedFieldsAreSent() throws Exception {
+		record.setString("code", "B");
+		record.getField("tags").setValue(Arrays.asList("a", "b"));
+		assertEquals(new HashSet<String>(Arrays.asList("code", "tags")),
+				record.getChangedFieldNames());
+
+		JsonObject fields = updatedFields(record);
+		assertEquals(2, fields.entrySet().size());
+		assertEquals("B", fields.getAsJsonObject("code").get("value").getAsString());
+		assertFalse(fields.has("memo"));
+
+		record.clearChanges();
+		assertFalse(record.isChanged("code"));
+	}
+
+	@Test
+	public void testSubtableRowChange() throws Exception {
+		record.getSubtable("lines").get(0).setString("item", "y");
+		assertEquals(new HashSet<String>(Arrays.asList("lines")),
+				record.getChangedFieldNames());
+		assertTrue(updatedFields(record).has("lines"));
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		record.snapshot();
+		record.getStrings("tags").add("c");
+		Record row = new Record();
+		row.setString("item", "z");
+		record.getSubtable("lines").add(row);
+		record.setString("code", "A");
+		assertEquals(new HashSet<String>(Arrays.asList("tags", "lines")),
+				record.getChangedFieldNames());
+
+		record.clearChanges();
+		assertTrue(record.getChangedFieldNames().isEmpty());
+		record.getStrings("tags").remove("a");
+		assertTrue(record.isChanged("tags"));
+	}
+
+	@Test
+	public void testNewRecordSendsAllFields() throws Exception {
+		Record created = new Record(7);
+		created.setString("code", "A");
+		created.setLong("count", 1);
+		assertFalse(created.isTracking());
+		assertEquals(2, updatedFields(created).entrySet().size());
+	}
+}
@@ -0,0 +1,102 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+public class RecordCursorTest {
+
+	/**
+	 * A connection which pages the records and records the writes.
+	 */
+	static class ByQueryConnection extends Connection {
+		List<Record> records = new ArrayList<Record>();
+		List<String> queries = new ArrayList<String>();
+		List<Long> deleted = new ArrayList<Long>();
+		List<Long> updated = new ArrayList<Long>();
+
+		ByQueryConnection() {
+			super("localhost", "token");
+		}
+
+		@Override
+		public void deleteByRecords(long app, List<Record> records) throws DBException {
+			for (Record record : records) {
+				deleted.add(record.getId());
+			}
+		}
+
+		@Override
+		public void update(long app, List<Long> ids, Record record) throws DBException {
+			updated.addAll(ids);
+		}
+
+		@Override
+		public ResultSet select(long app, String query, String[] columns) throws DBException {
+			queries.add(query);
+			Matcher id = Pattern.compile("\\$id > (\\d+)").matcher(query);
+			Matcher limit = Pattern.compile("limit (\\d+)").matcher(query);
+			assertTrue(id.find());
+			assertTrue(limit.find());
+			long lastId = Long.parseLong(id.group(1));
+			int size = Integer.parseInt(limit.group(1));
+			ResultSet rs = new ResultSet(this);
+			for (Record record : records) {
+				if (record.getId() > lastId && rs.getRecords().size() < size) {
+					rs.add(record);
+				}
+			}
+			return rs;
+		}
+	}
+
+	@Test
+	public void testSplitQuery() {
+		String[] parts = RecordCursor.splitQuery("Status = \"limit 5\" and creator in (LOGINUSER()) order by $id desc limit 10 offset 20");
+		assertEquals("Status = \"limit 5\" and creator in (LOGINUSER())", parts[0]);
+		assertEquals("order by $id desc limit 10 offset 20", parts[1]);
+
+		parts = RecordCursor.splitQuery("limit > 3 and text like \"a\\\" order by b\"");
+		assertEquals("limit > 3 and text like \"a\\\" order by b\"", parts[0]);
+		assertEquals("", parts[1]);
+
+		parts = RecordCursor.splitQuery("ORDER BY Count asc");
+		assertEquals("", parts[0]);
+		assertEquals("ORDER BY Count asc", parts[1]);
+		assertEquals("", RecordCursor.splitQuery(null)[0]);
+	}
+
+	private ByQueryConnection createConnection(int count) {
+		ByQueryConnection connection = new ByQueryConnection();
+		for (int i = 1; i <= count; i++) {
+			connection.records.add(new Record(i, 1));
+		}
+		return connection;
+	}
+
+	@Test
+	public void testDeleteByQueryPagesAllRecords() throws Exception {
+		ByQueryConnection connection = createConnection(1200);
+		assertEquals(1200, connection.deleteByQuery(1,
+				"Created_by in (LOGINUSER()) and Updated_datetime = THIS_WEEK() order by Count desc"));
+		assertEquals(1200, connection.deleted.size());
+		assertEquals(3, connection.queries.size());
+		assertTrue(connection.queries.get(0).startsWith(
+				"(Created_by in (LOGINUSER()) and Updated_datetime = THIS_WEEK()) and $id > 0"));
+	}
+
+	@Test
+	public void testUpdateByQueryPagesAllRecords() throws Exception {
+		ByQueryConnection connection = createConnection(501);
+		assertEquals(501, connection.updateByQuery(1, "Org in (PRIMARY_ORGANIZATION())", new Record()));
+		assertEquals(501, connection.updated.size());
+		assertEquals(2, connection.queries.size());
+	}
+}
@@ -0,0 +1,157 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cybozu.kintone.database.RecordExporter.Format;
+import com.cybozu.kintone.database.RecordExporter.SubtableMode;
+import com.cybozu.kintone.database.exception.DBException;
+import com.google.gson.JsonObject;
+
+public class RecordExporterTest {
+
+	/**
+	 * A connection which pages through the records in memory.
+	 */
+	static class PagingConnection extends Connection {
+		List<Record> records = new ArrayList<Record>();
+		List<String> queries = new ArrayList<String>();
+
+		PagingConnection() {
+			super("localhost", "token");
+		}
+
+		@Override
+		public ResultSet select(long app, String query, String[] columns) throws DBException {
+			queries.add(query);
+			Matcher id = Pattern.compile("\\$id > (\\d+)").matcher(query);
+			Matcher limit = Pattern.compile("limit (\\d+)").matcher(query);
+			assertTrue(id.find());
+			assertTrue(limit.find());
+			long lastId = Long.parseLong(id.group(1));
+			int size = Integer.parseInt(limit.group(1));
+			ResultSet rs = new ResultSet(this);
+			for (Record record : records) {
+				if (record.getId() > lastId && rs.getRecords().size() < size) {
+					rs.add(record);
+				}
+			}
+			return rs;
+		}
+	}
+
+	private PagingConnection connection;
+
+	@Before
+	public void setUp() {
+		connection = new PagingConnection();
+		for (int i = 1; i <= 5; i++) {
+			Record record = new Record(i, 10 + i);
+			record.setString("code", "c" + i);
+			record.setStrings("tags", Arrays.asList("a", "b"));
+			List<Record> rows = new ArrayList<Record>();
+			for (int j = 0; j < (i == 1 ? 2 : 0); j++) {
+				Record row = new Record(100 + j);
+				row.setString("item", "x" + j);
+				row.setLong("qty", j);
+				rows.add(row);
+			}
+			record.setSubtable("lines", rows);
+			connection.records.add(record);
+		}
+	}
+
+	@Test
+	public void testNdjson() throws Exception {
+		RecordExporter exporter = new RecordExporter(connection, 1);
+		exporter.setPageSize(2);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(5, exporter.export(out, Format.NDJSON));
+		assertEquals(3, connection.queries.size());
+
+		String[] lines = out.toString("UTF-8").split("\n");
+		assertEquals(5, lines.length);
+		JsonObject first = new com.google.gson.JsonParser().parse(lines[0]).getAsJsonObject();
+		assertEquals(1, first.get("$id").getAsLong());
+		assertEquals(11, first.get("$revision").getAsLong());
+		assertEquals("c1", first.get("code").getAsString());
+		assertEquals(2, first.get("tags").getAsJsonArray().size());
+		assertEquals("x1", first.get("lines").getAsJsonArray().get(1)
+				.getAsJsonObject().get("item").getAsString());
+		assertEquals(out.size(), exporter.getWrittenBytes());
+		assertTrue(exporter.getThroughput() > 0);
+	}
+
+	@Test
+	public void testCsvExpand() throws Exception {
+		RecordExporter exporter = new RecordExporter(connection, 1);
+		exporter.setSubtableMode(SubtableMode.EXPAND);
+		exporter.setRepeatParent(false);
+		exporter.setValueSeparator("|");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(5, exporter.export(out, Format.CSV));
+
+		String[] lines = out.toString("UTF-8").split("\r\n");
+		assertEquals(7, lines.length);
+		assertEquals("$id,$revision,code,lines.item,lines.qty,tags", lines[0]);
+		assertEquals("1,11,c1,x0,0,a|b", lines[1]);
+		assertEquals("1,,,x1,1,", lines[2]);
+		assertEquals("2,12,c2,,,a|b", lines[3]);
+	}
+
+	@Test
+	public void testCsvJsonSubtable() throws Exception {
+		RecordExporter exporter = new RecordExporter(connection, 1);
+		exporter.setColumns(new String[] { "code", "lines" });
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		exporter.export(out, Format.CSV);
+
+		BufferedReader reader = new BufferedReader(new StringReader(out.toString("UTF-8")));
+		assertEquals(Arrays.asList("$id", "$revision", "code", "lines"), Csv.readRow(reader));
+		List<String> row = Csv.readRow(reader);
+		assertEquals("c1", row.get(2));
+		assertTrue(row.get(3).startsWith("[{"));
+		assertTrue(row.get(3).contains("\"item\":\"x0\""));
+		assertEquals(Arrays.asList("2", "12", "c2", "[]"), Csv.readRow(reader));
+	}
+
+	@Test
+	public void testGzip() throws Exception {
+		RecordExporter exporter = new RecordExporter(connection, 1);
+		exporter.setGzip(true);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		exporter.export(out, Format.NDJSON);
+		assertEquals(out.size(), exporter.getWrittenBytes());
+
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			plain.write(buffer, 0, n);
+		}
+		assertEquals(5, plain.toString("UTF-8").split("\n").length);
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		connection.records.clear();
+		RecordExporter exporter = new RecordExporter(connection, 1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(0, exporter.export(out, Format.CSV));
+		assertEquals("$id,$revision\r\n", out.toString("UTF-8"));
+	}
+}
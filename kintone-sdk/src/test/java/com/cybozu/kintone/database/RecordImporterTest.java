@@ -0,0 +1,321 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cybozu.kintone.database.exception.DBException;
+
+public class RecordImporterTest {
+
+	/**
+	 * A connection which keeps the inserted records.
+	 */
+	static class ImportConnection extends Connection {
+		List<Record> inserted = new ArrayList<Record>();
+		List<Integer> batches = new ArrayList<Integer>();
+		AtomicInteger running = new AtomicInteger();
+		int maxRunning = 0;
+		String invalid = null;
+		String broken = null;
+		AtomicInteger unavailable = new AtomicInteger();
+
+		ImportConnection() {
+			super("localhost", "token");
+		}
+
+		@Override
+		public List<Long> insert(long app, List<Record> records) throws DBException {
+			int current = running.incrementAndGet();
+			try {
+				synchronized (this) {
+					maxRunning = Math.max(maxRunning, current);
+				}
+				Thread.sleep(5);
+				if (unavailable.getAndDecrement() > 0) {
+					throw new DBException(503, "http status error(503)");
+				}
+				for (Record record : records) {
+					if (broken != null && broken.equals(record.getString("code"))) {
+						throw new IllegalStateException("broken record");
+					}
+					if (invalid != null && invalid.equals(record.getString("code"))) {
+						ErrorResponse error = new ErrorResponse();
+						error.setMessage("duplicate value");
+						throw new DBException(400, error);
+					}
+				}
+				synchronized (this) {
+					inserted.addAll(records);
+					batches.add(records.size());
+				}
+				return new ArrayList<Long>();
+			} catch (InterruptedException e) {
+				throw new DBException(e);
+			} finally {
+				running.decrementAndGet();
+			}
+		}
+	}
+
+	private ImportConnection connection;
+	private File rejects;
+
+	@Before
+	public void setUp() throws Exception {
+		connection = new ImportConnection();
+		rejects = File.createTempFile("rejects", ".csv");
+	}
+
+	@After
+	public void tearDown() {
+		rejects.delete();
+	}
+
+	private FormSchema createSchema() {
+		Map<String, FormField> fields = new HashMap<String, FormField>();
+		fields.put("code", new FormField("code", "Code", "SINGLE_LINE_TEXT", true, true, null, null));
+		fields.put("count", new FormField("count", "Count", "NUMBER", false, false, null, null));
+		fields.put("tags", new FormField("tags", "Tags", "CHECK_BOX", false, false,
+				Arrays.asList("a", "b", "c"), null));
+		fields.put("total", new FormField("total", "Total", "CALC", false, false, null, null));
+		Map<String, FormField> columns = new HashMap<String, FormField>();
+		columns.put("item", new FormField("item", "Item", "SINGLE_LINE_TEXT", false, false, null, null));
+		columns.put("qty", new FormField("qty", "Qty", "NUMBER", false, false, null, null));
+		fields.put("lines", new FormField("lines", "Lines", "SUBTABLE", false, false, null, columns));
+		return new FormSchema(1, 1, fields);
+	}
+
+	private Record find(String code) {
+		for (Record record : connection.inserted) {
+			if (code.equals(record.getString("code"))) {
+				return record;
+			}
+		}
+		return null;
+	}
+
+	private List<String> readLines(File file) throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		List<String> lines = new ArrayList<String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lines.add(line);
+		}
+		reader.close();
+		return lines;
+	}
+
+	@Test
+	public void testCsvWithSchema() throws Exception {
+		RecordImporter importer = new RecordImporter(connection, 1);
+		importer.setFormSchema(createSchema());
+		importer.setRejectFile(rejects);
+		String csv = "\uFEFFCode,count,Tags,Total,Memo\r\n"
+				+ "A-1,10,\"a\nb\",99,x\r\n"
+				+ "\"B,\"\"2\"\"\",,,,\r\n"
+				+ "C-3,ten,a,,\r\n"
+				+ "D-4,1,d,,\r\n"
+				+ "E-5,1\r\n";
+		assertEquals(2, importer.importCsv(new StringReader(csv)));
+		assertEquals(5, importer.getReadCount());
+		assertEquals(3, importer.getRejectedCount());
+
+		Record a = find("A-1");
+		assertEquals(FieldType.NUMBER, a.getFieldType("count"));
+		assertEquals("10", a.getString("count"));
+		assertEquals(Arrays.asList("a", "b"), a.getStrings("tags"));
+		assertFalse(a.hasField("total"));
+		assertFalse(a.hasField("Memo"));
+		Record b = find("B,\"2\"");
+		assertTrue(b.getField("count").isEmpty());
+		assertTrue(b.getStrings("tags").isEmpty());
+
+		List<String> lines = readLines(rejects);
+		assertEquals("Code,count,Tags,Total,Memo,error", lines.get(0));
+		assertTrue(lines.get(1).startsWith("C-3,ten,a,,,"));
+		assertTrue(lines.get(1).contains("not a number"));
+		assertTrue(lines.get(2).contains("unknown option: d"));
+		assertTrue(lines.get(3).contains("expected 5 columns"));
+	}
+
+	@Test
+	public void testCsvWithoutSchema() throws Exception {
+		RecordImporter importer = new RecordImporter(connection, 1);
+		importer.mapColumn("Name", "code");
+		importer.mapColumn("Skip", null);
+		importer.mapColumn("Users", "users", FieldType.USER_SELECT);
+		importer.setValueSeparator(";");
+		String csv = "Name,Skip,Users,note\nA,x,u1;u2,hello\n\nB,y,,\n";
+		assertEquals(2, importer.importCsv(new StringReader(csv)));
+		Record a = find("A");
+		assertFalse(a.hasField("Skip"));
+		assertEquals(FieldType.SINGLE_LINE_TEXT, a.getFieldType("note"));
+		assertEquals("hello", a.getString("note"));
+		assertEquals(2, a.getUsers("users").size());
+		assertEquals("u2", a.getUsers("users").get(1).getCode());
+	}
+
+	@Test
+	public void testNdjson() throws Exception {
+		RecordImporter importer = new RecordImporter(connection, 1);
+		importer.setFormSchema(createSchema());
+		importer.setRejectFile(rejects);
+		String ndjson = "{\"code\":\"A\",\"count\":3,\"tags\":[\"a\",\"c\"],"
+				+ "\"lines\":[{\"item\":\"x\",\"qty\":1},{\"item\":\"y\",\"qty\":2}]}\n"
+				+ "\n"
+				+ "{\"code\":{\"type\":\"SINGLE_LINE_TEXT\",\"value\":\"B\"},\"count\":null}\n"
+				+ "{\"code\":\n"
+				+ "[1]\n";
+		assertEquals(2, importer.importNdjson(new StringReader(ndjson)));
+		assertEquals(2, importer.getRejectedCount());
+
+		Record a = find("A");
+		assertEquals("3", a.getString("count"));
+		assertEquals(Arrays.asList("a", "c"), a.getStrings("tags"));
+		List<Record> rows = a.getSubtable("lines");
+		assertEquals(2, rows.size());
+		assertEquals(FieldType.NUMBER, rows.get(1).getFieldType("qty"));
+		assertEquals("2", rows.get(1).getString("qty"));
+		assertTrue(find("B").getField("count").isEmpty());
+
+		List<String> lines = readLines(rejects);
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0).contains("\"line\":4"));
+		assertTrue(lines.get(0).contains("malformed json"));
+		assertTrue(lines.get(1).contains("not an object"));
+	}
+
+	@Test
+	public void testBatchesAndConcurrency() throws Exception {
+		RecordImporter importer = new RecordImporter(connection, 1);
+		importer.setBatchSize(10);
+		importer.setConcurrency(2);
+		StringBuilder sb = new StringBuilder("code\n");
+		for (int i = 0; i < 205; i++) {
+			sb.append("r" + i + "\n");
+		}
+		assertEquals(205, importer.importCsv(new StringReader(sb.toString())));
+		assertEquals(205, connection.inserted.size());
+		assertEquals(21, connection.batches.size());
+		assertTrue(connection.maxRunning <= 2);
+		assertTrue(importer.getThroughput() > 0);
+	}
+
+	@Test
+	public void testRejectedByKintone() throws Exception {
+		connection.invalid = "r3";
+		RecordImporter importer = new RecordImporter(connection, 1);
+		importer.setBatchSize(5);
+		importer.setRejectFile(rejects);
+		StringBuilder sb = new StringBuilder("code\n");
+		for (int i = 0; i < 10; i++) {
+			sb.append("r" + i + "\n");
+		}
+		assertEquals(9, importer.importCsv(new StringReader(sb.toString())));
+		assertNull(find("r3"));
+		assertNotNull(find("r4"));
+		List<String> lines = readLines(rejects);
+		assertEquals(Arrays.asList("code,error", "r3,duplicate value"), lines);
+	}
+
+	@Test
+	public void testRetryUnavailable() throws Exception {
+		connection.unavailable.set(2);
+		RecordImporter importer = new RecordImporter(connection, 1);
+		importer.setRetry(2, 1);
+		assertEquals(2, importer.importCsv(new StringReader("code\nA\nB\n")));
+		assertEquals(0, importer.getRejectedCount());
+
+		connection.inserted.clear();
+		connection.unavailable.set(3);
+		importer.setRejectFile(rejects);
+		assertEquals(0, importer.importCsv(new StringReader("code\nA\nB\n")));
+		assertEquals(2, importer.getRejectedCount());
+		assertTrue(connection.inserted.isEmpty());
+	}
+
+	@Test
+	public void testRuntimeFailureIsRejected() throws Exception {
+		connection.broken = "r1";
+		RecordImporter importer = new RecordImporter(connection, 1);
+		importer.setRejectFile(rejects);
+		assertEquals(2, importer.importCsv(new StringReader("code\nr0\nr1\nr2\n")));
+		assertEquals(1, importer.getRejectedCount());
+		assertNull(find("r1"));
+		List<String> lines = readLines(rejects);
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(1).startsWith("r1,"));
+		assertTrue(lines.get(1).contains("broken record"));
+	}
+
+	@Test
+	public void testExportedFilesAreSkipped() throws Exception {
+		RecordExporterTest.PagingConnection source = new RecordExporterTest.PagingConnection();
+		for (int i = 1; i <= 3; i++) {
+			Record record = new Record(i, 1);
+			record.setString("code", "c" + i);
+			FileDto file = new FileDto();
+			file.setFileKey("download-" + i);
+			file.setName("file" + i + ".txt");
+			file.setContentType("text/plain");
+			file.setSize(10);
+			record.addField("attachment", new Field("attachment", FieldType.FILE,
+					new ArrayList<FileDto>(Arrays.asList(file))));
+			source.records.add(record);
+		}
+		Map<String, FormField> fields = new HashMap<String, FormField>();
+		fields.put("code", new FormField("code", "Code", "SINGLE_LINE_TEXT", false, false, null, null));
+		fields.put("attachment", new FormField("attachment", "Attachment", "FILE", false, false, null, null));
+		FormSchema schema = new FormSchema(1, 1, fields);
+
+		for (RecordExporter.Format format : RecordExporter.Format.values()) {
+			RecordExporter exporter = new RecordExporter(source, 1);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertEquals(3, exporter.export(out, format));
+			String text = out.toString("UTF-8");
+
+			for (boolean withSchema : new boolean[] { true, false }) {
+				if (!withSchema && format == RecordExporter.Format.CSV)
+					continue; // every csv column is text without the schema
+				connection = new ImportConnection();
+				RecordImporter importer = new RecordImporter(connection, 1);
+				if (withSchema) {
+					importer.setFormSchema(schema);
+				}
+				importer.setRejectFile(rejects);
+				long count = format == RecordExporter.Format.CSV
+						? importer.importCsv(new StringReader(text))
+						: importer.importNdjson(new StringReader(text));
+				assertEquals(format + " " + withSchema, 3, count);
+				assertEquals(0, importer.getRejectedCount());
+				assertEquals("c2", find("c2").getString("code"));
+				assertNull(find("c2").getField("attachment"));
+			}
+		}
+
+		connection = new ImportConnection();
+		RecordImporter importer = new RecordImporter(connection, 1);
+		importer.setFormSchema(schema);
+		importer.mapColumn("attachment", "attachment");
+		assertEquals(1, importer.importNdjson(new StringReader(
+				"{\"code\":\"c1\",\"attachment\":[{\"fileKey\":\"uploaded\"}]}\n")));
+		assertEquals("uploaded", find("c1").getFiles("attachment").get(0).getFileKey());
+	}
+}
@@ -0,0 +1,50 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class UploadCacheTest {
+
+	@Test
+	public void testGetPut() throws InterruptedException {
+		UploadCache cache = new UploadCache(50);
+		cache.put("abc", "a.txt", "text/plain", "key1");
+		assertEquals("key1", cache.get("abc", "a.txt", "text/plain"));
+		assertNull(cache.get("abc", "b.txt", "text/plain"));
+		assertNull(cache.get("abc", "a.txt", "application/pdf"));
+		assertNull(cache.get("abd", "a.txt", "text/plain"));
+		Thread.sleep(60);
+		assertNull(cache.get("abc", "a.txt", "text/plain"));
+	}
+
+	@Test
+	public void testMaxEntries() {
+		UploadCache cache = new UploadCache(60000, 2);
+		cache.put("1", "a", "t", "k1");
+		cache.put("2", "a", "t", "k2");
+		cache.get("1", "a", "t");
+		cache.put("3", "a", "t", "k3");
+		assertEquals("k1", cache.get("1", "a", "t"));
+		assertNull(cache.get("2", "a", "t"));
+	}
+
+	@Test
+	public void testRemove() {
+		UploadCache cache = new UploadCache(60000);
+		cache.put("1", "a.txt", "text/plain", "k1");
+		cache.put("1", "b.txt", "text/plain", "k1");
+		cache.put("2", "a.txt", "text/plain", "k2");
+		cache.remove("k1");
+		assertNull(cache.get("1", "a.txt", "text/plain"));
+		assertNull(cache.get("1", "b.txt", "text/plain"));
+		assertEquals("k2", cache.get("2", "a.txt", "text/plain"));
+	}
+
+	@Test
+	public void testHex() {
+		byte[] digest = UploadCache.newDigest().digest("abc".getBytes());
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+				UploadCache.toHex(digest));
+	}
+}
@@ -0,0 +1,289 @@
+package com.cybozu.kintone.database;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cybozu.kintone.database.WriteJournal.Entry;
+import com.cybozu.kintone.database.WriteJournal.Operation;
+import com.cybozu.kintone.database.WriteJournal.Status;
+import com.cybozu.kintone.database.exception.DBException;
+
+public class WriteJournalTest {
+
+	/**
+	 * A connection which fails while it is offline.
+	 */
+	static class FlakyConnection extends BatchWriterTest.RecordingConnection {
+		boolean offline = false;
+		boolean reject = false;
+		String rejectCode = null;
+		List<String> upserts = new ArrayList<String>();
+
+		@Override
+		public List<Long> insert(long app, List<Record> records) throws DBException {
+			check();
+			for (Record record : records) {
+				if (record.getString("code").equals(rejectCode)) {
+					throw new DBException("duplicate value: " + rejectCode);
+				}
+			}
+			return super.insert(app, records);
+		}
+
+		@Override
+		public List<Long> upsert(long app, String keyField, List<Record> records) throws DBException {
+			check();
+			calls.add("upsert:" + app + ":" + records.size());
+			for (Record record : records) {
+				upserts.add(record.getString(keyField));
+			}
+			return new ArrayList<Long>();
+		}
+
+		@Override
+		public void updateByRecords(long app, List<Record> records) throws DBException {
+			check();
+			super.updateByRecords(app, records);
+		}
+
+		private void check() throws DBException {
+			if (offline) {
+				throw new DBException(new ConnectException("connection refused"), "cannot connect to host");
+			}
+			if (reject) {
+				ErrorResponse error = new ErrorResponse();
+				error.setMessage("invalid value");
+				error.setCode("CB_VA01");
+				throw new DBException(400, error);
+			}
+		}
+	}
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("journal", ".log");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private List<Record> createRecords(String... codes) {
+		List<Record> records = new ArrayList<Record>();
+		for (String code : codes) {
+			Record record = new Record();
+			record.setString("code", code);
+			records.add(record);
+		}
+		return records;
+	}
+
+	@Test
+	public void testRecover() throws Exception {
+		WriteJournal journal = new WriteJournal(file);
+		journal.begin(new Entry("b1", Operation.INSERT, 1, null, createRecords("a")));
+		journal.begin(new Entry("b2", Operation.UPSERT, 1, "code", createRecords("b", "c")));
+		journal.begin(new Entry("b3", Operation.INSERT, 1, null, createRecords("d")));
+		journal.commit("b1");
+		journal.fail("b3", "bad\trequest");
+		journal.close();
+
+		// a torn line at the end
+		FileOutputStream os = new FileOutputStream(file, true);
+		os.write("BEGIN\tb4\tINSERT\t1\t\t[{\"code\":".getBytes("UTF-8"));
+		os.close();
+
+		journal = new WriteJournal(file);
+		assertEquals(Status.COMMITTED, journal.getStatus("b1"));
+		assertEquals(Status.PENDING, journal.getStatus("b2"));
+		assertEquals(Status.FAILED, journal.getStatus("b3"));
+		assertEquals(Status.UNKNOWN, journal.getStatus("b4"));
+		List<Entry> pending = journal.getPending();
+		assertEquals(1, pending.size());
+		Entry entry = pending.get(0);
+		assertEquals(Operation.UPSERT, entry.getOperation());
+		assertEquals("code", entry.getKeyField());
+		assertEquals("c", entry.getRecords().get(1).getString("code"));
+		journal.close();
+	}
+
+	@Test
+	public void testCompactForgetsCompleted() throws Exception {
+		WriteJournal journal = new WriteJournal(file);
+		journal.begin(new Entry("b1", Operation.INSERT, 1, null, createRecords("a")));
+		journal.begin(new Entry("b2", Operation.INSERT, 1, null, createRecords("b")));
+		journal.begin(new Entry("b3", Operation.INSERT, 1, null, createRecords("c")));
+		journal.commit("b1");
+		journal.fail("b3", "bad request");
+		journal.compact();
+		assertEquals(Status.UNKNOWN, journal.getStatus("b1"));
+		assertEquals(Status.PENDING, journal.getStatus("b2"));
+		assertEquals(Status.UNKNOWN, journal.getStatus("b3"));
+		journal.close();
+
+		journal = new WriteJournal(file);
+		assertEquals(Status.UNKNOWN, journal.getStatus("b1"));
+		assertEquals(1, journal.getPending().size());
+		journal.close();
+	}
+
+	@Test(expected = DBException.class)
+	public void testDuplicateId() throws Exception {
+		WriteJournal journal = new WriteJournal(file);
+		try {
+			journal.begin(new Entry("b1", Operation.INSERT, 1, null, createRecords("a")));
+			journal.begin(new Entry("b1", Operation.INSERT, 1, null, createRecords("b")));
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testOfflineQueue() throws Exception {
+		FlakyConnection connection = new FlakyConnection();
+		JournaledWriter writer = new JournaledWriter(connection, new WriteJournal(file));
+		assertTrue(writer.insert("b1", 1, createRecords("a")));
+
+		connection.offline = true;
+		assertFalse(writer.insert("b2", 1, createRecords("b")));
+		assertFalse(writer.updateByRecords("b3", 1, createRecords("c")));
+		assertEquals(2, writer.getPendingCount());
+		assertEquals(Status.PENDING, writer.getStatus("b2"));
+		writer.close();
+
+		// restarted after the connectivity returns
+		connection.offline = false;
+		writer = new JournaledWriter(connection, new WriteJournal(file));
+		assertEquals(Status.COMMITTED, writer.getStatus("b1"));
+		assertEquals(2, writer.drain());
+		assertEquals(0, writer.getPendingCount());
+		assertEquals(Status.COMMITTED, writer.getStatus("b3"));
+		assertEquals("[insert:1:1, insert:1:1, update:1:1]", connection.calls.toString());
+		writer.close();
+	}
+
+	@Test
+	public void testInsertWithKeyField() throws Exception {
+		FlakyConnection connection = new FlakyConnection();
+		JournaledWriter writer = new JournaledWriter(connection, new WriteJournal(file));
+		writer.setKeyField(1, "code");
+		connection.offline = true;
+		assertFalse(writer.insert("b1", 1, createRecords("a", "b")));
+		connection.offline = false;
+		assertEquals(1, writer.drain());
+		assertEquals("[upsert:1:2]", connection.calls.toString());
+		assertEquals(Arrays.asList("a", "b"), connection.upserts);
+		writer.close();
+	}
+
+	@Test
+	public void testPermanentFailure() throws Exception {
+		FlakyConnection connection = new FlakyConnection();
+		JournaledWriter writer = new JournaledWriter(connection, new WriteJournal(file));
+		connection.reject = true;
+		try {
+			writer.insert("b1", 1, createRecords("a"));
+			fail("no exception");
+		} catch (DBException e) {
+			assertEquals(400, e.getHttpStatus());
+		}
+		assertEquals(Status.FAILED, writer.getStatus("b1"));
+		assertEquals(0, writer.getPendingCount());
+		writer.close();
+	}
+
+	@Test
+	public void testQueuedFailureIsReportedByBatch() throws Exception {
+		FlakyConnection connection = new FlakyConnection();
+		JournaledWriter writer = new JournaledWriter(connection, new WriteJournal(file));
+		connection.offline = true;
+		assertFalse(writer.insert("b1", 1, createRecords("a")));
+		assertFalse(writer.insert("b2", 1, createRecords("b")));
+
+		// b1 fails locally while b3 drains the queue, which does not block b2
+		// and b3, and is not thrown to the writer of b3
+		connection.offline = false;
+		connection.rejectCode = "a";
+		assertTrue(writer.insert("b3", 1, createRecords("c")));
+		assertEquals(Status.FAILED, writer.getStatus("b1"));
+		assertEquals(Status.COMMITTED, writer.getStatus("b2"));
+		assertEquals(Status.COMMITTED, writer.getStatus("b3"));
+		assertEquals(0, writer.getPendingCount());
+		assertEquals("duplicate value: a", writer.getFailure("b1").getMessage());
+		assertNull(writer.getFailure("b1"));
+		assertNull(writer.getFailure("b2"));
+		writer.close();
+	}
+
+	@Test
+	public void testIsRetriable() throws Exception {
+		assertTrue(JournaledWriter.isRetriable(
+				new DBException(new ConnectException("refused"), "cannot connect to host")));
+		assertTrue(JournaledWriter.isRetriable(new DBException(503, "http status error(503)")));
+		ErrorResponse error = new ErrorResponse();
+		error.setMessage("too many requests");
+		assertTrue(JournaledWriter.isRetriable(new DBException(429, error)));
+		assertFalse(JournaledWriter.isRetriable(new DBException(400, error)));
+		assertFalse(JournaledWriter.isRetriable(new DBException("invalid value")));
+		assertFalse(JournaledWriter.isRetriable(new DBException(new IllegalStateException(), "local")));
+	}
+
+	@Test
+	public void testBackgroundDrainError() throws Exception {
+		FlakyConnection connection = new FlakyConnection();
+		WriteJournal journal = new WriteJournal(file);
+		JournaledWriter writer = new JournaledWriter(connection, journal);
+		connection.offline = true;
+		assertFalse(writer.insert("b1", 1, createRecords("a")));
+		assertNull(writer.getLastError());
+
+		// the result of the batch cannot be recorded
+		journal.close();
+		connection.offline = false;
+		writer.start(10);
+		for (int i = 0; i < 100 && writer.getLastError() == null; i++) {
+			Thread.sleep(10);
+		}
+		assertNotNull(writer.getLastError());
+		writer.close();
+	}
+
+	@Test
+	public void testReplayedUpdateSendsChangedFields() throws Exception {
+		FlakyConnection connection = new FlakyConnection();
+		JournaledWriter writer = new JournaledWriter(connection, new WriteJournal(file));
+		Record record = new Record(1, 5);
+		record.setString("code", "a");
+		record.setString("memo", "old");
+		record.clearChanges();
+		record.setString("memo", "new");
+
+		connection.offline = true;
+		assertFalse(writer.updateByRecords("b1", 1, Arrays.asList(record)));
+		writer.close();
+
+		connection.offline = false;
+		writer = new JournaledWriter(connection, new WriteJournal(file));
+		assertEquals(1, writer.drain());
+		Record sent = connection.updated.get(0);
+		assertEquals(Long.valueOf(1), sent.getId());
+		assertEquals(Long.valueOf(5), sent.getRevision());
+		assertEquals(new HashSet<String>(Arrays.asList("memo")), sent.getChangedFieldNames());
+		writer.close();
+	}
+}